@@ -0,0 +1,25 @@
+package gj.compiler.minimus.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ~ Benchmark Main ~
+ * <p/>
+ * Runs the benchmarks with the command line of JMH, adding the GC profiler
+ * unless another profiler is asked for, so that every run reports the
+ * allocation rate next to the throughput.
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+        if (!options.contains("-prof") && !options.contains("-h") && !options.contains("-l")) {
+            options.add(0, "-prof");
+            options.add(1, "gc");
+        }
+        org.openjdk.jmh.Main.main(options.toArray(new String[0]));
+    }
+
+}
@@ -0,0 +1,73 @@
+package gj.compiler.minimus.benchmarks;
+
+import gj.compiler.minimus.Interpreter;
+import gj.compiler.minimus.OutputSink;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ~ Interpreter Benchmark ~
+ * <p/>
+ * Runs the loops of InterpreterTest.testWhile and testPrint on every engine,
+ * parsing included.  The "iterations" counter is the number of times per
+ * second the loop goes round.  What the program prints is thrown away.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterpreterBenchmark {
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long iterations;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            iterations = 0;
+        }
+    }
+
+    @Param({"TREE", "COMPACT", "CLOSURE", "BYTECODE", "JVM", "TIERED", "ITERATIVE"})
+    public Interpreter.Engine engine;
+
+    @Param({"while", "print"})
+    public String program;
+
+    @Param({"10000"})
+    public int loops;
+
+    private Interpreter interpreter;
+
+    @Setup
+    public void setUp() {
+        String source = program.equals("print") ? Programs.printLoop(loops) : Programs.whileLoop(loops);
+        interpreter = new Interpreter(source, engine);
+        interpreter.setOutput(OutputSink.DISCARD);
+        interpreter.setPrintSymbolTable(false);
+    }
+
+    @Benchmark
+    public Map<String, Integer> run(Counters counters) {
+        counters.iterations += loops;
+        return interpreter.run();
+    }
+
+}
@@ -0,0 +1,79 @@
+package gj.compiler.minimus.benchmarks;
+
+import gj.compiler.minimus.Parser;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static gj.compiler.minimus.Parser.Node;
+
+/**
+ * ~ Parser Benchmark ~
+ * <p/>
+ * Parses a program into its syntax tree, scanner included.  The "nodes"
+ * counter is the number of nodes built per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long nodes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            nodes = 0;
+        }
+    }
+
+    @Param({"1000"})
+    public int statements;
+
+    @Param({"false", "true"})
+    public boolean lazy;
+
+    private String program;
+    private int nodes;
+
+    @Setup
+    public void setUp() {
+        program = Programs.source(statements);
+        nodes = count(new Parser(program).parse());
+    }
+
+    @Benchmark
+    public Node parse(Counters counters) {
+        Node root = new Parser(program, lazy).parse();
+        // A lazy parse leaves the bodies for later, so it builds fewer nodes;
+        // it is counted against the full tree, as it stands in for it.
+        counters.nodes += nodes;
+        return root;
+    }
+
+    private static int count(Node node) {
+        int nodes = 1;
+        for (Node child : node.children) {
+            nodes += count(child);
+        }
+        return nodes;
+    }
+
+}
@@ -0,0 +1,68 @@
+package gj.compiler.minimus.benchmarks;
+
+/**
+ * ~ Programs ~
+ * <p/>
+ * The programs the benchmarks run: larger versions of the programs of the
+ * tests, so that a run is long enough to measure.
+ */
+final class Programs {
+
+    private Programs() {
+    }
+
+    /* A program of many statements of every kind, for the scanner and the
+       parser.  It is not meant to be run. */
+    static String source(int statements) {
+        StringBuilder program = new StringBuilder("{\n");
+        for (int i = 0; i < statements; i++) {
+            switch (i % 4) {
+                case 0:
+                    program.append("  a = a + ").append(i).append(" * (b - 3);\n");
+                    break;
+                case 1:
+                    program.append("  if (a >= b) { c = c / 2; } else { c = c - 1; }\n");
+                    break;
+                case 2:
+                    program.append("  while (d =/= ").append(i).append(") d = d + 1;\n");
+                    break;
+                default:
+                    program.append("  print(a * b + c);\n");
+            }
+        }
+        return program.append("}\n").toString();
+    }
+
+    /* InterpreterTest.testWhile, going round the loop n times. */
+    static String whileLoop(int n) {
+        return "{ b=0; a=2; while (b < " + n + ") { a=a*2; b=b+1; }}";
+    }
+
+    /* InterpreterTest.testPrint, going round the loop n times. */
+    static String printLoop(int n) {
+        return "{ a = 1; while (a <= " + n + ") { print(a*a); a = a + 1; } }";
+    }
+
+    /* The Fibonacci loop of testcase1, going round the loop n times and
+       printing only the result. */
+    static String fibonacci(int n) {
+        return ".data\n"
+                + "0\n"
+                + "1\n"
+                + ".code\n"
+                + "LOADI 0x1000, r1\n"
+                + "LOADI 0x1001, r2\n"
+                + "MOVI 0, r4\n"
+                + ":loop\n"
+                + "MOV r1, r3\n"
+                + "ADD r2, r1\n"
+                + "MOV r3, r2\n"
+                + "ADDI 1, r4\n"
+                + "CMPI r4, " + n + "\n"
+                + "JL :loop\n"
+                + "MOVI 1, r0\n"
+                + "SYSCALL\n"
+                + "HALT\n";
+    }
+
+}
@@ -0,0 +1,68 @@
+package gj.compiler.minimus.benchmarks;
+
+import gj.compiler.minimus.Scanner;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static gj.compiler.minimus.Scanner.TokenType;
+
+/**
+ * ~ Scanner Benchmark ~
+ * <p/>
+ * Scans a program from start to end.  The "tokens" counter is the number of
+ * tokens per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScannerBenchmark {
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long tokens;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            tokens = 0;
+        }
+    }
+
+    @Param({"1000"})
+    public int statements;
+
+    private String program;
+
+    @Setup
+    public void setUp() {
+        program = Programs.source(statements);
+    }
+
+    @Benchmark
+    public int scan(Counters counters) {
+        Scanner scanner = new Scanner(program);
+        int tokens = 0;
+        while (scanner.nextType() != TokenType.TOKEN_EOI) {
+            tokens++;
+        }
+        counters.tokens += tokens;
+        return tokens;
+    }
+
+}
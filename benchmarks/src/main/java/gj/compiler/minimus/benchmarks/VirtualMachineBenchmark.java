@@ -0,0 +1,90 @@
+package gj.compiler.minimus.benchmarks;
+
+import gj.compiler.minimus.LoadedProgram;
+import gj.compiler.minimus.OutputSink;
+import gj.compiler.minimus.Profiler;
+import gj.compiler.minimus.VirtualMachine;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ~ Virtual Machine Benchmark ~
+ * <p/>
+ * Runs the Fibonacci loop of testcase1 on a machine, interpreted one
+ * instruction at a time, with superinstructions or translated to a JVM
+ * class.  The program is loaded once; every run resets the machine.  The
+ * "instructions" counter is the number of instructions of the program per
+ * second, counted as assembled (a superinstruction counts for the
+ * instructions it stands for).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VirtualMachineBenchmark {
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long instructions;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            instructions = 0;
+        }
+    }
+
+    @Param({"plain", "fused", "translated"})
+    public String mode;
+
+    @Param({"10000"})
+    public int loops;
+
+    private VirtualMachine vm;
+    private LoadedProgram program;
+    private long instructions;
+
+    @Setup
+    public void setUp() {
+        String source = Programs.fibonacci(loops);
+        program = new LoadedProgram(VirtualMachine.assemble(source),
+                !mode.equals("plain"), mode.equals("translated"));
+        if (mode.equals("translated") && !program.isTranslated()) {
+            throw new IllegalStateException("The program could not be translated!");
+        }
+
+        // The profiler counts the instructions one run executes.
+        Profiler profiler = new Profiler();
+        VirtualMachine counting = new VirtualMachine();
+        counting.setOutput(OutputSink.DISCARD);
+        counting.setProfiler(profiler);
+        counting.run(program);
+        instructions = profiler.getEntries().stream().mapToLong(Profiler.Entry::getSelf).sum();
+
+        vm = new VirtualMachine();
+        vm.setOutput(OutputSink.DISCARD);
+    }
+
+    @Benchmark
+    public int run(Counters counters) {
+        vm.run(program);
+        counters.instructions += instructions;
+        return vm.getRegister(1);
+    }
+
+}
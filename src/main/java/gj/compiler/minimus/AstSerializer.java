@@ -0,0 +1,138 @@
+package gj.compiler.minimus;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import static gj.compiler.minimus.Parser.Node;
+import static gj.compiler.minimus.Parser.NodeType;
+
+/**
+ * ~ Binary AST Format ~
+ * <p/>
+ * Writes a syntax tree in a compact binary form and reads it back, so that a
+ * program that was parsed before can be loaded without scanning or parsing it
+ * again.  The format is:
+ * <pre>
+ * header  ::= "MAST" version
+ * node    ::= type value start length line lines count { node }
+ * value   ::= NO_VALUE | INT_VALUE varint | TEXT_VALUE utf
+ * </pre>
+ * The nodes are written in pre-order.  The type is the NodeType ordinal in a
+ * single byte, and all the numbers are variable length integers (7 bits per
+ * byte).  The start and line of a node are stored relative to those of its
+ * parent and its end relative to its start, so that most of them take a
+ * single byte.  Integer literals are stored as numbers rather than text
+ * whenever that gives back exactly the same text.
+ */
+public class AstSerializer {
+
+    private static final int MAGIC = 0x4d415354; // "MAST"
+    private static final int VERSION = 1;
+
+    private static final int NO_VALUE = 0, INT_VALUE = 1, TEXT_VALUE = 2;
+
+    private static final NodeType[] TYPES = NodeType.values();
+
+    private AstSerializer() {
+    }
+
+    public static void write(Node root, DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        writeNode(root, 0, 0, out);
+    }
+
+    public static Node read(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+            throw new IOException("Not a Minimus syntax tree, or an unsupported version!");
+        }
+        return readNode(0, 0, in);
+    }
+
+    private static void writeNode(Node node, int parentStart, int parentLine, DataOutput out) throws IOException {
+        if (node.type == NodeType.NODE_DEFERRED) {
+            node = ((Parser.DeferredNode) node).resolve();
+        }
+        out.writeByte(node.type.ordinal());
+        if (node.value == null) {
+            out.writeByte(NO_VALUE);
+        } else if (node.type == NodeType.NODE_INTEGER && isCanonical(node.value)) {
+            out.writeByte(INT_VALUE);
+            writeNumber(Integer.parseInt(node.value), out);
+        } else {
+            out.writeByte(TEXT_VALUE);
+            out.writeUTF(node.value);
+        }
+        writeNumber(node.start - parentStart, out);
+        writeNumber(node.end - node.start, out);
+        writeNumber(node.line - parentLine, out);
+        writeNumber(node.endLine - node.line, out);
+        writeNumber(node.children.size(), out);
+        for (Node child : node.children) {
+            writeNode(child, node.start, node.line, out);
+        }
+    }
+
+    private static Node readNode(int parentStart, int parentLine, DataInput in) throws IOException {
+        int type = in.readUnsignedByte();
+        if (type >= TYPES.length) {
+            throw new IOException("Unknown node type: " + type);
+        }
+        String value;
+        switch (in.readUnsignedByte()) {
+            case NO_VALUE:
+                value = null;
+                break;
+            case INT_VALUE:
+                value = Integer.toString(readNumber(in));
+                break;
+            case TEXT_VALUE:
+                value = in.readUTF();
+                break;
+            default:
+                throw new IOException("Unknown value kind!");
+        }
+        Node node = new Node(TYPES[type], value);
+        node.start = parentStart + readNumber(in);
+        node.end = node.start + readNumber(in);
+        node.line = parentLine + readNumber(in);
+        node.endLine = node.line + readNumber(in);
+        int count = readNumber(in);
+        for (int i = 0; i < count; i++) {
+            node.addChild(readNode(node.start, node.line, in));
+        }
+        return node;
+    }
+
+    /* An integer literal can be stored as a number if formatting that number
+       gives the same text, so not for "007" or values that overflow. */
+    private static boolean isCanonical(String value) {
+        try {
+            return Integer.toString(Integer.parseInt(value)).equals(value);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static void writeNumber(int value, DataOutput out) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readNumber(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed number!");
+    }
+
+}
@@ -0,0 +1,242 @@
+package gj.compiler.minimus;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * ~ Batched Sink ~
+ * <p/>
+ * An {@link OutputSink} that formats the values itself, into a buffer that
+ * is used over and over, and only writes the buffer to a channel once it is
+ * full (or flushed).  There is no PrintStream, no lock and no String for
+ * every value.
+ * <p/>
+ * In the background mode there are two buffers: while a full one is written
+ * by a thread of the sink, the program goes on printing into the other one.
+ * A write that fails on that thread is thrown (as an UncheckedIOException)
+ * from the next call on the sink.
+ * <p/>
+ * The channel belongs to the caller: close() writes out what is left and
+ * stops the thread, but does not close the channel.
+ */
+public class BatchedSink implements OutputSink {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /* Room for "-2147483648\n". */
+    private static final int MAX_VALUE_LENGTH = 12;
+
+    private final WritableByteChannel channel;
+    private ByteBuffer buffer;
+
+    /* Only for the background mode: buffers waiting to be written, buffers
+       that are free again, and the number handed over that is not written
+       yet (guarded by "this"). */
+    private final BlockingQueue<ByteBuffer> full;
+    private final BlockingQueue<ByteBuffer> free;
+    private final Thread writer;
+    private int pending = 0;
+    private volatile IOException failure;
+
+    /* Tells the writer to stop. */
+    private static final ByteBuffer STOP = ByteBuffer.allocate(0);
+
+    public BatchedSink(WritableByteChannel channel) {
+        this(channel, DEFAULT_BUFFER_SIZE, false);
+    }
+
+    /**
+     * @param channel where the output is written
+     * @param bufferSize the size of a buffer in bytes
+     * @param background whether to write on a background thread
+     */
+    public BatchedSink(WritableByteChannel channel, int bufferSize, boolean background) {
+        if (bufferSize < MAX_VALUE_LENGTH) {
+            throw new IllegalArgumentException("Buffer too small: " + bufferSize);
+        }
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+        if (background) {
+            full = new ArrayBlockingQueue<>(2);
+            free = new ArrayBlockingQueue<>(2);
+            free.add(ByteBuffer.allocate(bufferSize));
+            writer = new Thread(this::write, "minimus-output");
+            writer.setDaemon(true);
+            writer.start();
+        } else {
+            full = null;
+            free = null;
+            writer = null;
+        }
+    }
+
+    /**
+     * A sink for the standard output of the process, which bypasses
+     * System.out (so the two should not be mixed).
+     * @param background whether to write on a background thread
+     * @return the sink
+     */
+    public static BatchedSink stdout(boolean background) {
+        return new BatchedSink(new FileOutputStream(FileDescriptor.out).getChannel(), DEFAULT_BUFFER_SIZE, background);
+    }
+
+    @Override
+    public void print(int value) {
+        if (buffer.remaining() < MAX_VALUE_LENGTH) {
+            next();
+        }
+        byte[] bytes = buffer.array();
+        int position = buffer.position();
+        // The digits are written from the back; a negative number is made of
+        // negative digits, so that Integer.MIN_VALUE works as well.
+        int length = value < 0 ? 2 : 1;
+        for (int rest = value / 10; rest != 0; rest /= 10) {
+            length++;
+        }
+        int end = position + length;
+        bytes[end] = '\n';
+        int rest = value;
+        int i = end;
+        do {
+            bytes[--i] = (byte) ('0' + Math.abs(rest % 10));
+            rest /= 10;
+        } while (rest != 0);
+        if (value < 0) {
+            bytes[--i] = '-';
+        }
+        buffer.position(end + 1);
+    }
+
+    @Override
+    public void print(String line) {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!buffer.hasRemaining()) {
+                next();
+            }
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (buffer.position() > 0) {
+            next();
+        }
+        if (writer != null) {
+            synchronized (this) {
+                while (pending > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted while flushing output!", e);
+                    }
+                }
+            }
+            checkFailure();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            flush();
+        } finally {
+            if (writer != null && writer.isAlive()) {
+                put(full, STOP);
+                try {
+                    writer.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /* Writes the buffer, or hands it to the writer and carries on with a free
+       one. */
+    private void next() {
+        buffer.flip();
+        if (writer == null) {
+            try {
+                writeFully(buffer);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            buffer.clear();
+            return;
+        }
+        checkFailure();
+        synchronized (this) {
+            pending++;
+        }
+        put(full, buffer);
+        buffer = take(free);
+    }
+
+    /* The background thread. */
+    private void write() {
+        while (true) {
+            ByteBuffer next = take(full);
+            if (next == STOP) {
+                return;
+            }
+            try {
+                if (failure == null) {
+                    writeFully(next);
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+            next.clear();
+            put(free, next);
+            synchronized (this) {
+                pending--;
+                notifyAll();
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    private void checkFailure() {
+        IOException e = failure;
+        if (e != null) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void put(BlockingQueue<ByteBuffer> queue, ByteBuffer buffer) {
+        try {
+            queue.put(buffer);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while writing output!", e);
+        }
+    }
+
+    private static ByteBuffer take(BlockingQueue<ByteBuffer> queue) {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while writing output!", e);
+        }
+    }
+
+}
@@ -0,0 +1,441 @@
+package gj.compiler.minimus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+import static gj.compiler.minimus.Parser.Node;
+import static gj.compiler.minimus.Parser.NodeType;
+
+/**
+ * ~ Stack Bytecode ~
+ * <p/>
+ * A program lowered to the instructions of a small stack machine, so that it
+ * can be executed by a single loop rather than by recursing through the tree.
+ * This has nothing to do with the register machine of the
+ * {@link VirtualMachine}; it is only used by the Interpreter.
+ * <p/>
+ * The code is a flat int array.  Every instruction is an opcode, followed by
+ * its operand if it has one.  Values are kept on an operand stack, which is
+ * also an int array; its size is worked out while compiling.
+ * <pre>
+ *   PUSH n      push the integer n
+ *   LOAD s      push the variable in slot s (fails if it is undefined)
+ *   STORE s     pop a value into the variable in slot s
+ *   DUP         push the value on top of the stack again
+ *   POP         drop the value on top of the stack
+ *   ADD .. NE   pop the right and left operands and push the result
+ *   PRINT       pop a value and print it
+ *   JUMP d      continue d ints further on (d is relative to the next
+ *               instruction and may be negative)
+ *   JZ d        pop a value and jump if it is 0
+ *   JLT d .. JNE d
+ *               pop the right and left operands and jump unless the
+ *               comparison holds (so JLT is "jump if not less than")
+ *   LITERAL i   push the literal at index i of the literal table; used for
+ *               literals that do not fit in an int, which fail when they
+ *               are evaluated
+ *   RETURN      pop the result of the program and stop
+ * </pre>
+ * "if" and "while" become conditional and backward jumps.  A statement whose
+ * value is not needed (most of them) leaves nothing behind on the stack.
+ */
+public class Bytecode {
+
+    static final int PUSH = 0, LOAD = 1, STORE = 2, DUP = 3, POP = 4,
+            ADD = 5, SUB = 6, MUL = 7, DIV = 8,
+            LT = 9, GT = 10, LE = 11, GE = 12, EQ = 13, NE = 14,
+            PRINT = 15, JUMP = 16, JZ = 17,
+            JLT = 18, JGT = 19, JLE = 20, JGE = 21, JEQ = 22, JNE = 23,
+            LITERAL = 24, RETURN = 25;
+
+    private static final String[] NAMES = {"PUSH", "LOAD", "STORE", "DUP", "POP", "ADD", "SUB", "MUL", "DIV",
+            "LT", "GT", "LE", "GE", "EQ", "NE", "PRINT", "JUMP", "JZ", "JLT", "JGT", "JLE", "JGE", "JEQ", "JNE",
+            "LITERAL", "RETURN"};
+
+    private final int[] code;
+    private final int maxStack;
+    private final String[] literals;
+
+    private Bytecode(int[] code, int maxStack, String[] literals) {
+        this.code = code;
+        this.maxStack = maxStack;
+        this.literals = literals;
+    }
+
+    /**
+     * Lowers a tree to bytecode.  Deferred bodies of a lazily parsed tree are
+     * parsed while compiling.
+     * @param root the root of the tree as returned by Parser.parse()
+     * @return the bytecode
+     */
+    public static Bytecode compile(Node root) {
+        Resolver.resolve(root);
+        Emitter emitter = new Emitter();
+        emitter.compile(root, true);
+        emitter.emit(RETURN, -1);
+        return new Bytecode(Arrays.copyOf(emitter.code, emitter.size), emitter.maxDepth,
+                emitter.literals.toArray(new String[0]));
+    }
+
+    /**
+     * Executes the bytecode, printing to System.out.
+     * @param frame the variables
+     * @return the value of the program, like Interpreter.handleNode() gives
+     */
+    public int execute(Frame frame) {
+        return execute(frame, OutputSink.SYSTEM_OUT);
+    }
+
+    /**
+     * Executes the bytecode.
+     * @param frame the variables
+     * @param out where the values printed by the program go
+     * @return the value of the program, like Interpreter.handleNode() gives
+     */
+    public int execute(Frame frame, IntConsumer out) {
+        final int[] code = this.code;
+        final int[] stack = new int[maxStack];
+        int sp = 0; // the number of values on the stack
+        int pc = 0;
+        while (true) {
+            switch (code[pc++]) {
+                case PUSH:
+                    stack[sp++] = code[pc++];
+                    break;
+                case LOAD:
+                    stack[sp++] = frame.get(code[pc++]);
+                    break;
+                case STORE:
+                    frame.set(code[pc++], stack[--sp]);
+                    break;
+                case DUP:
+                    stack[sp] = stack[sp - 1];
+                    sp++;
+                    break;
+                case POP:
+                    sp--;
+                    break;
+                case ADD:
+                    sp--;
+                    stack[sp - 1] += stack[sp];
+                    break;
+                case SUB:
+                    sp--;
+                    stack[sp - 1] -= stack[sp];
+                    break;
+                case MUL:
+                    sp--;
+                    stack[sp - 1] *= stack[sp];
+                    break;
+                case DIV:
+                    sp--;
+                    stack[sp - 1] /= stack[sp];
+                    break;
+                case LT:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] < stack[sp] ? 1 : 0;
+                    break;
+                case GT:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] > stack[sp] ? 1 : 0;
+                    break;
+                case LE:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] <= stack[sp] ? 1 : 0;
+                    break;
+                case GE:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] >= stack[sp] ? 1 : 0;
+                    break;
+                case EQ:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] == stack[sp] ? 1 : 0;
+                    break;
+                case NE:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] != stack[sp] ? 1 : 0;
+                    break;
+                case PRINT:
+                    out.accept(stack[--sp]);
+                    break;
+                case JUMP:
+                    pc += code[pc] + 1;
+                    break;
+                case JZ:
+                    pc += stack[--sp] == 0 ? code[pc] + 1 : 1;
+                    break;
+                case JLT:
+                    sp -= 2;
+                    pc += stack[sp] < stack[sp + 1] ? 1 : code[pc] + 1;
+                    break;
+                case JGT:
+                    sp -= 2;
+                    pc += stack[sp] > stack[sp + 1] ? 1 : code[pc] + 1;
+                    break;
+                case JLE:
+                    sp -= 2;
+                    pc += stack[sp] <= stack[sp + 1] ? 1 : code[pc] + 1;
+                    break;
+                case JGE:
+                    sp -= 2;
+                    pc += stack[sp] >= stack[sp + 1] ? 1 : code[pc] + 1;
+                    break;
+                case JEQ:
+                    sp -= 2;
+                    pc += stack[sp] == stack[sp + 1] ? 1 : code[pc] + 1;
+                    break;
+                case JNE:
+                    sp -= 2;
+                    pc += stack[sp] != stack[sp + 1] ? 1 : code[pc] + 1;
+                    break;
+                case LITERAL:
+                    stack[sp++] = Integer.parseInt(literals[code[pc++]]);
+                    break;
+                case RETURN:
+                    return stack[--sp];
+                default:
+                    throw new IllegalStateException("Bad opcode at " + (pc - 1));
+            }
+        }
+    }
+
+    /**
+     * The number of ints of code.
+     * @return length of the code
+     */
+    public int size() {
+        return code.length;
+    }
+
+    /**
+     * Lists the instructions, one per line, each preceded by its offset.
+     * Jumps show the offset they jump to.
+     * @return the listing
+     */
+    public String disassemble() {
+        StringBuilder b = new StringBuilder();
+        int pc = 0;
+        while (pc < code.length) {
+            int op = code[pc];
+            b.append(pc).append(": ").append(NAMES[op]);
+            pc++;
+            if (hasOperand(op)) {
+                int operand = code[pc++];
+                b.append(' ').append(isJump(op) ? pc + operand : operand);
+            }
+            b.append('\n');
+        }
+        return b.toString();
+    }
+
+    private static boolean hasOperand(int op) {
+        return op == PUSH || op == LOAD || op == STORE || op == LITERAL || isJump(op);
+    }
+
+    private static boolean isJump(int op) {
+        return op == JUMP || (op >= JZ && op <= JNE);
+    }
+
+    /* Generates the code.  It keeps track of how deep the stack gets. */
+    private static class Emitter {
+        private int[] code = new int[64];
+        private int size = 0;
+        private int depth = 0;
+        private int maxDepth = 0;
+        private final List<String> literals = new ArrayList<>();
+
+        /* Compiles a node.  If its value is needed, the code leaves exactly
+           one value on the stack, otherwise none. */
+        void compile(Node node, boolean needed) {
+            switch (node.type) {
+                case NODE_DEFERRED:
+                    compile(((Parser.DeferredNode) node).resolve(), needed);
+                    return;
+                case NODE_INTEGER:
+                    literal(node);
+                    break;
+                case NODE_VARIABLE:
+                    emit(LOAD, node.slot, 1);
+                    break;
+                case NODE_ASSIGNMENT:
+                    compile(node.children.get(0), true);
+                    if (needed) {
+                        emit(DUP, 1);
+                    }
+                    emit(STORE, node.slot, -1);
+                    return;
+                case NODE_IF:
+                    compileIf(node, needed);
+                    return;
+                case NODE_WHILE: {
+                    int top = size;
+                    int exit = compileTest(node.children.get(0));
+                    compile(node.children.get(1), false);
+                    emit(JUMP, 0, 0);
+                    patch(size - 1, top);
+                    patch(exit, size);
+                    pushZero(needed);
+                    return;
+                }
+                case NODE_PRINT:
+                    compile(node.children.get(0), true);
+                    emit(PRINT, -1);
+                    pushZero(needed);
+                    return;
+                case NODE_SEQUENCE:
+                    for (Node child : node.children) {
+                        compile(child, false);
+                    }
+                    pushZero(needed);
+                    return;
+                case NODE_EMPTY:
+                    pushZero(needed);
+                    return;
+                default:
+                    compile(node.children.get(0), true);
+                    compile(node.children.get(1), true);
+                    emit(operator(node.type), -1);
+                    break;
+            }
+            // Expressions always leave their value; drop it if nobody wants it.
+            if (!needed) {
+                emit(POP, -1);
+            }
+        }
+
+        private void compileIf(Node node, boolean needed) {
+            int otherwise = compileTest(node.children.get(0));
+            compile(node.children.get(1), needed);
+            if (node.children.size() > 2 || needed) {
+                emit(JUMP, 0, 0);
+                int end = size - 1;
+                // Both arms leave the same number of values behind.
+                depth -= needed ? 1 : 0;
+                patch(otherwise, size);
+                if (node.children.size() > 2) {
+                    compile(node.children.get(2), needed);
+                } else {
+                    pushZero(true);
+                }
+                patch(end, size);
+            } else {
+                patch(otherwise, size);
+            }
+        }
+
+        /* Compiles the condition of an "if" or "while" as a jump that is taken
+           when it is false, and returns where the offset of that jump is, so
+           it can be patched once the target is known. */
+        private int compileTest(Node node) {
+            if (node.type == NodeType.NODE_DEFERRED) {
+                return compileTest(((Parser.DeferredNode) node).resolve());
+            }
+            int jump = branch(node.type);
+            if (jump >= 0) {
+                compile(node.children.get(0), true);
+                compile(node.children.get(1), true);
+                emit(jump, 0, -2);
+            } else {
+                compile(node, true);
+                emit(JZ, 0, -1);
+            }
+            return size - 1;
+        }
+
+        private void literal(Node node) {
+            if (node.decoded) {
+                emit(PUSH, node.number, 1);
+                return;
+            }
+            try {
+                emit(PUSH, Integer.parseInt(node.value), 1);
+            } catch (NumberFormatException e) {
+                literals.add(node.value);
+                emit(LITERAL, literals.size() - 1, 1);
+            }
+        }
+
+        private void pushZero(boolean needed) {
+            if (needed) {
+                emit(PUSH, 0, 1);
+            }
+        }
+
+        /* Makes the jump whose offset is at "at" go to "target". */
+        private void patch(int at, int target) {
+            code[at] = target - (at + 1);
+        }
+
+        void emit(int op, int effect) {
+            append(op);
+            adjust(effect);
+        }
+
+        void emit(int op, int operand, int effect) {
+            append(op);
+            append(operand);
+            adjust(effect);
+        }
+
+        private void append(int value) {
+            if (size == code.length) {
+                code = Arrays.copyOf(code, size * 2);
+            }
+            code[size++] = value;
+        }
+
+        private void adjust(int effect) {
+            depth += effect;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        private static int operator(NodeType type) {
+            switch (type) {
+                case NODE_ADDITION:
+                    return ADD;
+                case NODE_SUBTRACTION:
+                    return SUB;
+                case NODE_MULTIPLY:
+                    return MUL;
+                case NODE_DIVIDE:
+                    return DIV;
+                case NODE_LESS_THAN:
+                    return LT;
+                case NODE_GREATER_THAN:
+                    return GT;
+                case NODE_LESS_EQUAL_THAN:
+                    return LE;
+                case NODE_GREATER_EQUAL_THAN:
+                    return GE;
+                case NODE_EQUALS:
+                    return EQ;
+                case NODE_NOT_EQUALS:
+                    return NE;
+            }
+            throw new RuntimeException("Unsupported comparison/operation!");
+        }
+
+        /* The conditional jump for a comparison, or -1 if it is not one. */
+        private static int branch(NodeType type) {
+            switch (type) {
+                case NODE_LESS_THAN:
+                    return JLT;
+                case NODE_GREATER_THAN:
+                    return JGT;
+                case NODE_LESS_EQUAL_THAN:
+                    return JLE;
+                case NODE_GREATER_EQUAL_THAN:
+                    return JGE;
+                case NODE_EQUALS:
+                    return JEQ;
+                case NODE_NOT_EQUALS:
+                    return JNE;
+                default:
+                    return -1;
+            }
+        }
+    }
+
+}
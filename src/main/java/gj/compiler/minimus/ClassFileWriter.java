@@ -0,0 +1,309 @@
+package gj.compiler.minimus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ~ Class File Writer ~
+ * <p/>
+ * Just enough of the JVM class file format to write a class with a few
+ * methods: a constant pool, methods with a Code attribute, and labels for
+ * branches.  The classes are written as version 49 (Java 5) class files, so
+ * the JVM infers the types of the stack and locals itself and no stack map
+ * frames are needed.
+ * <p/>
+ * The caller is responsible for the code being valid: the JVM verifies the
+ * class when it is loaded.
+ */
+class ClassFileWriter {
+
+    private static final int MAJOR_VERSION = 49;
+
+    static final int ACC_PUBLIC = 0x0001, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+
+    private static final int CONSTANT_UTF8 = 1, CONSTANT_INTEGER = 3, CONSTANT_CLASS = 7, CONSTANT_STRING = 8,
+            CONSTANT_FIELDREF = 9, CONSTANT_METHODREF = 10, CONSTANT_INTERFACE_METHODREF = 11,
+            CONSTANT_NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> constants = new HashMap<>();
+    private int poolCount = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+    private final int codeName;
+    private final List<Method> methods = new ArrayList<>();
+
+    /**
+     * @param name the internal name of the class ("a/b/C")
+     * @param superName the internal name of its super class
+     * @param interfaceNames the internal names of the interfaces it implements
+     */
+    ClassFileWriter(String name, String superName, String... interfaceNames) {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+        interfaces = new int[interfaceNames.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaces[i] = classRef(interfaceNames[i]);
+        }
+        codeName = utf8("Code");
+    }
+
+    int utf8(String value) {
+        return constant("U" + value, () -> {
+            pool.writeByte(CONSTANT_UTF8);
+            pool.writeUTF(value);
+        });
+    }
+
+    int integer(int value) {
+        return constant("I" + value, () -> {
+            pool.writeByte(CONSTANT_INTEGER);
+            pool.writeInt(value);
+        });
+    }
+
+    int string(String value) {
+        int index = utf8(value);
+        return constant("S" + value, () -> {
+            pool.writeByte(CONSTANT_STRING);
+            pool.writeShort(index);
+        });
+    }
+
+    int classRef(String name) {
+        int index = utf8(name);
+        return constant("C" + name, () -> {
+            pool.writeByte(CONSTANT_CLASS);
+            pool.writeShort(index);
+        });
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_FIELDREF, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+    }
+
+    int interfaceMethodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_INTERFACE_METHODREF, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int nameAndType = constant("N" + name + ":" + descriptor, () -> {
+            pool.writeByte(CONSTANT_NAME_AND_TYPE);
+            pool.writeShort(nameIndex);
+            pool.writeShort(descriptorIndex);
+        });
+        return constant("M" + tag + owner + "." + name + ":" + descriptor, () -> {
+            pool.writeByte(tag);
+            pool.writeShort(ownerIndex);
+            pool.writeShort(nameAndType);
+        });
+    }
+
+    private interface PoolEntry {
+        void write() throws IOException;
+    }
+
+    /* Adds a constant unless an equal one is already in the pool. */
+    private int constant(String key, PoolEntry entry) {
+        Integer index = constants.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            entry.write();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        constants.put(key, poolCount);
+        return poolCount++;
+    }
+
+    /**
+     * Adds a method.  Its code is written into the returned Code.
+     * @param access the access flags
+     * @param name the name of the method
+     * @param descriptor its descriptor, "(II)V" and so on
+     * @return the code of the method
+     */
+    Code method(int access, String name, String descriptor) {
+        Code code = new Code();
+        methods.add(new Method(access, utf8(name), utf8(descriptor), code));
+        return code;
+    }
+
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(MAJOR_VERSION);
+            out.writeShort(poolCount);
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int i : interfaces) {
+                out.writeShort(i);
+            }
+            out.writeShort(0); // fields
+            out.writeShort(methods.size());
+            for (Method method : methods) {
+                byte[] code = method.code.toByteArray();
+                out.writeShort(method.access);
+                out.writeShort(method.name);
+                out.writeShort(method.descriptor);
+                out.writeShort(1);
+                out.writeShort(codeName);
+                out.writeInt(12 + code.length);
+                out.writeShort(method.code.maxStack);
+                out.writeShort(method.code.maxLocals);
+                out.writeInt(code.length);
+                out.write(code);
+                out.writeShort(0); // exception table
+                out.writeShort(0); // attributes
+            }
+            out.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static class Method {
+        final int access;
+        final int name;
+        final int descriptor;
+        final Code code;
+
+        Method(int access, int name, int descriptor, Code code) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.code = code;
+        }
+    }
+
+    /* A position in the code that branches can jump to, before or after it
+       is known. */
+    static class Label {
+        private int position = -1;
+        private final List<Integer> branches = new ArrayList<>();
+    }
+
+    /* The bytecode of a method. */
+    static class Code {
+        private byte[] bytes = new byte[256];
+        private int length = 0;
+        private int maxStack;
+        private int maxLocals;
+        private final List<Label> labels = new ArrayList<>();
+
+        void op(int opcode) {
+            u1(opcode);
+        }
+
+        void op(int opcode, int operand) {
+            u1(opcode);
+            u1(operand);
+        }
+
+        void op2(int opcode, int operand) {
+            u1(opcode);
+            u2(operand);
+        }
+
+        void u1(int value) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, length * 2);
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        /* A branch instruction (the "if"s and "goto"). */
+        void jump(int opcode, Label target) {
+            if (target.branches.isEmpty() && target.position < 0) {
+                labels.add(target);
+            }
+            target.branches.add(length);
+            u1(opcode);
+            u2(0);
+        }
+
+        void mark(Label label) {
+            if (label.branches.isEmpty()) {
+                labels.add(label);
+            }
+            label.position = length;
+        }
+
+        int length() {
+            return length;
+        }
+
+        /* Whether every branch reaches its label, as the offset of a branch
+           is a signed 16 bit number. */
+        boolean branchesFit() {
+            for (Label label : labels) {
+                for (int branch : label.branches) {
+                    int offset = label.position - branch;
+                    if (offset != (short) offset) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        void setMaxs(int maxStack, int maxLocals) {
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+        }
+
+        /* The code, with the offsets of all the branches filled in. */
+        private byte[] toByteArray() {
+            for (Label label : labels) {
+                resolve(label);
+            }
+            return Arrays.copyOf(bytes, length);
+        }
+
+        private void resolve(Label label) {
+            if (label.position < 0) {
+                throw new IllegalStateException("Label was never marked!");
+            }
+            for (int branch : label.branches) {
+                int offset = label.position - branch;
+                if (offset != (short) offset) {
+                    throw new IllegalStateException("Branch too far!");
+                }
+                bytes[branch + 1] = (byte) (offset >> 8);
+                bytes[branch + 2] = (byte) offset;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,340 @@
+package gj.compiler.minimus;
+
+import java.util.List;
+import java.util.function.IntConsumer;
+
+import static gj.compiler.minimus.Parser.Node;
+import static gj.compiler.minimus.Parser.NodeType;
+
+/**
+ * ~ Closure Compiler ~
+ * <p/>
+ * Walking the syntax tree means looking at the type of every node, every
+ * time it is evaluated.  The closure compiler looks at each node only once:
+ * it turns the tree into a tree of small executable objects ({@link Exec}),
+ * each of which does exactly one thing and calls its children directly.  The
+ * decisions about what a node does are taken while compiling, not while
+ * running.
+ * <p/>
+ * Common shapes get an object of their own, so that the body of a typical
+ * loop is a handful of calls:
+ * <ul>
+ * <li>an operation on a variable and a constant ("a+1", "b*2") or on two
+ *     variables ("a-b") reads the frame directly instead of calling its
+ *     operands;</li>
+ * <li>an assignment of such an expression to a variable ("a=a+1");</li>
+ * <li>the condition of an "if" or "while" is compiled to a {@link Test}, so a
+ *     comparison ("a < 10") branches directly instead of producing 1 or 0
+ *     first.</li>
+ * </ul>
+ * Each kind of object is a class of its own, so a call site in a hot loop
+ * only ever sees one class, which lets the JIT of the JVM inline it.
+ * Deferred bodies of a lazily parsed tree are parsed while compiling.
+ */
+public class ClosureCompiler {
+
+    /* An expression or statement, ready to run.  Like the handlers of the
+       Interpreter, statements return 0. */
+    public interface Exec {
+        int execute(Frame frame);
+    }
+
+    /* A condition, ready to run. */
+    public interface Test {
+        boolean test(Frame frame);
+    }
+
+    /* Where "print" goes. */
+    private final IntConsumer out;
+
+    private ClosureCompiler(IntConsumer out) {
+        this.out = out;
+    }
+
+    /**
+     * Compiles a tree, which prints to System.out.
+     * @param root the root of the tree as returned by Parser.parse()
+     * @return the executable program
+     */
+    public static Exec compile(Node root) {
+        return compile(root, OutputSink.SYSTEM_OUT);
+    }
+
+    /**
+     * Compiles a tree.
+     * @param root the root of the tree as returned by Parser.parse()
+     * @param out where the values printed by the program go
+     * @return the executable program
+     */
+    public static Exec compile(Node root, IntConsumer out) {
+        Resolver.resolve(root);
+        return new ClosureCompiler(out).compileNode(root);
+    }
+
+    private Exec compileNode(Node node) {
+        switch (node.type) {
+            case NODE_DEFERRED:
+                return compileNode(((Parser.DeferredNode) node).resolve());
+            case NODE_INTEGER: {
+                if (!isInt(node)) {
+                    // Fails when it is evaluated, like it does in the Interpreter.
+                    String text = node.value;
+                    return frame -> Integer.parseInt(text);
+                }
+                int value = constant(node);
+                return frame -> value;
+            }
+            case NODE_VARIABLE: {
+                int slot = node.slot;
+                return frame -> frame.get(slot);
+            }
+            case NODE_ASSIGNMENT:
+                return compileAssignment(node);
+            case NODE_IF:
+                return compileIf(node);
+            case NODE_WHILE: {
+                Test condition = compileTest(node.children.get(0));
+                Exec body = compileNode(node.children.get(1));
+                return frame -> {
+                    while (condition.test(frame)) {
+                        body.execute(frame);
+                    }
+                    return 0;
+                };
+            }
+            case NODE_PRINT: {
+                Exec value = compileNode(node.children.get(0));
+                IntConsumer out = this.out;
+                return frame -> {
+                    out.accept(value.execute(frame));
+                    return 0;
+                };
+            }
+            case NODE_SEQUENCE:
+                return compileSequence(node.children);
+            case NODE_EMPTY:
+                return frame -> 0;
+            default:
+                return compileOperation(node);
+        }
+    }
+
+    private Exec compileAssignment(Node node) {
+        int slot = node.slot;
+        Node expression = node.children.get(0);
+        if (isVariableOperation(expression)) {
+            // "a=b+1", the most common statement in a loop body.
+            int left = expression.children.get(0).slot;
+            int right = constant(expression.children.get(1));
+            switch (expression.type) {
+                case NODE_ADDITION:
+                    return frame -> {
+                        int value = frame.get(left) + right;
+                        frame.set(slot, value);
+                        return value;
+                    };
+                case NODE_SUBTRACTION:
+                    return frame -> {
+                        int value = frame.get(left) - right;
+                        frame.set(slot, value);
+                        return value;
+                    };
+                case NODE_MULTIPLY:
+                    return frame -> {
+                        int value = frame.get(left) * right;
+                        frame.set(slot, value);
+                        return value;
+                    };
+            }
+        }
+        Exec value = compileNode(expression);
+        return frame -> {
+            int v = value.execute(frame);
+            frame.set(slot, v);
+            return v;
+        };
+    }
+
+    private Exec compileIf(Node node) {
+        Test condition = compileTest(node.children.get(0));
+        Exec then = compileNode(node.children.get(1));
+        if (node.children.size() > 2) {
+            Exec otherwise = compileNode(node.children.get(2));
+            return frame -> condition.test(frame) ? then.execute(frame) : otherwise.execute(frame);
+        }
+        return frame -> condition.test(frame) ? then.execute(frame) : 0;
+    }
+
+    private Exec compileSequence(List<Node> children) {
+        Exec[] statements = new Exec[children.size()];
+        for (int i = 0; i < statements.length; i++) {
+            statements[i] = compileNode(children.get(i));
+        }
+        switch (statements.length) {
+            case 0:
+                return frame -> 0;
+            case 1: {
+                Exec first = statements[0];
+                return frame -> {
+                    first.execute(frame);
+                    return 0;
+                };
+            }
+            case 2: {
+                Exec first = statements[0], second = statements[1];
+                return frame -> {
+                    first.execute(frame);
+                    second.execute(frame);
+                    return 0;
+                };
+            }
+            default:
+                return frame -> {
+                    for (Exec statement : statements) {
+                        statement.execute(frame);
+                    }
+                    return 0;
+                };
+        }
+    }
+
+    /* Compiles the condition of an "if" or "while".  A comparison becomes a
+       test of its own; anything else is true when it is not 0. */
+    private Test compileTest(Node node) {
+        if (node.type == NodeType.NODE_DEFERRED) {
+            return compileTest(((Parser.DeferredNode) node).resolve());
+        }
+        if (!isComparison(node.type)) {
+            Exec value = compileNode(node);
+            return frame -> value.execute(frame) != 0;
+        }
+
+        if (isVariableOperation(node)) {
+            // "a < 10"
+            int left = node.children.get(0).slot;
+            int right = constant(node.children.get(1));
+            switch (node.type) {
+                case NODE_LESS_THAN:
+                    return frame -> frame.get(left) < right;
+                case NODE_GREATER_THAN:
+                    return frame -> frame.get(left) > right;
+                case NODE_LESS_EQUAL_THAN:
+                    return frame -> frame.get(left) <= right;
+                case NODE_GREATER_EQUAL_THAN:
+                    return frame -> frame.get(left) >= right;
+                case NODE_EQUALS:
+                    return frame -> frame.get(left) == right;
+                default:
+                    return frame -> frame.get(left) != right;
+            }
+        }
+
+        Exec left = compileNode(node.children.get(0));
+        Exec right = compileNode(node.children.get(1));
+        switch (node.type) {
+            case NODE_LESS_THAN:
+                return frame -> left.execute(frame) < right.execute(frame);
+            case NODE_GREATER_THAN:
+                return frame -> left.execute(frame) > right.execute(frame);
+            case NODE_LESS_EQUAL_THAN:
+                return frame -> left.execute(frame) <= right.execute(frame);
+            case NODE_GREATER_EQUAL_THAN:
+                return frame -> left.execute(frame) >= right.execute(frame);
+            case NODE_EQUALS:
+                return frame -> left.execute(frame) == right.execute(frame);
+            default:
+                return frame -> left.execute(frame) != right.execute(frame);
+        }
+    }
+
+    private Exec compileOperation(Node node) {
+        if (isComparison(node.type)) {
+            Test test = compileTest(node);
+            return frame -> test.test(frame) ? 1 : 0;
+        }
+
+        Node leftNode = node.children.get(0);
+        Node rightNode = node.children.get(1);
+        if (isVariableOperation(node)) {
+            int left = leftNode.slot;
+            int right = constant(rightNode);
+            switch (node.type) {
+                case NODE_ADDITION:
+                    return frame -> frame.get(left) + right;
+                case NODE_SUBTRACTION:
+                    return frame -> frame.get(left) - right;
+                case NODE_MULTIPLY:
+                    return frame -> frame.get(left) * right;
+                case NODE_DIVIDE:
+                    return frame -> frame.get(left) / right;
+            }
+        }
+        if (leftNode.type == NodeType.NODE_VARIABLE && rightNode.type == NodeType.NODE_VARIABLE) {
+            int left = leftNode.slot;
+            int right = rightNode.slot;
+            switch (node.type) {
+                case NODE_ADDITION:
+                    return frame -> frame.get(left) + frame.get(right);
+                case NODE_SUBTRACTION:
+                    return frame -> frame.get(left) - frame.get(right);
+                case NODE_MULTIPLY:
+                    return frame -> frame.get(left) * frame.get(right);
+                case NODE_DIVIDE:
+                    return frame -> frame.get(left) / frame.get(right);
+            }
+        }
+
+        Exec left = compileNode(leftNode);
+        Exec right = compileNode(rightNode);
+        switch (node.type) {
+            case NODE_ADDITION:
+                return frame -> left.execute(frame) + right.execute(frame);
+            case NODE_SUBTRACTION:
+                return frame -> left.execute(frame) - right.execute(frame);
+            case NODE_MULTIPLY:
+                return frame -> left.execute(frame) * right.execute(frame);
+            case NODE_DIVIDE:
+                return frame -> left.execute(frame) / right.execute(frame);
+        }
+        throw new RuntimeException("Unsupported comparison/operation!");
+    }
+
+    private static boolean isComparison(NodeType type) {
+        switch (type) {
+            case NODE_LESS_THAN:
+            case NODE_GREATER_THAN:
+            case NODE_LESS_EQUAL_THAN:
+            case NODE_GREATER_EQUAL_THAN:
+            case NODE_EQUALS:
+            case NODE_NOT_EQUALS:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /* Whether the node is an operation of a variable and a literal that fits
+       in an int. */
+    private static boolean isVariableOperation(Node node) {
+        if (node.children.size() != 2 || node.type == NodeType.NODE_IF || node.type == NodeType.NODE_WHILE) {
+            return false;
+        }
+        Node left = node.children.get(0);
+        Node right = node.children.get(1);
+        return left.type == NodeType.NODE_VARIABLE && right.type == NodeType.NODE_INTEGER && isInt(right);
+    }
+
+    private static boolean isInt(Node node) {
+        try {
+            constant(node);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static int constant(Node node) {
+        return node.decoded ? node.number : Integer.parseInt(node.value);
+    }
+
+}
@@ -0,0 +1,48 @@
+package gj.compiler.minimus;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ~ Collecting Sink ~
+ * <p/>
+ * An {@link OutputSink} that keeps everything printed to it, for tests.
+ */
+public class CollectingSink implements OutputSink {
+
+    private final List<Integer> values = new ArrayList<>();
+    private final List<String> lines = new ArrayList<>();
+
+    @Override
+    public void print(int value) {
+        values.add(value);
+        lines.add(Integer.toString(value));
+    }
+
+    @Override
+    public void print(String line) {
+        lines.add(line);
+    }
+
+    /**
+     * The values printed, in order, without the lines of text.
+     * @return the values
+     */
+    public List<Integer> getValues() {
+        return values;
+    }
+
+    /**
+     * Everything printed, values and text, a line at a time.
+     * @return the lines
+     */
+    public List<String> getLines() {
+        return lines;
+    }
+
+    public void clear() {
+        values.clear();
+        lines.clear();
+    }
+
+}
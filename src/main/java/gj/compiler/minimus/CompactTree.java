@@ -0,0 +1,191 @@
+package gj.compiler.minimus;
+
+import java.util.Arrays;
+
+import static gj.compiler.minimus.Parser.Node;
+import static gj.compiler.minimus.Parser.NodeType;
+
+/**
+ * ~ Compact Syntax Tree ~
+ * <p/>
+ * An alternative representation of the syntax tree produced by the
+ * {@link Parser}.  Instead of an object per node, each with its own list of
+ * children, the nodes live in a handful of flat int arrays ("arenas") and a
+ * node is simply an index into them:
+ * <pre>
+ *   kind[n]         the NodeType ordinal
+ *   firstChild[n]   index of the first child, or -1 for a leaf
+ *   nextSibling[n]  index of the next child of the same parent, or -1
+ *   payload[n]      the decoded value: the integer of NODE_INTEGER and the
+ *                   variable index (0 for "a" to 25 for "z") of NODE_VARIABLE
+ *                   and NODE_ASSIGNMENT
+ * </pre>
+ * Nodes are stored in pre-order, so a parent is always directly followed by
+ * its first child and a whole subtree occupies a contiguous range of the
+ * arrays.  Walking the tree therefore moves forward through memory.
+ * <p/>
+ * The tree is read through a cursor style API: start at {@link #root()} and
+ * navigate with {@link #firstChild(int)} and {@link #nextSibling(int)}.
+ */
+public class CompactTree {
+
+    public static final int NONE = -1;
+
+    private static final NodeType[] TYPES = NodeType.values();
+
+    private int[] kinds;
+    private int[] firstChildren;
+    private int[] nextSiblings;
+    private int[] payloads;
+    private int count = 0;
+
+    private CompactTree(int capacity) {
+        kinds = new int[capacity];
+        firstChildren = new int[capacity];
+        nextSiblings = new int[capacity];
+        payloads = new int[capacity];
+    }
+
+    /**
+     * Parses a program straight into a compact tree, using the packed
+     * {@link TokenBuffer} for the tokens and the iterative path of the
+     * parser, so there is no intermediate object tree and no limit on the
+     * nesting but the heap.
+     * @param program the source of the program
+     * @return the compact tree
+     */
+    public static CompactTree parse(String program) {
+        return new Parser(TokenBuffer.tokenize(program)).parseCompact();
+    }
+
+    /**
+     * Converts an object tree into a compact tree.
+     * @param root the root of the tree as returned by Parser.parse()
+     * @return the compact tree
+     */
+    public static CompactTree of(Node root) {
+        CompactTree tree = new CompactTree(16);
+        tree.add(root);
+        return tree;
+    }
+
+    /* Adds the node and its subtree in pre-order and returns its index. */
+    private int add(Node node) {
+        if (node.type == NodeType.NODE_DEFERRED) {
+            node = ((Parser.DeferredNode) node).resolve();
+        }
+        int index = allocate();
+        kinds[index] = node.type.ordinal();
+        payloads[index] = decode(node);
+        firstChildren[index] = NONE;
+        nextSiblings[index] = NONE;
+
+        int previous = NONE;
+        for (Node child : node.children) {
+            int childIndex = add(child);
+            if (previous == NONE) {
+                firstChildren[index] = childIndex;
+            } else {
+                nextSiblings[previous] = childIndex;
+            }
+            previous = childIndex;
+        }
+        return index;
+    }
+
+    /* Puts nodes that were built in any order into a tree in pre-order.  The
+       nodes still to be copied are kept on a stack: the first child of a
+       node goes on top of its next sibling, so a subtree is copied before the
+       nodes after it. */
+    static CompactTree preOrder(int[] kinds, int[] payloads, int[] firstChildren, int[] nextSiblings,
+                                int count, int root) {
+        CompactTree tree = new CompactTree(count);
+        int[] indices = new int[count];
+        IntStack pending = new IntStack();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            int node = pending.pop();
+            indices[node] = tree.allocate();
+            if (node != root && nextSiblings[node] != NONE) {
+                pending.push(nextSiblings[node]);
+            }
+            if (firstChildren[node] != NONE) {
+                pending.push(firstChildren[node]);
+            }
+        }
+        for (int node = 0; node < count; node++) {
+            int index = indices[node];
+            tree.kinds[index] = kinds[node];
+            tree.payloads[index] = payloads[node];
+            tree.firstChildren[index] = firstChildren[node] == NONE ? NONE : indices[firstChildren[node]];
+            tree.nextSiblings[index] = nextSiblings[node] == NONE || node == root ? NONE : indices[nextSiblings[node]];
+        }
+        return tree;
+    }
+
+    private static int decode(Node node) {
+        switch (node.type) {
+            case NODE_INTEGER:
+                return node.decoded ? node.number : Integer.parseInt(node.value);
+            case NODE_VARIABLE:
+            case NODE_ASSIGNMENT:
+                return Frame.slotOf(node.value);
+            default:
+                return 0;
+        }
+    }
+
+    private int allocate() {
+        if (count == kinds.length) {
+            int capacity = count * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            firstChildren = Arrays.copyOf(firstChildren, capacity);
+            nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+            payloads = Arrays.copyOf(payloads, capacity);
+        }
+        return count++;
+    }
+
+    /**
+     * The number of nodes in the tree.
+     * @return number of nodes
+     */
+    public int size() {
+        return count;
+    }
+
+    public int root() {
+        return 0;
+    }
+
+    public NodeType kind(int node) {
+        return TYPES[kinds[node]];
+    }
+
+    public int firstChild(int node) {
+        return firstChildren[node];
+    }
+
+    public int nextSibling(int node) {
+        return nextSiblings[node];
+    }
+
+    public int payload(int node) {
+        return payloads[node];
+    }
+
+    /**
+     * Returns the i-th child of a node, or NONE if there is no such child.
+     * @param node parent node
+     * @param i zero based index of the child
+     * @return index of the child
+     */
+    public int child(int node, int i) {
+        int child = firstChildren[node];
+        while (i-- > 0 && child != NONE) {
+            child = nextSiblings[child];
+        }
+        return child;
+    }
+
+}
@@ -1,4 +1,807 @@
 package gj.compiler.minimus;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static gj.compiler.minimus.Parser.Node;
+import static gj.compiler.minimus.Parser.NodeType;
+
+/**
+ * ~ Compiler ~
+ * <p/>
+ * Translates a program into the assembly language of the
+ * {@link VirtualMachine}, so that it can be compiled once and run many times.
+ * <p/>
+ * The tree is first simplified by the {@link Optimizer}.  It is then lowered
+ * to a list of instructions that work on an unlimited number of "virtual
+ * registers": one for every variable, and a fresh one for every intermediate
+ * result.  Finally, the virtual registers are mapped onto the machine
+ * registers by a linear scan allocator:
+ * <ul>
+ * <li>every virtual register gets a live interval, from the first to the last
+ *     instruction that mentions it.  A variable that is used inside a loop
+ *     stays live for the whole loop, since the loop may come round to it
+ *     again;</li>
+ * <li>the intervals are handed r1 to r9 in the order in which they start.
+ *     When none is free, the interval that ends last is spilled to the data
+ *     section and is loaded and stored around every instruction that uses
+ *     it.  Once anything is spilled, r8 and r9 are kept free for that, and
+ *     the allocation is done again with r1 to r7.</li>
+ * </ul>
+ * r0 is never allocated: it holds memory addresses and the system call code.
+ * <p/>
+ * Every variable has a home in the data section (see {@link #getVariables()}).
+ * A variable in a register is written to its home once it is no longer
+ * needed, at the end of the top-level statement that used it last, so that
+ * all the variables are in memory when the program halts.
+ * <p/>
+ * The machine has no notion of an undefined variable, so the compiled
+ * program keeps track of it where it has to.  Like the Optimizer, the
+ * compiler knows which variables are definitely assigned at every point.  A
+ * variable that may not be gets a second word in the data section (see
+ * {@link #getDefined()}), which is set when it is assigned, and a read of it
+ * where it may not be assigned checks that word first and fails with system
+ * call 2, as the Interpreter does.  Integer literals that do not fit in an
+ * int are rejected.
+ */
 public class Compiler {
+
+    private static final int DATA_SECTION_START = 0x1000;
+
+    /* The registers handed out by the allocator, with and without r8 and r9
+       kept free for spilled values. */
+    private static final int[] REGISTERS = {1, 2, 3, 4, 5, 6, 7, 8, 9};
+    private static final int[] REGISTERS_WITH_SCRATCH = {1, 2, 3, 4, 5, 6, 7};
+    private static final String SCRATCH_SOURCE = "r8", SCRATCH_TARGET = "r9";
+
+    /* The instruction that prints r1 expects its value there. */
+    private static final int PRINT_REGISTER = 1;
+
+    private final Optimizer optimizer = new Optimizer();
+
+    private Map<String, Integer> variables;
+    private Map<String, Integer> defined;
+    private int spilled;
+
+    /* The state while compiling a program. */
+    private List<Insn> code;
+    private List<VirtualRegister> registers;
+    private Map<String, VirtualRegister> variableRegisters;
+    private List<int[]> loops;
+    private List<Integer> flushes;
+
+    /* The variables (bit 0 for "a") that have definitely been assigned at the
+       point being lowered. */
+    private int assigned;
+    private int labelCount;
+
+    /**
+     * Parses and compiles a program.
+     * @param program the source of the program
+     * @return the assembly
+     */
+    public String compile(String program) {
+        return compile(new Parser(program).parse());
+    }
+
+    /**
+     * Compiles a program.
+     * @param root the root of the tree as returned by Parser.parse()
+     * @return the assembly, with a .data and a .code section
+     */
+    public String compile(Node root) {
+        root = optimizer.optimize(root);
+
+        code = new ArrayList<>();
+        registers = new ArrayList<>();
+        variableRegisters = new LinkedHashMap<>();
+        loops = new ArrayList<>();
+        flushes = new ArrayList<>();
+        assigned = 0;
+        labelCount = 0;
+
+        if (root.type == NodeType.NODE_SEQUENCE) {
+            for (Node statement : root.children) {
+                statement(statement);
+                flush();
+            }
+        } else {
+            statement(root);
+            flush();
+        }
+
+        computeIntervals();
+        if (!allocate(REGISTERS)) {
+            allocate(REGISTERS_WITH_SCRATCH);
+        }
+        return emit();
+    }
+
+    /**
+     * The variables of the program last compiled, and the addresses of their
+     * homes in memory, in the order they first appear.
+     * @return addresses by variable name
+     */
+    public Map<String, Integer> getVariables() {
+        return variables;
+    }
+
+    /**
+     * The addresses of the words that tell whether a variable has been
+     * assigned (1) or not (0) in the program last compiled, for the variables
+     * that may not be.  The others are always assigned before they are used
+     * or the program halts.
+     * @return addresses by variable name
+     */
+    public Map<String, Integer> getDefined() {
+        return defined;
+    }
+
+    /**
+     * The number of virtual registers that had to be spilled to memory in the
+     * program last compiled.
+     * @return number of spilled registers
+     */
+    public int getSpilled() {
+        return spilled;
+    }
+
+    public Optimizer getOptimizer() {
+        return optimizer;
+    }
+
+    /* ---- Lowering ---------------------------------------------------- */
+
+    /* An operand of an instruction: a virtual register, a constant or a
+       label. */
+    private static class Operand {
+        final VirtualRegister register;
+        final int constant;
+        final String label;
+
+        Operand(VirtualRegister register, int constant, String label) {
+            this.register = register;
+            this.constant = constant;
+            this.label = label;
+        }
+
+        boolean isConstant() {
+            return register == null && label == null;
+        }
+    }
+
+    /* An instruction, before registers are allocated.  Besides the machine
+       instructions there are a few pseudo instructions: LABEL, PRINT (with
+       the value in any register), FLUSH (the end of a top-level statement),
+       CHECK (fail unless the variable has been assigned, else go on at the
+       label) and DEFINE (the variable has been assigned). */
+    private static class Insn {
+        final String op;
+        final Operand a;
+        final Operand b;
+
+        Insn(String op, Operand a, Operand b) {
+            this.op = op;
+            this.a = a;
+            this.b = b;
+        }
+    }
+
+    private static class VirtualRegister {
+        final String variable; // null for an intermediate result
+        int start = -1;
+        int end = -1;
+        int register = 0;      // 0 if spilled
+        int address;
+
+        /* Whether the first instruction that mentions the register only
+           writes it, so that it may share a register with an interval that
+           ends at that instruction. */
+        boolean startsWithWrite;
+
+        /* Whether the variable may be read, or be written to its home,
+           before it is assigned, so that it needs a word that tells. */
+        boolean mayBeUndefined;
+        int definedAddress;
+
+        VirtualRegister(String variable) {
+            this.variable = variable;
+        }
+    }
+
+    private void statement(Node node) {
+        switch (node.type) {
+            case NODE_SEQUENCE:
+                for (Node child : node.children) {
+                    statement(child);
+                }
+                break;
+            case NODE_ASSIGNMENT:
+                value(node);
+                break;
+            case NODE_IF: {
+                String otherwise = newLabel();
+                branchIfFalse(node.children.get(0), otherwise);
+                // Only what is assigned in both arms is definitely assigned afterwards.
+                int before = assigned;
+                statement(node.children.get(1));
+                int afterThen = assigned;
+                assigned = before;
+                if (node.children.size() > 2) {
+                    String end = newLabel();
+                    add("JMP", label(end), null);
+                    add("LABEL", label(otherwise), null);
+                    statement(node.children.get(2));
+                    add("LABEL", label(end), null);
+                } else {
+                    add("LABEL", label(otherwise), null);
+                }
+                assigned &= afterThen;
+                break;
+            }
+            case NODE_WHILE: {
+                String top = newLabel();
+                String exit = newLabel();
+                int start = code.size();
+                add("LABEL", label(top), null);
+                branchIfFalse(node.children.get(0), exit);
+                // The body may not run at all, so what it assigns does not count afterwards.
+                int before = assigned;
+                statement(node.children.get(1));
+                assigned = before;
+                add("JMP", label(top), null);
+                loops.add(new int[]{start, code.size() - 1});
+                add("LABEL", label(exit), null);
+                break;
+            }
+            case NODE_PRINT:
+                add("PRINT", value(node.children.get(0)), null);
+                break;
+            case NODE_EMPTY:
+                break;
+            default:
+                throw new RuntimeException(String.format("Unexpected %s (line %d)", node.type, node.line));
+        }
+    }
+
+    /* Compiles an expression and returns where its value is: a constant, the
+       register of a variable (which must not be modified) or a fresh
+       register. */
+    private Operand value(Node node) {
+        switch (node.type) {
+            case NODE_INTEGER:
+                if (!node.decoded) {
+                    throw new RuntimeException(String.format("Integer too large: %s (line %d)", node.value, node.line));
+                }
+                return constant(node.number);
+            case NODE_VARIABLE: {
+                Operand variable = new Operand(variable(node.value), 0, null);
+                if ((assigned & bit(node.value)) == 0) {
+                    variable.register.mayBeUndefined = true;
+                    add("CHECK", variable, label(newLabel()));
+                }
+                return variable;
+            }
+            case NODE_ASSIGNMENT: {
+                Operand value = value(node.children.get(0));
+                Operand target = new Operand(variable(node.value), 0, null);
+                move(value, target);
+                if ((assigned & bit(node.value)) == 0) {
+                    add("DEFINE", target, null);
+                }
+                assigned |= bit(node.value);
+                return target;
+            }
+            case NODE_LESS_THAN:
+            case NODE_GREATER_THAN:
+            case NODE_LESS_EQUAL_THAN:
+            case NODE_GREATER_EQUAL_THAN:
+            case NODE_EQUALS:
+            case NODE_NOT_EQUALS:
+                return comparison(node);
+            default:
+                return arithmetic(node);
+        }
+    }
+
+    /* "ADD ri, rj" leaves ri + rj in rj, so the result goes where the right
+       operand is, after copying it into a fresh register if need be. */
+    private Operand arithmetic(Node node) {
+        Operand left = value(node.children.get(0));
+        if (isVariable(left) && hasAssignment(node.children.get(1))) {
+            // The right operand may change the variable; use its value from before.
+            left = copy(left);
+        }
+        Operand right = value(node.children.get(1));
+        Operand result = isTemporary(right) ? right : copy(right);
+
+        String op;
+        switch (node.type) {
+            case NODE_ADDITION:
+                op = "ADD";
+                break;
+            case NODE_SUBTRACTION:
+                op = "SUB";
+                break;
+            case NODE_MULTIPLY:
+                op = "MUL";
+                break;
+            case NODE_DIVIDE:
+                op = "DIV";
+                break;
+            default:
+                throw new RuntimeException("Unsupported comparison/operation!");
+        }
+        add(left.isConstant() ? op + "I" : op, left, result);
+        return result;
+    }
+
+    /* A comparison whose value is needed: 1 or 0. */
+    private Operand comparison(Node node) {
+        NodeType type = compare(node);
+        Operand result = temporary();
+        String done = newLabel();
+        add("MOVI", constant(1), result);
+        add(jumpIf(type), label(done), null);
+        add("MOVI", constant(0), result);
+        add("LABEL", label(done), null);
+        return result;
+    }
+
+    /* Jumps to the label if the condition does not hold. */
+    private void branchIfFalse(Node node, String target) {
+        switch (node.type) {
+            case NODE_LESS_THAN:
+            case NODE_GREATER_THAN:
+            case NODE_LESS_EQUAL_THAN:
+            case NODE_GREATER_EQUAL_THAN:
+            case NODE_EQUALS:
+            case NODE_NOT_EQUALS: {
+                add(jumpIf(negate(compare(node))), label(target), null);
+                return;
+            }
+        }
+        Operand value = value(node);
+        if (value.isConstant()) {
+            if (value.constant == 0) {
+                add("JMP", label(target), null);
+            }
+            return;
+        }
+        add("CMPI", value, constant(0));
+        add("JE", label(target), null);
+    }
+
+    /* Emits the CMP of a comparison and returns the comparison that the flags
+       should be tested for, which is reversed if the operands were swapped to
+       get the constant on the right. */
+    private NodeType compare(Node node) {
+        Operand left = value(node.children.get(0));
+        if (isVariable(left) && hasAssignment(node.children.get(1))) {
+            left = copy(left);
+        }
+        Operand right = value(node.children.get(1));
+        NodeType type = node.type;
+        if (left.isConstant() && right.isConstant()) {
+            left = copy(left);
+        } else if (left.isConstant()) {
+            Operand swap = left;
+            left = right;
+            right = swap;
+            type = reverse(type);
+        }
+        add(right.isConstant() ? "CMPI" : "CMP", left, right);
+        return type;
+    }
+
+    private static String jumpIf(NodeType type) {
+        switch (type) {
+            case NODE_LESS_THAN:
+                return "JL";
+            case NODE_GREATER_THAN:
+                return "JG";
+            case NODE_LESS_EQUAL_THAN:
+                return "JLE";
+            case NODE_GREATER_EQUAL_THAN:
+                return "JGE";
+            case NODE_EQUALS:
+                return "JE";
+            case NODE_NOT_EQUALS:
+                return "JNE";
+        }
+        throw new IllegalArgumentException("No jump for " + type);
+    }
+
+    private static NodeType negate(NodeType type) {
+        switch (type) {
+            case NODE_LESS_THAN:
+                return NodeType.NODE_GREATER_EQUAL_THAN;
+            case NODE_GREATER_THAN:
+                return NodeType.NODE_LESS_EQUAL_THAN;
+            case NODE_LESS_EQUAL_THAN:
+                return NodeType.NODE_GREATER_THAN;
+            case NODE_GREATER_EQUAL_THAN:
+                return NodeType.NODE_LESS_THAN;
+            case NODE_EQUALS:
+                return NodeType.NODE_NOT_EQUALS;
+            default:
+                return NodeType.NODE_EQUALS;
+        }
+    }
+
+    /* "c < x" is "x > c". */
+    private static NodeType reverse(NodeType type) {
+        switch (type) {
+            case NODE_LESS_THAN:
+                return NodeType.NODE_GREATER_THAN;
+            case NODE_GREATER_THAN:
+                return NodeType.NODE_LESS_THAN;
+            case NODE_LESS_EQUAL_THAN:
+                return NodeType.NODE_GREATER_EQUAL_THAN;
+            case NODE_GREATER_EQUAL_THAN:
+                return NodeType.NODE_LESS_EQUAL_THAN;
+            default:
+                return type;
+        }
+    }
+
+    private static boolean hasAssignment(Node node) {
+        if (node.type == NodeType.NODE_ASSIGNMENT) {
+            return true;
+        }
+        for (Node child : node.children) {
+            if (hasAssignment(child)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Operand copy(Operand value) {
+        Operand result = temporary();
+        move(value, result);
+        return result;
+    }
+
+    private void move(Operand value, Operand target) {
+        add(value.isConstant() ? "MOVI" : "MOV", value, target);
+    }
+
+    /* Ends a top-level statement, where the variables are written to their
+       homes: one that was only assigned on some paths is written as well. */
+    private void flush() {
+        for (VirtualRegister register : variableRegisters.values()) {
+            if ((assigned & bit(register.variable)) == 0) {
+                register.mayBeUndefined = true;
+            }
+        }
+        flushes.add(code.size());
+        add("FLUSH", null, null);
+    }
+
+    private VirtualRegister variable(String name) {
+        return variableRegisters.computeIfAbsent(name, n -> {
+            VirtualRegister register = new VirtualRegister(n);
+            registers.add(register);
+            return register;
+        });
+    }
+
+    private Operand temporary() {
+        VirtualRegister register = new VirtualRegister(null);
+        registers.add(register);
+        return new Operand(register, 0, null);
+    }
+
+    private static int bit(String variable) {
+        return 1 << Frame.slotOf(variable);
+    }
+
+    private static boolean isVariable(Operand operand) {
+        return operand.register != null && operand.register.variable != null;
+    }
+
+    private static boolean isTemporary(Operand operand) {
+        return operand.register != null && operand.register.variable == null;
+    }
+
+    private static Operand constant(int value) {
+        return new Operand(null, value, null);
+    }
+
+    private static Operand label(String name) {
+        return new Operand(null, 0, name);
+    }
+
+    private String newLabel() {
+        return "L" + (++labelCount);
+    }
+
+    private void add(String op, Operand a, Operand b) {
+        code.add(new Insn(op, a, b));
+    }
+
+    /* ---- Register allocation ----------------------------------------- */
+
+    private void computeIntervals() {
+        for (int i = 0; i < code.size(); i++) {
+            Insn insn = code.get(i);
+            mention(insn.a, i);
+            if (insn.b != null && insn.b.register != null && insn.b.register.start < 0) {
+                insn.b.register.startsWithWrite = insn.op.equals("MOV") || insn.op.equals("MOVI");
+            }
+            mention(insn.b, i);
+        }
+
+        // A variable used in a loop is live for all of it (and of any loop
+        // around it, hence the repeat).
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (VirtualRegister register : registers) {
+                if (register.variable == null) {
+                    continue;
+                }
+                for (int[] loop : loops) {
+                    boolean inside = register.start <= loop[1] && register.end >= loop[0];
+                    if (inside && (register.start > loop[0] || register.end < loop[1])) {
+                        register.start = Math.min(register.start, loop[0]);
+                        register.end = Math.max(register.end, loop[1]);
+                        changed = true;
+                    }
+                }
+            }
+        }
+
+        // A variable is written to memory at the end of the top-level
+        // statement that uses it last.
+        for (VirtualRegister register : registers) {
+            if (register.variable != null) {
+                for (int flush : flushes) {
+                    if (flush >= register.end) {
+                        register.end = flush;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void mention(Operand operand, int position) {
+        if (operand != null && operand.register != null) {
+            VirtualRegister register = operand.register;
+            if (register.start < 0) {
+                register.start = position;
+            }
+            register.end = position;
+        }
+    }
+
+    /* Linear scan.  Returns false if something was spilled. */
+    private boolean allocate(int[] available) {
+        List<VirtualRegister> intervals = new ArrayList<>();
+        for (VirtualRegister register : registers) {
+            if (register.start >= 0) {
+                register.register = 0;
+                intervals.add(register);
+            }
+        }
+        intervals.sort(Comparator.comparingInt(r -> r.start));
+
+        List<VirtualRegister> active = new ArrayList<>(); // sorted by end
+        boolean[] free = new boolean[10];
+        for (int r : available) {
+            free[r] = true;
+        }
+        spilled = 0;
+
+        for (VirtualRegister interval : intervals) {
+            // Expire the intervals that ended before this one starts.
+            while (!active.isEmpty() && (active.get(0).end < interval.start
+                    || (active.get(0).end == interval.start && interval.startsWithWrite))) {
+                free[active.remove(0).register] = true;
+            }
+
+            int register = 0;
+            for (int r : available) {
+                if (free[r]) {
+                    register = r;
+                    break;
+                }
+            }
+            if (register == 0) {
+                VirtualRegister last = active.get(active.size() - 1);
+                spilled++;
+                if (last.end > interval.end) {
+                    register = last.register;
+                    last.register = 0;
+                    active.remove(active.size() - 1);
+                } else {
+                    continue;
+                }
+            }
+            interval.register = register;
+            free[register] = false;
+            int i = 0;
+            while (i < active.size() && active.get(i).end <= interval.end) {
+                i++;
+            }
+            active.add(i, interval);
+        }
+        return spilled == 0;
+    }
+
+    /* ---- Emitting ---------------------------------------------------- */
+
+    private String emit() {
+        // Homes for the variables, then for the spilled intermediate results.
+        variables = new LinkedHashMap<>();
+        List<String> data = new ArrayList<>();
+        for (VirtualRegister register : variableRegisters.values()) {
+            register.address = DATA_SECTION_START + data.size();
+            variables.put(register.variable, register.address);
+            data.add(register.variable);
+        }
+        defined = new LinkedHashMap<>();
+        for (VirtualRegister register : variableRegisters.values()) {
+            if (register.mayBeUndefined) {
+                register.definedAddress = DATA_SECTION_START + data.size();
+                defined.put(register.variable, register.definedAddress);
+                data.add(register.variable + " defined");
+            }
+        }
+        for (VirtualRegister register : registers) {
+            if (register.variable == null && register.start >= 0 && register.register == 0) {
+                register.address = DATA_SECTION_START + data.size();
+                data.add("spill");
+            }
+        }
+
+        StringBuilder b = new StringBuilder();
+        b.append(".data\n");
+        for (int i = 0; i < data.size(); i++) {
+            line(b, "0", String.format("0x%x %s", DATA_SECTION_START + i, data.get(i)));
+        }
+        b.append(".code\n");
+        for (int i = 0; i < code.size(); i++) {
+            emit(b, code.get(i), i);
+        }
+        b.append("HALT\n");
+        return b.toString();
+    }
+
+    private void emit(StringBuilder b, Insn insn, int position) {
+        switch (insn.op) {
+            case "LABEL":
+                b.append(':').append(insn.a.label).append('\n');
+                return;
+            case "JMP":
+            case "JE":
+            case "JNE":
+            case "JL":
+            case "JLE":
+            case "JG":
+            case "JGE":
+                line(b, insn.op + " :" + insn.a.label, null);
+                return;
+            case "FLUSH":
+                for (VirtualRegister register : variableRegisters.values()) {
+                    if (register.end == position && register.register != 0) {
+                        line(b, String.format("MOVI 0x%x, r0", register.address), null);
+                        line(b, "STORE " + name(register) + ", r0", register.variable);
+                    }
+                }
+                return;
+            case "PRINT":
+                emitPrint(b, insn.a);
+                return;
+            case "CHECK": {
+                VirtualRegister variable = insn.a.register;
+                line(b, String.format("LOADI 0x%x, r0", variable.definedAddress), null);
+                line(b, "CMPI r0, 0", null);
+                line(b, "JNE :" + insn.b.label, null);
+                line(b, "MOVI 2, r0", null);
+                line(b, "MOVI " + Frame.slotOf(variable.variable) + ", r1", null);
+                line(b, "SYSCALL", variable.variable + " is undefined");
+                b.append(':').append(insn.b.label).append('\n');
+                return;
+            }
+            case "DEFINE":
+                if (insn.a.register.mayBeUndefined) {
+                    line(b, String.format("MOVI 0x%x, r0", insn.a.register.definedAddress), null);
+                    line(b, "STOREI 1, r0", insn.a.register.variable + " defined");
+                }
+                return;
+            case "MOVI":
+                if (insn.b.register.register == 0) {
+                    line(b, String.format("MOVI 0x%x, r0", insn.b.register.address), null);
+                    line(b, "STOREI " + insn.a.constant + ", r0", null);
+                } else {
+                    line(b, "MOVI " + insn.a.constant + ", " + name(insn.b.register), null);
+                }
+                return;
+            case "MOV": {
+                VirtualRegister target = insn.b.register;
+                if (insn.a.register.register == 0 && target.register != 0) {
+                    line(b, String.format("LOADI 0x%x, %s", insn.a.register.address, name(target)), null);
+                    return;
+                }
+                String source = use(b, insn.a, SCRATCH_SOURCE);
+                if (target.register == 0) {
+                    line(b, String.format("MOVI 0x%x, r0", target.address), null);
+                    line(b, "STORE " + source + ", r0", null);
+                } else if (!source.equals(name(target))) {
+                    line(b, "MOV " + source + ", " + name(target), null);
+                }
+                return;
+            }
+            case "CMP":
+                line(b, "CMP " + use(b, insn.a, SCRATCH_SOURCE) + ", " + use(b, insn.b, SCRATCH_TARGET), null);
+                return;
+            case "CMPI":
+                line(b, "CMPI " + use(b, insn.a, SCRATCH_SOURCE) + ", " + insn.b.constant, null);
+                return;
+            default: {
+                // ADD, SUB, MUL, DIV and their immediate forms: the target is
+                // read and written.
+                String source = insn.a.isConstant() ? Integer.toString(insn.a.constant) : use(b, insn.a, SCRATCH_SOURCE);
+                String target = use(b, insn.b, SCRATCH_TARGET);
+                line(b, insn.op + " " + source + ", " + target, null);
+                if (insn.b.register.register == 0) {
+                    line(b, String.format("MOVI 0x%x, r0", insn.b.register.address), null);
+                    line(b, "STORE " + target + ", r0", null);
+                }
+            }
+        }
+    }
+
+    /* "print" is system call 1, which prints r1. */
+    private void emitPrint(StringBuilder b, Operand value) {
+        boolean inPlace = value.register != null && value.register.register == PRINT_REGISTER;
+        if (!inPlace) {
+            line(b, "PUSH r1", null);
+            if (value.isConstant()) {
+                line(b, "MOVI " + value.constant + ", r1", null);
+            } else if (value.register.register == 0) {
+                line(b, String.format("LOADI 0x%x, r1", value.register.address), null);
+            } else {
+                line(b, "MOV " + name(value.register) + ", r1", null);
+            }
+        }
+        line(b, "MOVI 1, r0", null);
+        line(b, "SYSCALL", "print");
+        if (!inPlace) {
+            line(b, "POP r1", null);
+        }
+    }
+
+    /* The register an operand is in, loading it into the scratch register
+       first if it was spilled. */
+    private String use(StringBuilder b, Operand operand, String scratch) {
+        VirtualRegister register = operand.register;
+        if (register.register == 0) {
+            line(b, String.format("LOADI 0x%x, %s", register.address, scratch), null);
+            return scratch;
+        }
+        return name(register);
+    }
+
+    private static String name(VirtualRegister register) {
+        return "r" + register.register;
+    }
+
+    private static void line(StringBuilder b, String instruction, String comment) {
+        b.append(instruction);
+        if (comment != null) {
+            char[] padding = new char[Math.max(1, 24 - instruction.length())];
+            Arrays.fill(padding, ' ');
+            b.append(padding).append("; ").append(comment);
+        }
+        b.append('\n');
+    }
+
 }
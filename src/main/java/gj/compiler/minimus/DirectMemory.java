@@ -0,0 +1,180 @@
+package gj.compiler.minimus;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * ~ Direct Memory ~
+ * <p/>
+ * A {@link Memory} of up to 2^32 ints outside the heap.  It is sparse: the
+ * memory is made up of pages of PAGE_SIZE ints, each a direct ByteBuffer,
+ * and a page is only allocated (and filled from the image) the first time
+ * it is read or written.  The pages are found through a two level table:
+ * <pre>
+ *   address:  | table (10 bits) | page (10 bits) | offset (12 bits) |
+ * </pre>
+ * so a memory that is only used in a few places only has a few small
+ * tables.
+ * <p/>
+ * Looking a page up in the tables for every LOAD and STORE would cost more
+ * than the access itself, so the memory remembers the last pages used in a
+ * small cache, indexed by the lowest bits of the page number.  A program
+ * that keeps its variables in one place and its stack in another finds both
+ * in the cache.  Writes have a cache of their own, and a write that misses
+ * it marks its page as written in a bitmap next to the table, so reset()
+ * only fills the pages that were written again, like {@link HeapMemory}.
+ */
+final class DirectMemory extends Memory {
+
+    static final int PAGE_BITS = 12;
+    static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int TABLE_BITS = 10;
+    private static final int TABLE_SIZE = 1 << TABLE_BITS;
+    private static final int TABLE_MASK = TABLE_SIZE - 1;
+
+    private static final int CACHE_SIZE = 4;
+    private static final int CACHE_MASK = CACHE_SIZE - 1;
+
+    private final Image image;
+    private final long size;
+    private final IntBuffer[][] tables;
+
+    /* A bit for every page of a table, set once the page is written. */
+    private final long[][] writtenBits;
+
+    /* The cache of the last pages used.  No page has number -1. */
+    private final int[] cachedPages = new int[CACHE_SIZE];
+    private final IntBuffer[] cachedBuffers = new IntBuffer[CACHE_SIZE];
+
+    /* The cache of the last pages written, which are all marked as written
+       already.  It is emptied by reset(). */
+    private final int[] writtenPages = new int[CACHE_SIZE];
+    private final IntBuffer[] writtenBuffers = new IntBuffer[CACHE_SIZE];
+
+    /* The pages written since the last reset. */
+    private int[] dirty = new int[16];
+    private int dirtyCount = 0;
+
+    DirectMemory(Image image, long size) {
+        checkImage(image, size);
+        this.image = image;
+        this.size = size;
+        long pages = (size + PAGE_SIZE - 1) >>> PAGE_BITS;
+        this.tables = new IntBuffer[(int) ((pages + TABLE_SIZE - 1) >>> TABLE_BITS)][];
+        this.writtenBits = new long[tables.length][];
+        Arrays.fill(cachedPages, -1);
+        Arrays.fill(writtenPages, -1);
+    }
+
+    @Override
+    public int read(int address) {
+        int page = address >>> PAGE_BITS;
+        int slot = page & CACHE_MASK;
+        IntBuffer buffer = cachedPages[slot] == page ? cachedBuffers[slot] : lookup(page, address);
+        return buffer.get(address & PAGE_MASK);
+    }
+
+    @Override
+    public void write(int address, int value) {
+        int page = address >>> PAGE_BITS;
+        int slot = page & CACHE_MASK;
+        IntBuffer buffer = writtenPages[slot] == page ? writtenBuffers[slot] : markWritten(page, address);
+        buffer.put(address & PAGE_MASK, value);
+    }
+
+    /* Finds a page that is about to be written, marks it as written and
+       puts it in the write cache. */
+    private IntBuffer markWritten(int page, int address) {
+        IntBuffer buffer = cachedPages[page & CACHE_MASK] == page
+                ? cachedBuffers[page & CACHE_MASK] : lookup(page, address);
+        long[] bits = writtenBits[page >>> TABLE_BITS];
+        long bit = 1L << (page & 63);
+        int word = (page & TABLE_MASK) >>> 6;
+        if ((bits[word] & bit) == 0) {
+            bits[word] |= bit;
+            if (dirtyCount == dirty.length) {
+                dirty = Arrays.copyOf(dirty, dirtyCount * 2);
+            }
+            dirty[dirtyCount++] = page;
+        }
+        int slot = page & CACHE_MASK;
+        writtenPages[slot] = page;
+        writtenBuffers[slot] = buffer;
+        return buffer;
+    }
+
+    /* Finds a page in the tables (allocating it if it is used for the first
+       time) and puts it in the cache. */
+    private IntBuffer lookup(int page, int address) {
+        if (Integer.toUnsignedLong(address) >= size) {
+            throw new IndexOutOfBoundsException(String.format("Address outside memory: %d", address));
+        }
+        IntBuffer[] table = tables[page >>> TABLE_BITS];
+        if (table == null) {
+            table = tables[page >>> TABLE_BITS] = new IntBuffer[TABLE_SIZE];
+            writtenBits[page >>> TABLE_BITS] = new long[TABLE_SIZE / Long.SIZE];
+        }
+        IntBuffer buffer = table[page & TABLE_MASK];
+        if (buffer == null) {
+            buffer = table[page & TABLE_MASK] = allocate(page);
+        }
+        int slot = page & CACHE_MASK;
+        cachedPages[slot] = page;
+        cachedBuffers[slot] = buffer;
+        return buffer;
+    }
+
+    /* The last page is shorter if the size is not a multiple of PAGE_SIZE,
+       so that an address past the end fails even when its page is cached. */
+    private IntBuffer allocate(int page) {
+        long start = (long) page << PAGE_BITS;
+        int length = (int) Math.min(PAGE_SIZE, size - start);
+        IntBuffer buffer = ByteBuffer.allocateDirect(length * Integer.BYTES)
+                .order(ByteOrder.nativeOrder())
+                .asIntBuffer();
+        fill(buffer, start, false);
+        return buffer;
+    }
+
+    /* Fills a page with its part of the image.  A new direct buffer is
+       already all zeros, a page that is being reset has to be cleared. */
+    private void fill(IntBuffer buffer, long start, boolean clear) {
+        buffer.clear();
+        if (start < image.length()) {
+            buffer.put(image.contents, (int) start, (int) Math.min(buffer.capacity(), image.length() - start));
+        }
+        while (clear && buffer.hasRemaining()) {
+            buffer.put(0);
+        }
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    /* Only fills the pages that were written again.  Every page stays
+       allocated for the next run. */
+    @Override
+    public void reset() {
+        for (int i = 0; i < dirtyCount; i++) {
+            int page = dirty[i];
+            fill(tables[page >>> TABLE_BITS][page & TABLE_MASK], (long) page << PAGE_BITS, true);
+            writtenBits[page >>> TABLE_BITS][(page & TABLE_MASK) >>> 6] &= ~(1L << (page & 63));
+        }
+        dirtyCount = 0;
+        Arrays.fill(writtenPages, -1);
+        Arrays.fill(writtenBuffers, null);
+    }
+
+    /* The pages written, as for HeapMemory; pages that were only read are
+       the same as the image. */
+    @Override
+    public int pagesUsed() {
+        return dirtyCount;
+    }
+
+}
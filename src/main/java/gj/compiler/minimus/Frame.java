@@ -0,0 +1,134 @@
+package gj.compiler.minimus;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * ~ Frame ~
+ * <p/>
+ * The variables of a running program.  Minimus only has the variables "a" to
+ * "z", so each has a fixed slot (0 for "a") in a plain int array, and a bit in
+ * a mask records which of them have been assigned.  Reading a variable is an
+ * array access instead of a hash lookup, and assigning one does not box the
+ * value into an Integer.
+ * <p/>
+ * {@link #asMap()} gives the familiar symbol table view of the frame.
+ */
+public class Frame {
+
+    public static final int SLOTS = 26;
+
+    private final int[] values = new int[SLOTS];
+    private int defined;
+
+    /**
+     * The slot of a variable.
+     * @param name the name of the variable, "a" to "z"
+     * @return the slot, 0 to 25
+     */
+    public static int slotOf(String name) {
+        return name.charAt(0) - 'a';
+    }
+
+    public static String nameOf(int slot) {
+        return String.valueOf((char) ('a' + slot));
+    }
+
+    /**
+     * Reads a variable.
+     * @param slot the slot of the variable
+     * @return its value
+     * @throws RuntimeException if the variable has not been assigned yet
+     */
+    public int get(int slot) {
+        if ((defined & (1 << slot)) == 0) {
+            throw new RuntimeException(String.format("Variable %s is undefined!", nameOf(slot)));
+        }
+        return values[slot];
+    }
+
+    public void set(int slot, int value) {
+        values[slot] = value;
+        defined |= 1 << slot;
+    }
+
+    public boolean isDefined(int slot) {
+        return (defined & (1 << slot)) != 0;
+    }
+
+    /**
+     * A read-only map from variable name to value, backed by the frame, so it
+     * follows later assignments.  It holds the variables that have been
+     * assigned, in alphabetical order.
+     * @return the symbol table view
+     */
+    public Map<String, Integer> asMap() {
+        return new AbstractMap<String, Integer>() {
+            @Override
+            public Set<Entry<String, Integer>> entrySet() {
+                return new AbstractSet<Entry<String, Integer>>() {
+                    @Override
+                    public Iterator<Entry<String, Integer>> iterator() {
+                        return new Iterator<Entry<String, Integer>>() {
+                            /* The next defined slot, or SLOTS once there are no more. */
+                            private int slot = nextDefined(0);
+
+                            @Override
+                            public boolean hasNext() {
+                                return slot < SLOTS;
+                            }
+
+                            @Override
+                            public Entry<String, Integer> next() {
+                                if (slot >= SLOTS) {
+                                    throw new NoSuchElementException();
+                                }
+                                Entry<String, Integer> entry = new SimpleImmutableEntry<>(nameOf(slot), values[slot]);
+                                slot = nextDefined(slot + 1);
+                                return entry;
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        return Integer.bitCount(defined);
+                    }
+                };
+            }
+
+            @Override
+            public Integer get(Object key) {
+                int slot = slotOf(key);
+                return slot >= 0 && isDefined(slot) ? values[slot] : null;
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                int slot = slotOf(key);
+                return slot >= 0 && isDefined(slot);
+            }
+        };
+    }
+
+    private int nextDefined(int slot) {
+        int remaining = defined >>> slot;
+        return remaining == 0 ? SLOTS : slot + Integer.numberOfTrailingZeros(remaining);
+    }
+
+    /* The slot of a map key, or -1 if it cannot be a variable. */
+    private static int slotOf(Object key) {
+        if (key instanceof String) {
+            String name = (String) key;
+            if (name.length() == 1 && name.charAt(0) >= 'a' && name.charAt(0) <= 'z') {
+                return slotOf(name);
+            }
+        }
+        return -1;
+    }
+
+}
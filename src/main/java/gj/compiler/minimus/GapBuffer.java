@@ -0,0 +1,127 @@
+package gj.compiler.minimus;
+
+import java.io.Reader;
+
+/**
+ * ~ Gap Buffer ~
+ * <p/>
+ * The text of a program that is being edited, as editors keep it: one array
+ * with a gap at the place of the last edit.  An edit moves the gap to where
+ * it happens and then only touches the characters removed and inserted, so
+ * it costs the distance from the previous edit, not the size of the text
+ * (typing is a series of edits next to each other).
+ */
+final class GapBuffer implements CharSequence {
+
+    private char[] chars;
+
+    /* The gap runs from gapStart up to (not including) gapEnd. */
+    private int gapStart;
+    private int gapEnd;
+
+    GapBuffer(String text) {
+        chars = new char[Math.max(16, text.length() * 2)];
+        text.getChars(0, text.length(), chars, 0);
+        gapStart = text.length();
+        gapEnd = chars.length;
+    }
+
+    @Override
+    public int length() {
+        return chars.length - (gapEnd - gapStart);
+    }
+
+    @Override
+    public char charAt(int index) {
+        return index < gapStart ? chars[index] : chars[index + gapEnd - gapStart];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new StringBuilder(end - start).append(this, start, end);
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder(length()).append(chars, 0, gapStart)
+                .append(chars, gapEnd, chars.length - gapEnd).toString();
+    }
+
+    /**
+     * Replaces part of the text.
+     * @param offset where the edit starts
+     * @param removedLength the number of characters removed at the offset
+     * @param inserted the text inserted at the offset
+     * @return the text that was removed
+     */
+    String replace(int offset, int removedLength, String inserted) {
+        moveGap(offset);
+        String removed = new String(chars, gapEnd, removedLength);
+        gapEnd += removedLength;
+        if (gapEnd - gapStart < inserted.length()) {
+            grow(inserted.length());
+        }
+        inserted.getChars(0, inserted.length(), chars, gapStart);
+        gapStart += inserted.length();
+        return removed;
+    }
+
+    /**
+     * Reads a part of the text.  The text must not be edited while the
+     * reader is in use.
+     * @param from the offset of the first character
+     * @param to the offset just after the last character
+     * @return the reader
+     */
+    Reader reader(int from, int to) {
+        return new Reader() {
+            private int position = from;
+
+            @Override
+            public int read(char[] buffer, int offset, int length) {
+                if (position >= to) {
+                    return -1;
+                }
+                int count = Math.min(length, to - position);
+                int read = 0;
+                if (position < gapStart) {
+                    read = Math.min(count, gapStart - position);
+                    System.arraycopy(chars, position, buffer, offset, read);
+                }
+                if (read < count) {
+                    System.arraycopy(chars, position + read + gapEnd - gapStart, buffer, offset + read, count - read);
+                }
+                position += count;
+                return count;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private void moveGap(int offset) {
+        if (offset < gapStart) {
+            int length = gapStart - offset;
+            System.arraycopy(chars, offset, chars, gapEnd - length, length);
+            gapStart = offset;
+            gapEnd -= length;
+        } else if (offset > gapStart) {
+            int length = offset - gapStart;
+            System.arraycopy(chars, gapEnd, chars, gapStart, length);
+            gapStart = offset;
+            gapEnd += length;
+        }
+    }
+
+    private void grow(int needed) {
+        int after = chars.length - gapEnd;
+        char[] grown = new char[Math.max(chars.length * 2, length() + needed + 16)];
+        System.arraycopy(chars, 0, grown, 0, gapStart);
+        System.arraycopy(chars, gapEnd, grown, grown.length - after, after);
+        gapEnd = grown.length - after;
+        chars = grown;
+    }
+
+}
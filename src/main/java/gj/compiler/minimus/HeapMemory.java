@@ -0,0 +1,112 @@
+package gj.compiler.minimus;
+
+import java.util.Arrays;
+
+import static gj.compiler.minimus.VirtualMachine.MEM_SIZE;
+
+/**
+ * ~ Heap Memory ~
+ * <p/>
+ * The default {@link Memory} of a machine: MEM_SIZE ints on the heap, in
+ * pages of PAGE_SIZE ints.  A memory starts out as a view of the image, which
+ * is shared by every machine running the program and never written.  The
+ * first write to a page copies it, after which the machine has its own page
+ * ("copy on write"), so a machine only takes up the memory it has written
+ * to.  All the pages that are only zeros share a single page.
+ * <p/>
+ * Resetting the memory puts back the pages of the image in place of the
+ * pages that were written, and keeps the copies to use again.
+ */
+final class HeapMemory extends Memory {
+
+    static final int PAGE_BITS = 8;
+    static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    static final int PAGES = (MEM_SIZE + PAGE_SIZE - 1) / PAGE_SIZE;
+
+    /* The last page is shorter, so that an address past the end of memory
+       fails like it does for an int[MEM_SIZE]. */
+    private static final int LAST_PAGE_SIZE = MEM_SIZE - (PAGES - 1) * PAGE_SIZE;
+    private static final int[] ZEROS = new int[PAGE_SIZE];
+    private static final int[] LAST_ZEROS = new int[LAST_PAGE_SIZE];
+
+    private final int[][] image;
+    private final int[][] pages;
+    private final boolean[] written = new boolean[PAGES];
+
+    /* The numbers of the written pages, and copies that can be used again. */
+    private final int[] dirty = new int[PAGES];
+    private int dirtyCount = 0;
+    private final int[][] spares = new int[PAGES][];
+    private int spareCount = 0;
+
+    HeapMemory(Image image) {
+        checkImage(image, MEM_SIZE);
+        this.image = image.pages();
+        this.pages = this.image.clone();
+    }
+
+    /* Splits an image up into pages. */
+    static int[][] split(Image image) {
+        int[][] pages = new int[PAGES][];
+        for (int page = 0; page < PAGES; page++) {
+            int[] zeros = page == PAGES - 1 ? LAST_ZEROS : ZEROS;
+            int from = page * PAGE_SIZE;
+            int[] copy = Arrays.copyOfRange(image.contents, Math.min(from, image.length()),
+                    Math.min(from + zeros.length, image.length()));
+            copy = Arrays.copyOf(copy, zeros.length);
+            pages[page] = Arrays.equals(copy, zeros) ? zeros : copy;
+        }
+        return pages;
+    }
+
+    @Override
+    public int read(int address) {
+        return pages[address >>> PAGE_BITS][address & PAGE_MASK];
+    }
+
+    @Override
+    public void write(int address, int value) {
+        int page = address >>> PAGE_BITS;
+        if (!written[page]) {
+            copy(page);
+        }
+        pages[page][address & PAGE_MASK] = value;
+    }
+
+    private void copy(int page) {
+        int[] original = image[page];
+        int[] copy = spareCount > 0 && spares[spareCount - 1].length == original.length
+                ? spares[--spareCount]
+                : new int[original.length];
+        System.arraycopy(original, 0, copy, 0, original.length);
+        pages[page] = copy;
+        written[page] = true;
+        dirty[dirtyCount++] = page;
+    }
+
+    @Override
+    public long size() {
+        return MEM_SIZE;
+    }
+
+    /* Only puts back the pages that were written. */
+    @Override
+    public void reset() {
+        for (int i = 0; i < dirtyCount; i++) {
+            int page = dirty[i];
+            if (pages[page].length == PAGE_SIZE) {
+                spares[spareCount++] = pages[page]; // the short last page is not kept
+            }
+            pages[page] = image[page];
+            written[page] = false;
+        }
+        dirtyCount = 0;
+    }
+
+    @Override
+    public int pagesUsed() {
+        return dirtyCount;
+    }
+
+}
@@ -0,0 +1,276 @@
+package gj.compiler.minimus;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static gj.compiler.minimus.Parser.Node;
+import static gj.compiler.minimus.Parser.NodeType;
+
+/**
+ * ~ Incremental Parser ~
+ * <p/>
+ * Keeps the syntax tree of a program up to date while the program is being
+ * edited, without parsing the whole program again after every change.
+ * <p/>
+ * Every node records its source span (see {@link Node#start} and
+ * {@link Node#end}).  When an edit arrives, the parser looks for the innermost
+ * sequence ("{ ... }") that contains the edit without touching its braces.
+ * Only the statements of that sequence that overlap the edit, together with
+ * the statement on either side, are scanned and parsed again.  All the other
+ * statements, and their subtrees, are reused as they are.
+ * <p/>
+ * The neighbouring statements are included because an edit can change how
+ * they end, for example by typing an "else" after an "if".  If the damaged
+ * region cannot be parsed on its own, the whole program is parsed again, so
+ * the result (or the syntax error) is always the same as that of
+ * Parser.parse().
+ * <p/>
+ * The text is kept in a {@link GapBuffer}, so changing it costs the distance
+ * from the previous edit, and the damaged region is scanned straight from
+ * it.  Scanning and parsing therefore cost about as much as the statements
+ * the edit touches, not the whole program.  The spans in the tree are the
+ * same as those of Parser.parse(), so every node that follows the edit is
+ * shifted by its length: the nodes are reused, but each of their spans is
+ * updated, which is linear in the number of nodes after the edit (though
+ * only a few additions per node).
+ * <p/>
+ * The tree is updated in place: after an edit, the previous tree must not be
+ * used any more.
+ */
+public class IncrementalParser {
+
+    private final GapBuffer text;
+    private Node tree;
+
+    /* Statistics about the most recent edit. */
+    private int reparsedLength;
+    private boolean fullReparse;
+
+    public IncrementalParser(String text) {
+        this.text = new GapBuffer(text);
+        this.tree = new Parser(text).parse();
+        this.reparsedLength = text.length();
+        this.fullReparse = true;
+    }
+
+    /**
+     * The text of the program, which is copied out of the buffer.
+     * @return the text
+     */
+    public String getText() {
+        return text.toString();
+    }
+
+    /**
+     * The tree of the program, with the same spans as Parser.parse() gives.
+     * @return the root
+     */
+    public Node getTree() {
+        return tree;
+    }
+
+    /**
+     * The number of characters that were scanned again for the most recent
+     * edit.
+     * @return number of characters
+     */
+    public int getReparsedLength() {
+        return reparsedLength;
+    }
+
+    /**
+     * Whether the most recent edit required the whole program to be parsed.
+     * @return true if the whole program was parsed
+     */
+    public boolean isFullReparse() {
+        return fullReparse;
+    }
+
+    /**
+     * Applies an edit to the program and updates the tree.  If the edited
+     * program has a syntax error, the exception is thrown and neither the
+     * text nor the tree changes.
+     * @param offset where the edit starts
+     * @param removedLength the number of characters removed at the offset
+     * @param insertedText the text inserted at the offset
+     * @return the new tree
+     */
+    public Node edit(int offset, int removedLength, String insertedText) {
+        if (offset < 0 || removedLength < 0 || offset + removedLength > text.length()) {
+            throw new IllegalArgumentException("Edit is outside of the program!");
+        }
+        String removed = text.replace(offset, removedLength, insertedText);
+        try {
+            tree = reparse(tree, offset, removedLength, insertedText.length());
+        } catch (RuntimeException e) {
+            text.replace(offset, insertedText.length(), removed);
+            throw e;
+        }
+        return tree;
+    }
+
+    /* Finds the damaged region, parses it and splices the result into the
+       tree.  The text is already edited; the tree is only changed once the
+       region has been parsed. */
+    private Node reparse(Node previous, int offset, int removedLength, int insertedLength) {
+        int editEnd = offset + removedLength; // in the old text
+        int delta = insertedLength - removedLength;
+
+        // Find the innermost sequence that contains the edit, strictly within
+        // its braces.
+        List<Node> path = new ArrayList<>();
+        Node sequence = null;
+        int depth = 0;
+        for (Node node = previous; node != null; node = enclosingStatement(node, offset, editEnd)) {
+            path.add(node);
+            if (node.type == NodeType.NODE_SEQUENCE && node.start < offset && editEnd < node.end) {
+                sequence = node;
+                depth = path.size();
+            }
+        }
+        if (sequence == null) {
+            return parseAll();
+        }
+
+        // The statements overlapping (or touching) the edit, plus one on each
+        // side.  If the sequence is empty, "first" ends up past "last".
+        List<Node> children = sequence.children;
+        int first = firstEndingAtOrAfter(children, offset);
+        int last = lastStartingAtOrBefore(children, editEnd);
+        first = Math.max(first - 1, 0);
+        last = Math.min(last + 1, children.size() - 1);
+
+        // The region runs from the first damaged statement (or the opening
+        // brace) up to the first statement that is reused (or the closing
+        // brace).  Both ends are positions of which the line is known.
+        int from = sequence.start + 1;
+        int fromLine = sequence.line;
+        if (first <= last && children.get(first).start <= offset) {
+            from = children.get(first).start;
+            fromLine = children.get(first).line;
+        }
+        int to = sequence.end - 1;
+        int toLine = sequence.endLine;
+        if (last + 1 < children.size()) {
+            to = children.get(last + 1).start;
+            toLine = children.get(last + 1).line;
+        }
+
+        List<Node> statements;
+        int lineAtEnd;
+        try {
+            Parser parser = new Parser(text.reader(from, to + delta), from, fromLine);
+            statements = parser.statements();
+            lineAtEnd = parser.getLineNumber();
+        } catch (RuntimeException e) {
+            return parseAll();
+        }
+        int lineDelta = lineAtEnd - toLine;
+
+        // The statements after the region are reused, but they (and what is
+        // under them) move.
+        for (int i = last + 1; i < children.size(); i++) {
+            move(children.get(i), delta, lineDelta);
+        }
+        List<Node> damaged = children.subList(Math.min(first, last + 1), last + 1);
+        damaged.clear();
+        damaged.addAll(statements);
+        sequence.end += delta;
+        sequence.endLine += lineDelta;
+
+        // The ancestors of the sequence grow or shrink, and what follows them moves.
+        for (int i = depth - 2; i >= 0; i--) {
+            Node ancestor = path.get(i);
+            Node child = path.get(i + 1);
+            boolean after = false;
+            for (Node sibling : ancestor.children) {
+                if (after) {
+                    move(sibling, delta, lineDelta);
+                }
+                after |= sibling == child;
+            }
+            ancestor.end += delta;
+            ancestor.endLine += lineDelta;
+        }
+
+        reparsedLength = to + delta - from;
+        fullReparse = false;
+        return previous;
+    }
+
+    private Node parseAll() {
+        reparsedLength = text.length();
+        fullReparse = true;
+        return new Parser(text.reader(0, text.length())).parse();
+    }
+
+    /* Returns the statement child of a node that contains the whole edit, if
+       there is one.  Only statements can contain sequences, so expressions
+       (such as the condition of an "if") are never entered. */
+    private static Node enclosingStatement(Node node, int from, int to) {
+        switch (node.type) {
+            case NODE_SEQUENCE: {
+                // The statements are in order, so only the first one that
+                // ends after the edit can contain it.
+                int i = firstEndingAtOrAfter(node.children, to);
+                if (i < node.children.size() && node.children.get(i).start <= from) {
+                    return node.children.get(i);
+                }
+                return null;
+            }
+            case NODE_IF:
+            case NODE_WHILE:
+                for (int i = 1; i < node.children.size(); i++) {
+                    Node child = node.children.get(i);
+                    if (child.start <= from && to <= child.end) {
+                        return child;
+                    }
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    /* Binary searches over the statements of a sequence, which are in order
+       and do not overlap. */
+    private static int firstEndingAtOrAfter(List<Node> statements, int offset) {
+        int low = 0;
+        int high = statements.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (statements.get(middle).end < offset) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static int lastStartingAtOrBefore(List<Node> statements, int offset) {
+        int low = 0;
+        int high = statements.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (statements.get(middle).start <= offset) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low - 1;
+    }
+
+    /* Shifts a node and everything under it. */
+    private static void move(Node node, int delta, int lineDelta) {
+        node.start += delta;
+        node.end += delta;
+        node.line += lineDelta;
+        node.endLine += lineDelta;
+        for (Node child : node.children) {
+            move(child, delta, lineDelta);
+        }
+    }
+
+}
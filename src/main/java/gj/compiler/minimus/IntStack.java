@@ -0,0 +1,54 @@
+package gj.compiler.minimus;
+
+import java.util.Arrays;
+
+/**
+ * ~ Int Stack ~
+ * <p/>
+ * A stack of ints in an array that grows as needed, for the work stacks of
+ * the {@link IterativeParser} and the {@link IterativeEvaluator}.  How deep
+ * they can go is bounded by the heap, rather than by the stack of the
+ * thread.
+ */
+final class IntStack {
+
+    private int[] values;
+    private int size;
+
+    IntStack() {
+        this(32);
+    }
+
+    IntStack(int capacity) {
+        values = new int[capacity];
+    }
+
+    void push(int value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    int pop() {
+        return values[--size];
+    }
+
+    int peek() {
+        return values[size - 1];
+    }
+
+    /* Replaces the value on top. */
+    void set(int value) {
+        values[size - 1] = value;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+}
@@ -1,37 +1,235 @@
 package gj.compiler.minimus;
 
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
 
 import static gj.compiler.minimus.Parser.Node;
+import static gj.compiler.minimus.Parser.NodeType;
 
 public class Interpreter {
 
-    private static Parser parser;
+    /* The interpreter can execute a program in more than one way.  They all
+       give the same results, but differ in how the program is represented
+       while it is running. */
+    public enum Engine {
+        /* Walks the tree of Parser.Node objects. */
+        TREE,
+        /* Walks a CompactTree, where the nodes are stored in flat arrays. */
+        COMPACT,
+        /* Runs the tree of objects built by the ClosureCompiler. */
+        CLOSURE,
+        /* Runs the program lowered to Bytecode, in a single loop. */
+        BYTECODE,
+        /* Runs the program compiled to a JVM class by the JvmCompiler. */
+        JVM,
+        /* Walks the tree like TREE, but compiles a loop that turns out to be
+           hot to a JVM class and switches to it in the middle of the loop. */
+        TIERED,
+        /* Walks a CompactTree like COMPACT, but in a loop with stacks of its
+           own instead of recursion, so that deep nesting cannot overflow the
+           stack of the thread (see IterativeEvaluator).  That only holds
+           without a parse cache, an optimizer and a profiler: those work on
+           a tree of Nodes, so the program is then parsed by the recursive
+           Parser.parse() (and converted by CompactTree.of(), or walked by
+           the profiler, recursively as well). */
+        ITERATIVE
+    }
+
+    /**
+     * Told when the TIERED engine compiles a hot loop.
+     */
+    public interface TierListener {
+        /**
+         * @param loop the NODE_WHILE that was compiled
+         * @param backEdges the number of times the loop had gone round by then
+         */
+        void tieredUp(Node loop, long backEdges);
+    }
+
+    public static final int DEFAULT_TIER_UP_THRESHOLD = 10_000;
+
+    private final String program;
+    private final Engine engine;
+
+    /* Where parsed programs are remembered, if anywhere. */
+    private ParseCache parseCache;
+
+    /* Whether the bodies of "if" and "while" are only parsed once they are
+       reached. */
+    private boolean lazyParsing;
+
+    /* Rewrites the tree before it is executed, if set. */
+    private Optimizer optimizer;
+
+    /* The TIERED engine compiles a loop once it has gone round this many
+       times, counted over all the times the loop was entered. */
+    private int tierUpThreshold = DEFAULT_TIER_UP_THRESHOLD;
+    private TierListener tierListener;
+
+    /* Where "print" and the symbol table at the end go. */
+    private OutputSink out = OutputSink.SYSTEM_OUT;
+    private boolean printSymbolTable = true;
+
+    /* Told about every node that is executed, if set. */
+    private Profiler profiler;
+
+    /* The back edges counted so far and the compiled loops, by NODE_WHILE.
+       A loop that cannot be compiled maps to null. */
+    private Map<Node, Long> backEdges;
+    private Map<Node, JvmCompiler.Program> compiledLoops;
 
     public Interpreter(String program){
-        parser = new Parser(program);
+        this(program, Engine.TREE);
+    }
+
+    public Interpreter(String program, Engine engine) {
+        this.program = program;
+        this.engine = engine;
+    }
+
+    /**
+     * Use a cache for the syntax tree, so that running a program that has
+     * been parsed before skips the scanner and the parser.
+     * @param parseCache the cache, or null to always parse
+     */
+    public void setParseCache(ParseCache parseCache) {
+        this.parseCache = parseCache;
+    }
+
+    /**
+     * Parse the bodies of "if" and "while" statements only when they are
+     * executed for the first time.  This only applies to the TREE engine,
+     * and not when a parse cache is used.
+     * @param lazyParsing true to parse lazily
+     */
+    public void setLazyParsing(boolean lazyParsing) {
+        this.lazyParsing = lazyParsing;
+    }
+
+    /**
+     * Optimize the tree before executing it.  The optimizer keeps a report
+     * of the rewrites it applied.  Note that this parses the bodies of a
+     * lazily parsed program straight away.
+     * @param optimizer the optimizer, or null to execute the tree as parsed
+     */
+    public void setOptimizer(Optimizer optimizer) {
+        this.optimizer = optimizer;
+    }
+
+    /**
+     * The number of times a loop must go round before the TIERED engine
+     * compiles it.
+     * @param tierUpThreshold the number of back edges
+     */
+    public void setTierUpThreshold(int tierUpThreshold) {
+        this.tierUpThreshold = tierUpThreshold;
+    }
+
+    public void setTierListener(TierListener tierListener) {
+        this.tierListener = tierListener;
+    }
+
+    /**
+     * Send the output of the program somewhere else than System.out.  The
+     * sink is flushed when the program ends, but not closed.
+     * @param out the sink for the values printed and the symbol table
+     */
+    public void setOutput(OutputSink out) {
+        this.out = out;
+    }
+
+    /**
+     * Whether to print the symbol table and the execution result when the
+     * program ends, as Minimus always did before it had "print".  It is
+     * returned by run() either way.
+     * @param printSymbolTable false to only print what the program prints
+     */
+    public void setPrintSymbolTable(boolean printSymbolTable) {
+        this.printSymbolTable = printSymbolTable;
+    }
+
+    /**
+     * Profile the program: count and time every node that is executed.  A
+     * profiled program is run by walking the tree, whatever the engine, in a
+     * walk of its own, so that a program that is not profiled pays nothing
+     * for it.
+     * @param profiler the profiler, or null to not profile
+     */
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
     }
 
     public Map<String, Integer> run() {
-        Node node = parser.parse();
-        return execute(node);
+        try {
+            return execute();
+        } finally {
+            out.flush();
+        }
+    }
+
+    private Map<String, Integer> execute() {
+        // The cache, the optimizer and the profiler need a tree of Nodes,
+        // which is built recursively, even for ITERATIVE.
+        if ((engine == Engine.COMPACT || engine == Engine.ITERATIVE)
+                && parseCache == null && optimizer == null && profiler == null) {
+            CompactTree tree = CompactTree.parse(program);
+            return engine == Engine.COMPACT ? execute(tree) : executeIteratively(tree);
+        }
+        Node node = parseCache != null ? parseCache.parse(program) : new Parser(program, lazyParsing).parse();
+        if (optimizer != null) {
+            node = optimizer.optimize(node);
+        }
+        if (profiler != null) {
+            backEdges = null;
+            return executeProfiled(node);
+        }
+        switch (engine) {
+            case COMPACT:
+                return execute(CompactTree.of(node));
+            case CLOSURE:
+                return execute(ClosureCompiler.compile(node, out));
+            case BYTECODE:
+                return execute(Bytecode.compile(node));
+            case JVM:
+                return execute(JvmCompiler.compile(node));
+            case ITERATIVE:
+                return executeIteratively(CompactTree.of(node));
+            case TIERED:
+                backEdges = new IdentityHashMap<>();
+                compiledLoops = new IdentityHashMap<>();
+                return execute(node);
+            default:
+                return execute(node);
+        }
     }
 
     private Map<String, Integer> execute(Node entireProgram) {
-        /* The symbol table in Minimus can be handles by a simple map (it only
-           supports one type.  For more complex languages, elaborate symbol
-           tables that also does type checking, etc. is definitely possible. */
-        Map<String, Integer> symbolTable = new HashMap<>();
+        /* The symbol table in Minimus can be handled by a simple frame, since
+           it only supports one type and the variables "a" to "z".  The
+           resolver binds every variable in the tree to its slot in the frame
+           up front.  For more complex languages, elaborate symbol tables that
+           also does type checking, etc. is definitely possible. */
+        Frame frame = new Frame();
+        Resolver.resolve(entireProgram);
 
         /* The SyntaxTree starts with a statement or derivation of an
            expression. */
-        int executionResult = handleNode(entireProgram, symbolTable);
+        int executionResult = handleNode(entireProgram, frame);
 
-        /* Since Minimus did not initially have any output instruction, the
-           symbol table was always printed out - this just continues that. */
-        System.out.println(symbolTable);
-        System.out.println("Execution result: " + executionResult);
+        return finish(frame, executionResult);
+    }
+
+    /* Since Minimus did not initially have any output instruction, the
+       symbol table was always printed out - this just continues that, unless
+       it was turned off. */
+    private Map<String, Integer> finish(Frame frame, int executionResult) {
+        // A copy, as run() has always handed out a HashMap of its own.
+        Map<String, Integer> symbolTable = new HashMap<>(frame.asMap());
+        if (printSymbolTable) {
+            out.print(symbolTable.toString());
+            out.print("Execution result: " + executionResult);
+        }
         return symbolTable;
     }
 
@@ -40,18 +238,18 @@ public class Interpreter {
        "type-checking" will occur at this step to make sure the types are
        correct. At this point NO syntax checking is necessary, since that's the
        parser's job. */
-    private int handleNode(Node root, Map<String, Integer> symbolTable) {
+    private int handleNode(Node root, Frame frame) {
         switch (root.type) {
             case NODE_ASSIGNMENT:
-                return handleAssignment(root, symbolTable);
+                return handleAssignment(root, frame);
             case NODE_IF:
-                return handleIf(root, symbolTable);
+                return handleIf(root, frame);
             case NODE_WHILE:
-                return handleWhile(root, symbolTable);
+                return handleWhile(root, frame);
             case NODE_PRINT:
-                return handlePrint(root, symbolTable);
+                return handlePrint(root, frame);
             case NODE_SEQUENCE:
-                return handleSequence(root, symbolTable);
+                return handleSequence(root, frame);
             case NODE_EMPTY:
                 return 0;
             case NODE_LESS_THAN:
@@ -64,11 +262,13 @@ public class Interpreter {
             case NODE_SUBTRACTION:
             case NODE_MULTIPLY:
             case NODE_DIVIDE:
-                return handleLeftRightOperation(root, symbolTable);
+                return handleLeftRightOperation(root, frame);
             case NODE_VARIABLE:
-                return handleVariable(root, symbolTable);
+                return handleVariable(root, frame);
             case NODE_INTEGER:
-                return Integer.parseInt(root.value);
+                return root.decoded ? root.number : Integer.parseInt(root.value);
+            case NODE_DEFERRED:
+                return handleNode(((Parser.DeferredNode) root).resolve(), frame);
         }
         return 0;
     }
@@ -79,23 +279,23 @@ public class Interpreter {
        method needs to return the type of the assignment.  For languages
        with different types (i.e. strings, ints, floats), type checking needs
        to happen here as well. */
-    private int handleAssignment(Node root, Map<String, Integer> symbolTable) {
-        int value = handleNode(root.children.get(0), symbolTable);
-        symbolTable.put(root.value, value);
+    private int handleAssignment(Node root, Frame frame) {
+        int value = handleNode(root.children.get(0), frame);
+        frame.set(root.slot, value);
         return value;
     }
 
     /* Handles NODE_IF: First child is the "expression".  If the value is
        non-zero, then execute the 2nd child ("then"), and the 3rd child
        if it is 0 (the "else"). Method always returns 0. */
-    private int handleIf(Node root, Map<String, Integer> symbolTable) {
-        int condition = handleNode(root.children.get(0), symbolTable);
+    private int handleIf(Node root, Frame frame) {
+        int condition = handleNode(root.children.get(0), frame);
         if (condition != 0) {
-            return handleNode(root.children.get(1), symbolTable);
+            return handleNode(body(root, 1), frame);
         } else {
             // The else part is only executed if that child exists.
             if (root.children.size() > 2) {
-                return handleNode(root.children.get(2), symbolTable);
+                return handleNode(body(root, 2), frame);
             }
         }
         return 0;
@@ -103,26 +303,84 @@ public class Interpreter {
 
     /* Handles NODE_WHILE: First child is the expression, and while it is
        non-zero, execute the statement in the 2nd child. Always returns 0. */
-    private int handleWhile(Node root, Map<String, Integer> symbolTable) {
-        while(handleNode(root.children.get(0), symbolTable) != 0) {
-            handleNode(root.children.get(1), symbolTable);
+    private int handleWhile(Node root, Frame frame) {
+        if (backEdges != null) {
+            return handleTieredWhile(root, frame);
+        }
+        while(handleNode(root.children.get(0), frame) != 0) {
+            handleNode(body(root, 1), frame);
+        }
+        return 0;
+    }
+
+    /* The body of an "if" or "while".  A body that was parsed lazily is
+       parsed the first time it is reached, and then takes the place of its
+       DeferredNode in the parent, so that running it again (every round of
+       a loop) goes straight to it. */
+    private static Node body(Node root, int index) {
+        Node body = root.children.get(index);
+        if (body.type == NodeType.NODE_DEFERRED) {
+            body = ((Parser.DeferredNode) body).resolve();
+            root.children.set(index, body);
         }
+        return body;
+    }
+
+    /* The same, for the TIERED engine: every time the body has been executed
+       (a "back edge") is counted.  Once the loop is hot, it is compiled to a
+       JVM class which picks up where the interpreter is: it starts by
+       evaluating the condition again, with the variables as they are in the
+       frame.  A loop that was compiled before runs compiled straight away.
+       Only the counter is touched for every round of a cold loop, the map is
+       only consulted when the loop is entered and left. */
+    private int handleTieredWhile(Node root, Frame frame) {
+        JvmCompiler.Program compiled = compiledLoops.get(root);
+        if (compiled != null) {
+            return compiled.run(frame, out);
+        }
+        long count = backEdges.getOrDefault(root, 0L);
+        boolean compilable = !compiledLoops.containsKey(root);
+        while (handleNode(root.children.get(0), frame) != 0) {
+            handleNode(body(root, 1), frame);
+            if (++count >= tierUpThreshold && compilable) {
+                compiled = tierUp(root, count);
+                if (compiled != null) {
+                    return compiled.run(frame, out);
+                }
+                compilable = false;
+            }
+        }
+        backEdges.put(root, count);
         return 0;
     }
 
+    private JvmCompiler.Program tierUp(Node loop, long count) {
+        JvmCompiler.Program compiled;
+        try {
+            compiled = JvmCompiler.compile(loop);
+        } catch (RuntimeException e) {
+            compiled = null; // too large; keep interpreting it
+        }
+        compiledLoops.put(loop, compiled);
+        if (compiled != null && tierListener != null) {
+            tierListener.tieredUp(loop, count);
+        }
+        return compiled;
+    }
+
     /* Handles NODE_PRINT: First child is the item to print to screen,
        always returns 0. */
-    private int handlePrint(Node root, Map<String, Integer> symbolTable) {
-        int whatToPrint = handleNode(root.children.get(0), symbolTable);
-        System.out.println(whatToPrint);
+    private int handlePrint(Node root, Frame frame) {
+        int whatToPrint = handleNode(root.children.get(0), frame);
+        out.print(whatToPrint);
         return 0;
     }
 
     /* Handles NODE_SEQUENCE: So a sequence simply executes children (which are
        all statements) left to right. Returns 0. */
-    private int handleSequence(Node root, Map<String, Integer> symbolTable) {
+    private int handleSequence(Node root, Frame frame) {
         for (Node child : root.children) {
-            handleNode(child, symbolTable);
+            handleNode(child, frame);
         }
         return 0;
     }
@@ -134,11 +392,15 @@ public class Interpreter {
        Since these  operations are so alike, we can easily throw them into a
        single function. More elaborate languages may need to split them
        especially if type checking is required. */
-    private int handleLeftRightOperation(Node root, Map<String, Integer> symbolTable) {
-        int lh = handleNode(root.children.get(0), symbolTable);
-        int rh = handleNode(root.children.get(1), symbolTable);
+    private int handleLeftRightOperation(Node root, Frame frame) {
+        int lh = handleNode(root.children.get(0), frame);
+        int rh = handleNode(root.children.get(1), frame);
 
-        switch (root.type) {
+        return operate(root.type, lh, rh);
+    }
+
+    private static int operate(NodeType type, int lh, int rh) {
+        switch (type) {
             case NODE_LESS_THAN:
                 return lh < rh ? 1 : 0;
             case NODE_GREATER_THAN:
@@ -163,12 +425,179 @@ public class Interpreter {
         throw new RuntimeException("Unsupported comparison/operation!");
     }
 
-    /* Handles NODE_VARIABLE: Looks up and returns the value. */
-    private int handleVariable(Node root, Map<String, Integer> symbolTable) {
-        if (!symbolTable.containsKey(root.value)) {
-            throw new RuntimeException(String.format("Variable %s is undefined!", root.value));
+    /* Handles NODE_VARIABLE: Looks up and returns the value, which fails if
+       the variable has not been assigned yet. */
+    private int handleVariable(Node root, Frame frame) {
+        return frame.get(root.slot);
+    }
+
+    private Map<String, Integer> executeProfiled(Node entireProgram) {
+        Frame frame = new Frame();
+        Resolver.resolve(entireProgram);
+
+        int executionResult = handleProfiled(entireProgram, frame);
+
+        return finish(frame, executionResult);
+    }
+
+    /* The walk of a profiled program, chosen once by execute(): the same as
+       handleNode() and the methods it calls, but every node is reported to
+       the profiler.  A DeferredNode is not part of the program and is not
+       reported, the node it resolves to is. */
+    private int handleProfiled(Node root, Frame frame) {
+        if (root.type == NodeType.NODE_DEFERRED) {
+            return handleProfiled(((Parser.DeferredNode) root).resolve(), frame);
+        }
+        profiler.enter(root);
+        try {
+            switch (root.type) {
+                case NODE_ASSIGNMENT:
+                    int value = handleProfiled(root.children.get(0), frame);
+                    frame.set(root.slot, value);
+                    return value;
+                case NODE_IF:
+                    if (handleProfiled(root.children.get(0), frame) != 0) {
+                        return handleProfiled(body(root, 1), frame);
+                    }
+                    return root.children.size() > 2 ? handleProfiled(body(root, 2), frame) : 0;
+                case NODE_WHILE:
+                    while (handleProfiled(root.children.get(0), frame) != 0) {
+                        handleProfiled(body(root, 1), frame);
+                    }
+                    return 0;
+                case NODE_PRINT:
+                    out.print(handleProfiled(root.children.get(0), frame));
+                    return 0;
+                case NODE_SEQUENCE:
+                    for (Node child : root.children) {
+                        handleProfiled(child, frame);
+                    }
+                    return 0;
+                case NODE_VARIABLE:
+                    return frame.get(root.slot);
+                case NODE_INTEGER:
+                    return root.decoded ? root.number : Integer.parseInt(root.value);
+                case NODE_EMPTY:
+                    return 0;
+                default:
+                    int lh = handleProfiled(root.children.get(0), frame);
+                    int rh = handleProfiled(root.children.get(1), frame);
+                    return operate(root.type, lh, rh);
+            }
+        } finally {
+            profiler.exit();
+        }
+    }
+
+    private Map<String, Integer> execute(ClosureCompiler.Exec program) {
+        Frame frame = new Frame();
+        int executionResult = program.execute(frame);
+
+        return finish(frame, executionResult);
+    }
+
+    private Map<String, Integer> execute(Bytecode bytecode) {
+        Frame frame = new Frame();
+        int executionResult = bytecode.execute(frame, out);
+
+        return finish(frame, executionResult);
+    }
+
+    private Map<String, Integer> execute(JvmCompiler.Program compiled) {
+        Frame frame = new Frame();
+        int executionResult = compiled.run(frame, out);
+
+        return finish(frame, executionResult);
+    }
+
+    /* The compact engine keeps its variables in a frame as well, indexed by
+       the payload of the variable nodes ("a" is 0). */
+    private Frame variables;
+
+    private Map<String, Integer> execute(CompactTree tree) {
+        variables = new Frame();
+
+        int executionResult = handleCompact(tree, tree.root());
+
+        return finish(variables, executionResult);
+    }
+
+    private Map<String, Integer> executeIteratively(CompactTree tree) {
+        Frame frame = new Frame();
+        int executionResult = IterativeEvaluator.execute(tree, frame, out);
+
+        return finish(frame, executionResult);
+    }
+
+    /* The same as handleNode(), but for a node of a CompactTree.  Children are
+       found through the cursor methods of the tree and literals and variables
+       are already decoded into the payload. */
+    private int handleCompact(CompactTree tree, int node) {
+        switch (tree.kind(node)) {
+            case NODE_ASSIGNMENT: {
+                int value = handleCompact(tree, tree.firstChild(node));
+                variables.set(tree.payload(node), value);
+                return value;
+            }
+            case NODE_IF: {
+                int condition = tree.firstChild(node);
+                int then = tree.nextSibling(condition);
+                if (handleCompact(tree, condition) != 0) {
+                    return handleCompact(tree, then);
+                }
+                int otherwise = tree.nextSibling(then);
+                return otherwise != CompactTree.NONE ? handleCompact(tree, otherwise) : 0;
+            }
+            case NODE_WHILE: {
+                int condition = tree.firstChild(node);
+                int body = tree.nextSibling(condition);
+                while (handleCompact(tree, condition) != 0) {
+                    handleCompact(tree, body);
+                }
+                return 0;
+            }
+            case NODE_PRINT:
+                out.print(handleCompact(tree, tree.firstChild(node)));
+                return 0;
+            case NODE_SEQUENCE:
+                for (int child = tree.firstChild(node); child != CompactTree.NONE; child = tree.nextSibling(child)) {
+                    handleCompact(tree, child);
+                }
+                return 0;
+            case NODE_EMPTY:
+                return 0;
+            case NODE_VARIABLE:
+                return variables.get(tree.payload(node));
+            case NODE_INTEGER:
+                return tree.payload(node);
+        }
+
+        int left = tree.firstChild(node);
+        int lh = handleCompact(tree, left);
+        int rh = handleCompact(tree, tree.nextSibling(left));
+        switch (tree.kind(node)) {
+            case NODE_LESS_THAN:
+                return lh < rh ? 1 : 0;
+            case NODE_GREATER_THAN:
+                return lh > rh ? 1 : 0;
+            case NODE_LESS_EQUAL_THAN:
+                return lh <= rh ? 1 : 0;
+            case NODE_GREATER_EQUAL_THAN:
+                return lh >= rh ? 1 : 0;
+            case NODE_EQUALS:
+                return lh == rh ? 1 : 0;
+            case NODE_NOT_EQUALS:
+                return lh != rh ? 1 : 0;
+            case NODE_ADDITION:
+                return lh + rh;
+            case NODE_SUBTRACTION:
+                return lh - rh;
+            case NODE_MULTIPLY:
+                return lh * rh;
+            case NODE_DIVIDE:
+                return lh / rh;
         }
-        return symbolTable.get(root.value);
+        throw new RuntimeException("Unsupported comparison/operation!");
     }
 
 }
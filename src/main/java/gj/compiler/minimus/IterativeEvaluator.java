@@ -0,0 +1,169 @@
+package gj.compiler.minimus;
+
+import java.util.function.IntConsumer;
+
+/**
+ * ~ Iterative Evaluator ~
+ * <p/>
+ * Executes a {@link CompactTree} like the COMPACT engine of the
+ * {@link Interpreter}, but without recursion.  Instead of a call for every
+ * node, there is a loop with two stacks: the nodes that are being executed,
+ * each with how far along it is, and the values of the nodes that are done.
+ * Every node leaves exactly one value (0 for a statement).  Both stacks grow
+ * on the heap, so the nesting of a program is not limited by the stack of
+ * the thread, which may be small.
+ * <p/>
+ * An "if" hands over to its branch, rather than waiting for it, so a chain of
+ * "else if"s does not grow the stacks.
+ */
+final class IterativeEvaluator {
+
+    private IterativeEvaluator() {
+    }
+
+    /**
+     * @param tree the program
+     * @param frame the variables
+     * @param out where the values printed by the program go
+     * @return the value of the program, like Interpreter.handleNode() gives
+     */
+    static int execute(CompactTree tree, Frame frame, IntConsumer out) {
+        // A node on the stack is followed by its step: 0 when it starts,
+        // then as far as the node is along.  For a sequence, the step is the
+        // child being executed plus one.
+        IntStack nodes = new IntStack();
+        IntStack values = new IntStack();
+        nodes.push(tree.root());
+        nodes.push(0);
+        while (!nodes.isEmpty()) {
+            int step = nodes.pop();
+            int node = nodes.peek();
+            switch (tree.kind(node)) {
+                case NODE_INTEGER:
+                    values.push(tree.payload(node));
+                    nodes.pop();
+                    break;
+                case NODE_VARIABLE:
+                    values.push(frame.get(tree.payload(node)));
+                    nodes.pop();
+                    break;
+                case NODE_ASSIGNMENT:
+                    if (step == 0) {
+                        nodes.push(1);
+                        start(nodes, tree.firstChild(node));
+                    } else {
+                        // The value stays on the stack as the value of the
+                        // assignment.
+                        frame.set(tree.payload(node), values.peek());
+                        nodes.pop();
+                    }
+                    break;
+                case NODE_IF:
+                    if (step == 0) {
+                        nodes.push(1);
+                        start(nodes, tree.firstChild(node));
+                    } else {
+                        int then = tree.nextSibling(tree.firstChild(node));
+                        int branch = values.pop() != 0 ? then : tree.nextSibling(then);
+                        nodes.pop();
+                        if (branch != CompactTree.NONE) {
+                            start(nodes, branch);
+                        } else {
+                            values.push(0);
+                        }
+                    }
+                    break;
+                case NODE_WHILE:
+                    if (step == 0 || step == 2) {
+                        if (step == 2) {
+                            values.pop(); // the value of the body
+                        }
+                        nodes.push(1);
+                        start(nodes, tree.firstChild(node));
+                    } else if (values.pop() != 0) {
+                        nodes.push(2);
+                        start(nodes, tree.nextSibling(tree.firstChild(node)));
+                    } else {
+                        values.push(0);
+                        nodes.pop();
+                    }
+                    break;
+                case NODE_PRINT:
+                    if (step == 0) {
+                        nodes.push(1);
+                        start(nodes, tree.firstChild(node));
+                    } else {
+                        out.accept(values.pop());
+                        values.push(0);
+                        nodes.pop();
+                    }
+                    break;
+                case NODE_SEQUENCE: {
+                    int child;
+                    if (step == 0) {
+                        child = tree.firstChild(node);
+                    } else {
+                        values.pop(); // the value of the statement that is done
+                        child = tree.nextSibling(step - 1);
+                    }
+                    if (child != CompactTree.NONE) {
+                        nodes.push(child + 1);
+                        start(nodes, child);
+                    } else {
+                        values.push(0);
+                        nodes.pop();
+                    }
+                    break;
+                }
+                case NODE_EMPTY:
+                    values.push(0);
+                    nodes.pop();
+                    break;
+                default:
+                    // An operation: its two operands first.
+                    if (step < 2) {
+                        nodes.push(step + 1);
+                        start(nodes, step == 0 ? tree.firstChild(node) : tree.nextSibling(tree.firstChild(node)));
+                    } else {
+                        int right = values.pop();
+                        values.set(operate(tree, node, values.peek(), right));
+                        nodes.pop();
+                    }
+            }
+        }
+        return values.pop();
+    }
+
+    private static void start(IntStack nodes, int node) {
+        nodes.push(node);
+        nodes.push(0);
+    }
+
+    private static int operate(CompactTree tree, int node, int left, int right) {
+        switch (tree.kind(node)) {
+            case NODE_LESS_THAN:
+                return left < right ? 1 : 0;
+            case NODE_GREATER_THAN:
+                return left > right ? 1 : 0;
+            case NODE_LESS_EQUAL_THAN:
+                return left <= right ? 1 : 0;
+            case NODE_GREATER_EQUAL_THAN:
+                return left >= right ? 1 : 0;
+            case NODE_EQUALS:
+                return left == right ? 1 : 0;
+            case NODE_NOT_EQUALS:
+                return left != right ? 1 : 0;
+            case NODE_ADDITION:
+                return left + right;
+            case NODE_SUBTRACTION:
+                return left - right;
+            case NODE_MULTIPLY:
+                return left * right;
+            case NODE_DIVIDE:
+                return left / right;
+            default:
+                throw new RuntimeException("Unknown node: " + tree.kind(node));
+        }
+    }
+
+}
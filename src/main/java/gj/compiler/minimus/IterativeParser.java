@@ -0,0 +1,364 @@
+package gj.compiler.minimus;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+
+import static gj.compiler.minimus.Parser.NodeType;
+import static gj.compiler.minimus.Scanner.TokenType;
+
+/**
+ * ~ Iterative Parser ~
+ * <p/>
+ * Parses a program into a {@link CompactTree}, following the grammar and
+ * giving the same errors as the {@link Parser}, but without recursion.  The
+ * Parser calls a method for every level of nesting, so a program that is
+ * nested deep enough ("((((...1))))", or thousands of nested "if"s)
+ * overflows the stack of the thread.  Here every rule of the grammar that
+ * is still to be finished is an int on a stack of tasks, and the nodes built
+ * so far are on a stack of nodes, both of which live on the heap.
+ * <p/>
+ * The nodes are built into flat arrays as the rules finish, which is not in
+ * pre-order (the node of "a+b" is only built after "a" and "b"), so the tree
+ * is put in pre-order at the end.
+ */
+final class IterativeParser {
+
+    private static final NodeType[] TYPES = NodeType.values();
+
+    private static final Set<TokenType> STATEMENT_START = EnumSet.of(TokenType.TOKEN_IF,
+            TokenType.TOKEN_WHILE, TokenType.TOKEN_PRINT, TokenType.TOKEN_CURLY_OPEN, TokenType.TOKEN_ID,
+            TokenType.TOKEN_SEMICOLON);
+
+    /* The tasks: a rule to parse, or the rest of a rule once the part before
+       it has been parsed.  BINARY and its kind of node take two entries. */
+    private static final int PROGRAM_END = 0, STATEMENT = 1, IF_CONDITION = 2, IF_THEN = 3, IF_ELSE = 4,
+            WHILE_CONDITION = 5, WHILE_BODY = 6, SEQUENCE_NEXT = 7, SEQUENCE_ADD = 8, PRINT_END = 9,
+            STATEMENT_END = 10, EXPRESSION = 11, EXPRESSION_TEST = 12, ASSIGNMENT_END = 13, TEST = 14,
+            TEST_END = 15, SUM = 16, SUM_NEXT = 17, FACTOR = 18, FACTOR_NEXT = 19, TERM = 20,
+            PAREN_CLOSE = 21, BINARY = 22;
+
+    private final TokenSource scanner;
+    private final IntStack tasks = new IntStack();
+    private final IntStack nodes = new IntStack();
+
+    /* The nodes, in the order they are built.  The last child is only
+       needed to add children to a sequence. */
+    private int[] kinds = new int[64];
+    private int[] payloads = new int[64];
+    private int[] firstChildren = new int[64];
+    private int[] lastChildren = new int[64];
+    private int[] nextSiblings = new int[64];
+    private int count = 0;
+
+    IterativeParser(TokenSource scanner) {
+        this.scanner = scanner;
+    }
+
+    CompactTree parse() {
+        tasks.push(PROGRAM_END);
+        tasks.push(STATEMENT);
+        while (!tasks.isEmpty()) {
+            step(tasks.pop());
+        }
+        return CompactTree.preOrder(kinds, payloads, firstChildren, nextSiblings, count, nodes.pop());
+    }
+
+    /* The tasks are pushed in the reverse of the order they are to be done
+       in.  Each of STATEMENT, EXPRESSION, TEST, SUM, FACTOR and TERM leaves
+       exactly one node on the stack of nodes. */
+    private void step(int task) {
+        switch (task) {
+            case PROGRAM_END:
+                if (scanner.nextType() != TokenType.TOKEN_EOI) {
+                    throw new RuntimeException(e("Unexpected input after end of program!"));
+                }
+                break;
+            case STATEMENT:
+                statement();
+                break;
+            case IF_CONDITION:
+                closeParenthesis();
+                tasks.push(IF_THEN);
+                tasks.push(STATEMENT);
+                break;
+            case IF_THEN:
+                if (scanner.peekType() == TokenType.TOKEN_ELSE) {
+                    scanner.nextType();
+                    tasks.push(IF_ELSE);
+                    tasks.push(STATEMENT);
+                } else {
+                    int then = nodes.pop();
+                    nodes.push(node(NodeType.NODE_IF, 0, nodes.pop(), then));
+                }
+                break;
+            case IF_ELSE: {
+                int otherwise = nodes.pop();
+                int then = nodes.pop();
+                int node = node(NodeType.NODE_IF, 0, nodes.pop(), then);
+                addChild(node, otherwise);
+                nodes.push(node);
+                break;
+            }
+            case WHILE_CONDITION:
+                closeParenthesis();
+                tasks.push(WHILE_BODY);
+                tasks.push(STATEMENT);
+                break;
+            case WHILE_BODY: {
+                int body = nodes.pop();
+                nodes.push(node(NodeType.NODE_WHILE, 0, nodes.pop(), body));
+                break;
+            }
+            case SEQUENCE_NEXT:
+                if (STATEMENT_START.contains(scanner.peekType())) {
+                    tasks.push(SEQUENCE_ADD);
+                    tasks.push(STATEMENT);
+                } else if (scanner.nextType() != TokenType.TOKEN_CURLY_CLOSE) {
+                    throw new RuntimeException(e("} expected or valid statement!"));
+                }
+                break;
+            case SEQUENCE_ADD: {
+                int statement = nodes.pop();
+                addChild(nodes.peek(), statement);
+                tasks.push(SEQUENCE_NEXT);
+                break;
+            }
+            case PRINT_END:
+                if (scanner.nextType() != TokenType.TOKEN_PAREN_CLOSE) {
+                    throw new RuntimeException(e(") expected!"));
+                }
+                semicolon();
+                nodes.push(node(NodeType.NODE_PRINT, 0, nodes.pop(), CompactTree.NONE));
+                break;
+            case STATEMENT_END:
+                semicolon();
+                break;
+            case EXPRESSION:
+                // Only an expression that starts with an id can be an
+                // assignment, which is only known once it has been parsed as
+                // a test and turns out to be a lone variable.
+                if (scanner.peekType() == TokenType.TOKEN_ID) {
+                    tasks.push(EXPRESSION_TEST);
+                }
+                tasks.push(TEST);
+                break;
+            case EXPRESSION_TEST:
+                if (kinds[nodes.peek()] == NodeType.NODE_VARIABLE.ordinal()
+                        && scanner.peekType() == TokenType.TOKEN_ASSIGNMENT) {
+                    scanner.nextType();
+                    kinds[nodes.peek()] = NodeType.NODE_ASSIGNMENT.ordinal();
+                    tasks.push(ASSIGNMENT_END);
+                    tasks.push(EXPRESSION);
+                }
+                break;
+            case ASSIGNMENT_END: {
+                int value = nodes.pop();
+                addChild(nodes.peek(), value);
+                break;
+            }
+            case TEST:
+                tasks.push(TEST_END);
+                tasks.push(SUM);
+                break;
+            case TEST_END: {
+                NodeType relation = relation(scanner.peekType());
+                if (relation != null) {
+                    scanner.nextType();
+                    binary(relation);
+                    tasks.push(SUM);
+                }
+                break;
+            }
+            case SUM:
+                tasks.push(SUM_NEXT);
+                tasks.push(FACTOR);
+                break;
+            case SUM_NEXT:
+                if (scanner.peekType() == TokenType.TOKEN_PLUS || scanner.peekType() == TokenType.TOKEN_MINUS) {
+                    boolean plus = scanner.nextType() == TokenType.TOKEN_PLUS;
+                    tasks.push(SUM_NEXT);
+                    binary(plus ? NodeType.NODE_ADDITION : NodeType.NODE_SUBTRACTION);
+                    tasks.push(FACTOR);
+                }
+                break;
+            case FACTOR:
+                tasks.push(FACTOR_NEXT);
+                tasks.push(TERM);
+                break;
+            case FACTOR_NEXT:
+                if (scanner.peekType() == TokenType.TOKEN_MULTIPLY || scanner.peekType() == TokenType.TOKEN_DIVIDE) {
+                    boolean multiply = scanner.nextType() == TokenType.TOKEN_MULTIPLY;
+                    tasks.push(FACTOR_NEXT);
+                    binary(multiply ? NodeType.NODE_MULTIPLY : NodeType.NODE_DIVIDE);
+                    tasks.push(TERM);
+                }
+                break;
+            case TERM:
+                term();
+                break;
+            case PAREN_CLOSE:
+                closeParenthesis();
+                break;
+            case BINARY: {
+                NodeType kind = TYPES[tasks.pop()];
+                int right = nodes.pop();
+                nodes.push(node(kind, 0, nodes.pop(), right));
+                break;
+            }
+            default:
+                throw new IllegalStateException("Unknown task " + task);
+        }
+    }
+
+    private void statement() {
+        switch (scanner.peekType()) {
+            case TOKEN_IF:
+                scanner.nextType();
+                openParenthesis();
+                tasks.push(IF_CONDITION);
+                tasks.push(EXPRESSION);
+                break;
+            case TOKEN_WHILE:
+                scanner.nextType();
+                openParenthesis();
+                tasks.push(WHILE_CONDITION);
+                tasks.push(EXPRESSION);
+                break;
+            case TOKEN_CURLY_OPEN:
+                scanner.nextType();
+                nodes.push(node(NodeType.NODE_SEQUENCE, 0, CompactTree.NONE, CompactTree.NONE));
+                tasks.push(SEQUENCE_NEXT);
+                break;
+            case TOKEN_SEMICOLON:
+                scanner.nextType();
+                nodes.push(node(NodeType.NODE_EMPTY, 0, CompactTree.NONE, CompactTree.NONE));
+                break;
+            case TOKEN_PRINT:
+                scanner.nextType();
+                openParenthesis();
+                tasks.push(PRINT_END);
+                tasks.push(EXPRESSION);
+                break;
+            default:
+                tasks.push(STATEMENT_END);
+                tasks.push(EXPRESSION);
+        }
+    }
+
+    private void term() {
+        switch (scanner.peekType()) {
+            case TOKEN_ID:
+                scanner.nextType();
+                nodes.push(node(NodeType.NODE_VARIABLE, Frame.slotOf(scanner.lexeme()),
+                        CompactTree.NONE, CompactTree.NONE));
+                break;
+            case TOKEN_INT:
+                scanner.nextType();
+                nodes.push(node(NodeType.NODE_INTEGER, literal(scanner.lexeme()),
+                        CompactTree.NONE, CompactTree.NONE));
+                break;
+            case TOKEN_PAREN_OPEN:
+                scanner.nextType();
+                tasks.push(PAREN_CLOSE);
+                tasks.push(EXPRESSION);
+                break;
+            default:
+                throw new RuntimeException(e("Expected id, integer or expression."));
+        }
+    }
+
+    /* Builds the node of an operator once its right operand is parsed. */
+    private void binary(NodeType kind) {
+        tasks.push(kind.ordinal());
+        tasks.push(BINARY);
+    }
+
+    private static NodeType relation(TokenType type) {
+        switch (type) {
+            case TOKEN_LESS_THAN:
+                return NodeType.NODE_LESS_THAN;
+            case TOKEN_GREATER_THAN:
+                return NodeType.NODE_GREATER_THAN;
+            case TOKEN_LESS_EQUAL_THAN:
+                return NodeType.NODE_LESS_EQUAL_THAN;
+            case TOKEN_GREATER_EQUAL_THAN:
+                return NodeType.NODE_GREATER_EQUAL_THAN;
+            case TOKEN_EQUALS:
+                return NodeType.NODE_EQUALS;
+            case TOKEN_NOT_EQUALS:
+                return NodeType.NODE_NOT_EQUALS;
+            default:
+                return null;
+        }
+    }
+
+    private void openParenthesis() {
+        if (scanner.nextType() != TokenType.TOKEN_PAREN_OPEN) {
+            throw new RuntimeException(e("( expected!"));
+        }
+    }
+
+    private void closeParenthesis() {
+        if (scanner.nextType() != TokenType.TOKEN_PAREN_CLOSE) {
+            throw new RuntimeException(e(") expected!"));
+        }
+    }
+
+    private void semicolon() {
+        if (scanner.nextType() != TokenType.TOKEN_SEMICOLON) {
+            throw new RuntimeException(e("; expected!"));
+        }
+    }
+
+    /* The value of an integer literal, which is decoded into the payload
+       here rather than when it runs, so one that does not fit an int is an
+       error of the program. */
+    private int literal(String lexeme) {
+        try {
+            return Integer.parseInt(lexeme);
+        } catch (NumberFormatException tooLarge) {
+            throw new RuntimeException(e("Integer too large: " + lexeme));
+        }
+    }
+
+    /* The same format as the errors of the Parser. */
+    private String e(String e) {
+        return String.format("%s (line %d)", e, scanner.getLineNumber());
+    }
+
+    /* Builds a node with up to two children. */
+    private int node(NodeType kind, int payload, int first, int second) {
+        if (count == kinds.length) {
+            int capacity = count * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            payloads = Arrays.copyOf(payloads, capacity);
+            firstChildren = Arrays.copyOf(firstChildren, capacity);
+            lastChildren = Arrays.copyOf(lastChildren, capacity);
+            nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+        }
+        int node = count++;
+        kinds[node] = kind.ordinal();
+        payloads[node] = payload;
+        firstChildren[node] = CompactTree.NONE;
+        lastChildren[node] = CompactTree.NONE;
+        nextSiblings[node] = CompactTree.NONE;
+        if (first != CompactTree.NONE) {
+            addChild(node, first);
+        }
+        if (second != CompactTree.NONE) {
+            addChild(node, second);
+        }
+        return node;
+    }
+
+    private void addChild(int parent, int child) {
+        if (firstChildren[parent] == CompactTree.NONE) {
+            firstChildren[parent] = child;
+        } else {
+            nextSiblings[lastChildren[parent]] = child;
+        }
+        lastChildren[parent] = child;
+    }
+
+}
@@ -0,0 +1,471 @@
+package gj.compiler.minimus;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+import static gj.compiler.minimus.ClassFileWriter.Code;
+import static gj.compiler.minimus.ClassFileWriter.Label;
+import static gj.compiler.minimus.Parser.Node;
+import static gj.compiler.minimus.Parser.NodeType;
+
+/**
+ * ~ JVM Compiler ~
+ * <p/>
+ * Translates a program into a JVM class, loads it and hands it back as a
+ * {@link Program}, so that it runs as fast as any other Java code once the JIT
+ * of the JVM has had a look at it.
+ * <p/>
+ * The variables of the program are local int variables of the generated
+ * method, "if" and "while" are branches, and "print" calls an IntConsumer.
+ * The variables are read from the Frame when the program starts (it may be
+ * part of a larger run) and written back to it when it ends.
+ * <p/>
+ * Reading an undefined variable must still fail.  While generating the code,
+ * the compiler tracks the variables that are definitely assigned, like the
+ * Optimizer does, and only a read of a variable that might be undefined
+ * tests a bit mask at run time.  A division by zero fails by itself, as IDIV
+ * throws the same ArithmeticException as Java's "/" does.
+ * <p/>
+ * The class file is written by {@link ClassFileWriter} and defined by a
+ * {@link ProgramLoader} of its own, so it is unloaded once the program is no
+ * longer used.  A program that is too large for a single JVM method (64KB of
+ * code, and jumps of at most 32KB) cannot be compiled.
+ */
+public class JvmCompiler {
+
+    /* A compiled program. */
+    public interface Program {
+        /**
+         * @param frame the variables, read at the start and updated at the end
+         * @param out where "print" sends its values
+         * @return the value of the program, like Interpreter.handleNode() gives
+         */
+        int run(Frame frame, IntConsumer out);
+    }
+
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+
+    private static final String PACKAGE = "gj/compiler/minimus/";
+    private static final String FRAME = PACKAGE + "Frame";
+    private static final String PROGRAM = PACKAGE + "JvmCompiler$Program";
+    private static final String INT_CONSUMER = "java/util/function/IntConsumer";
+
+    /* JVM opcodes. */
+    private static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13, ILOAD = 0x15,
+            ALOAD_0 = 0x2a, ALOAD_1 = 0x2b, ALOAD_2 = 0x2c, ISTORE = 0x36, POP = 0x57, DUP = 0x59,
+            IADD = 0x60, ISUB = 0x64, IMUL = 0x68, IDIV = 0x6c, IAND = 0x7e, IOR = 0x80,
+            IFEQ = 0x99, IFNE = 0x9a, IF_ICMPEQ = 0x9f, IF_ICMPNE = 0xa0, IF_ICMPLT = 0xa1, IF_ICMPGE = 0xa2,
+            IF_ICMPGT = 0xa3, IF_ICMPLE = 0xa4, GOTO = 0xa7, IRETURN = 0xac, RETURN = 0xb1,
+            INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8, INVOKEINTERFACE = 0xb9, NEW = 0xbb,
+            ATHROW = 0xbf;
+
+    /* The local variables of the generated method "run". */
+    private static final int FRAME_LOCAL = 1, FIRST_VARIABLE = 3, MASK = FIRST_VARIABLE + Frame.SLOTS,
+            RESULT = MASK + 1, LOCALS = RESULT + 1;
+
+    private static final int MAX_CODE = 0xffff;
+
+    private JvmCompiler() {
+    }
+
+    /**
+     * Compiles a program to a JVM class and loads it.  Deferred bodies of a
+     * lazily parsed tree are parsed while compiling.
+     * @param root the root of the tree as returned by Parser.parse()
+     * @return the loaded program
+     */
+    public static Program compile(Node root) {
+        String name = PACKAGE + "Minimus$Compiled" + COUNTER.incrementAndGet();
+        byte[] classFile = generate(root, name);
+        try {
+            return (Program) ProgramLoader.instantiate(name, classFile);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unable to load compiled program!", e);
+        }
+    }
+
+    /* Writes the class file.  The code is generated twice: the first time
+       only to find out which variables need a bit in the mask. */
+    static byte[] generate(Node root, String name) {
+        Resolver.resolve(root);
+        Generator analysis = new Generator(new Code(), null, 0);
+        analysis.compile(root, true);
+
+        ClassFileWriter writer = new ClassFileWriter(name, "java/lang/Object", PROGRAM);
+        Code constructor = writer.method(ClassFileWriter.ACC_PUBLIC, "<init>", "()V");
+        constructor.op(ALOAD_0);
+        constructor.op2(INVOKESPECIAL, writer.methodRef("java/lang/Object", "<init>", "()V"));
+        constructor.op(RETURN);
+        constructor.setMaxs(1, 1);
+
+        Code code = writer.method(ClassFileWriter.ACC_PUBLIC, "run", "(L" + FRAME + ";L" + INT_CONSUMER + ";)I");
+        Generator generator = new Generator(code, writer, analysis.tracked());
+        generator.prologue(analysis.used);
+        generator.compile(root, true);
+        generator.epilogue(analysis.assignedAnywhere);
+        if (code.length() > MAX_CODE || !code.branchesFit()) {
+            throw new RuntimeException("Program is too large to compile to a JVM method!");
+        }
+        code.setMaxs(generator.maxDepth, LOCALS);
+        return writer.toByteArray();
+    }
+
+    /* Generates the code of "run".  Without a writer it only analyses the
+       program (the code is thrown away). */
+    private static class Generator {
+        private final Code code;
+        private final ClassFileWriter writer;
+        private final int tracked;
+
+        private int depth = 0;
+        private int maxDepth = 0;
+
+        /* The variables that are definitely assigned at the point being
+           compiled, and what has been seen so far. */
+        private int assigned = 0;
+        private int used = 0;
+        private int assignedAnywhere = 0;
+        private int maybeUndefined = 0;
+
+        Generator(Code code, ClassFileWriter writer, int tracked) {
+            this.code = code;
+            this.writer = writer;
+            this.tracked = tracked;
+        }
+
+        /* The variables that need a bit in the mask: those that are read
+           while they may be undefined, and those that may or may not have
+           been assigned at the end. */
+        int tracked() {
+            return maybeUndefined | (assignedAnywhere & ~assigned);
+        }
+
+        /* Clears the locals (the JVM insists that they are assigned before
+           they are read) and loads the variables that are already in the
+           frame. */
+        void prologue(int variables) {
+            op(ICONST_0, 1);
+            store(MASK);
+            for (int slot = 0; slot < Frame.SLOTS; slot++) {
+                if ((variables & (1 << slot)) == 0) {
+                    continue;
+                }
+                op(ICONST_0, 1);
+                store(FIRST_VARIABLE + slot);
+
+                Label skip = new Label();
+                op(ALOAD_1, 1);
+                pushInt(slot);
+                invoke(INVOKEVIRTUAL, FRAME, "isDefined", "(I)Z", -1);
+                jump(IFEQ, skip, -1);
+                op(ALOAD_1, 1);
+                pushInt(slot);
+                invoke(INVOKEVIRTUAL, FRAME, "get", "(I)I", -1);
+                store(FIRST_VARIABLE + slot);
+                setMaskBit(slot);
+                code.mark(skip);
+            }
+        }
+
+        /* Writes the variables back to the frame and returns the result. */
+        void epilogue(int variables) {
+            store(RESULT);
+            for (int slot = 0; slot < Frame.SLOTS; slot++) {
+                if ((variables & (1 << slot)) == 0) {
+                    continue;
+                }
+                Label skip = new Label();
+                if ((assigned & (1 << slot)) == 0) {
+                    testMaskBit(slot);
+                    jump(IFEQ, skip, -1);
+                }
+                op(ALOAD_1, 1);
+                pushInt(slot);
+                load(FIRST_VARIABLE + slot);
+                invoke(INVOKEVIRTUAL, FRAME, "set", "(II)V", -3);
+                code.mark(skip);
+            }
+            load(RESULT);
+            op(IRETURN, -1);
+        }
+
+        /* Compiles a node.  If its value is needed, the code leaves exactly
+           one value on the stack, otherwise none. */
+        void compile(Node node, boolean needed) {
+            switch (node.type) {
+                case NODE_DEFERRED:
+                    compile(((Parser.DeferredNode) node).resolve(), needed);
+                    return;
+                case NODE_INTEGER:
+                    literal(node);
+                    break;
+                case NODE_VARIABLE:
+                    variable(node.slot);
+                    break;
+                case NODE_ASSIGNMENT: {
+                    int slot = node.slot;
+                    compile(node.children.get(0), true);
+                    if (needed) {
+                        op(DUP, 1);
+                    }
+                    store(FIRST_VARIABLE + slot);
+                    if ((tracked & (1 << slot)) != 0) {
+                        setMaskBit(slot);
+                    }
+                    assigned |= 1 << slot;
+                    assignedAnywhere |= 1 << slot;
+                    used |= 1 << slot;
+                    return;
+                }
+                case NODE_IF:
+                    compileIf(node, needed);
+                    return;
+                case NODE_WHILE: {
+                    Label top = new Label();
+                    Label exit = new Label();
+                    code.mark(top);
+                    compileTest(node.children.get(0), exit);
+                    // The body may not run at all, so what it assigns does not count afterwards.
+                    int before = assigned;
+                    compile(node.children.get(1), false);
+                    assigned = before;
+                    jump(GOTO, top, 0);
+                    code.mark(exit);
+                    pushZero(needed);
+                    return;
+                }
+                case NODE_PRINT:
+                    op(ALOAD_2, 1);
+                    compile(node.children.get(0), true);
+                    invoke(INVOKEINTERFACE, INT_CONSUMER, "accept", "(I)V", -2);
+                    pushZero(needed);
+                    return;
+                case NODE_SEQUENCE:
+                    for (Node child : node.children) {
+                        compile(child, false);
+                    }
+                    pushZero(needed);
+                    return;
+                case NODE_EMPTY:
+                    pushZero(needed);
+                    return;
+                default:
+                    compileOperation(node);
+                    break;
+            }
+            // Expressions always leave their value; drop it if nobody wants it.
+            if (!needed) {
+                op(POP, -1);
+            }
+        }
+
+        private void compileIf(Node node, boolean needed) {
+            Label otherwise = new Label();
+            Label end = new Label();
+            compileTest(node.children.get(0), otherwise);
+
+            // Only what is assigned in both arms is definitely assigned afterwards.
+            int before = assigned;
+            compile(node.children.get(1), needed);
+            int afterThen = assigned;
+            assigned = before;
+            jump(GOTO, end, 0);
+
+            // Both arms leave the same number of values behind.
+            depth -= needed ? 1 : 0;
+            code.mark(otherwise);
+            if (node.children.size() > 2) {
+                compile(node.children.get(2), needed);
+            } else {
+                pushZero(needed);
+            }
+            assigned &= afterThen;
+            code.mark(end);
+        }
+
+        private void compileOperation(Node node) {
+            int branch = branchUnless(node.type);
+            if (branch >= 0) {
+                // A comparison whose value is needed: 1 or 0.
+                Label no = new Label();
+                Label end = new Label();
+                compileTest(node, no);
+                op(ICONST_0 + 1, 1);
+                jump(GOTO, end, 0);
+                depth--;
+                code.mark(no);
+                op(ICONST_0, 1);
+                code.mark(end);
+                return;
+            }
+            compile(node.children.get(0), true);
+            compile(node.children.get(1), true);
+            switch (node.type) {
+                case NODE_ADDITION:
+                    op(IADD, -1);
+                    return;
+                case NODE_SUBTRACTION:
+                    op(ISUB, -1);
+                    return;
+                case NODE_MULTIPLY:
+                    op(IMUL, -1);
+                    return;
+                case NODE_DIVIDE:
+                    op(IDIV, -1);
+                    return;
+            }
+            throw new RuntimeException("Unsupported comparison/operation!");
+        }
+
+        /* Compiles the condition of an "if" or "while" as a jump to "no" that
+           is taken when it is false. */
+        private void compileTest(Node node, Label no) {
+            if (node.type == NodeType.NODE_DEFERRED) {
+                compileTest(((Parser.DeferredNode) node).resolve(), no);
+                return;
+            }
+            int branch = branchUnless(node.type);
+            if (branch >= 0) {
+                compile(node.children.get(0), true);
+                compile(node.children.get(1), true);
+                jump(branch, no, -2);
+            } else {
+                compile(node, true);
+                jump(IFEQ, no, -1);
+            }
+        }
+
+        private void variable(int slot) {
+            used |= 1 << slot;
+            if ((assigned & (1 << slot)) == 0) {
+                maybeUndefined |= 1 << slot;
+                Label defined = new Label();
+                testMaskBit(slot);
+                jump(IFNE, defined, -1);
+                // The class cannot call into Minimus (see ProgramLoader), so it
+                // makes the exception itself; the name is known already.
+                op2(NEW, writer == null ? 0 : writer.classRef("java/lang/RuntimeException"), 1);
+                op(DUP, 1);
+                String message = String.format("Variable %s is undefined!", Frame.nameOf(slot));
+                op2(LDC_W, writer == null ? 0 : writer.string(message), 1);
+                invoke(INVOKESPECIAL, "java/lang/RuntimeException", "<init>", "(Ljava/lang/String;)V", -2);
+                op(ATHROW, -1);
+                code.mark(defined);
+            }
+            load(FIRST_VARIABLE + slot);
+        }
+
+        private void literal(Node node) {
+            if (node.decoded) {
+                pushInt(node.number);
+                return;
+            }
+            try {
+                pushInt(Integer.parseInt(node.value));
+            } catch (NumberFormatException e) {
+                // Fails when it is evaluated, like it does in the Interpreter.
+                op2(LDC_W, writer == null ? 0 : writer.string(node.value), 1);
+                invoke(INVOKESTATIC, "java/lang/Integer", "parseInt", "(Ljava/lang/String;)I", 0);
+            }
+        }
+
+        private void pushZero(boolean needed) {
+            if (needed) {
+                op(ICONST_0, 1);
+            }
+        }
+
+        private void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                op(ICONST_0 + value, 1);
+            } else if (value == (byte) value) {
+                code.op(BIPUSH, value);
+                adjust(1);
+            } else if (value == (short) value) {
+                op2(SIPUSH, value, 1);
+            } else {
+                op2(LDC_W, writer == null ? 0 : writer.integer(value), 1);
+            }
+        }
+
+        private void testMaskBit(int slot) {
+            load(MASK);
+            pushInt(1 << slot);
+            op(IAND, -1);
+        }
+
+        private void setMaskBit(int slot) {
+            load(MASK);
+            pushInt(1 << slot);
+            op(IOR, -1);
+            store(MASK);
+        }
+
+        private void load(int local) {
+            code.op(ILOAD, local);
+            adjust(1);
+        }
+
+        private void store(int local) {
+            code.op(ISTORE, local);
+            adjust(-1);
+        }
+
+        private void invoke(int opcode, String owner, String name, String descriptor, int effect) {
+            int index = 0;
+            if (writer != null) {
+                index = opcode == INVOKEINTERFACE
+                        ? writer.interfaceMethodRef(owner, name, descriptor)
+                        : writer.methodRef(owner, name, descriptor);
+            }
+            code.op2(opcode, index);
+            if (opcode == INVOKEINTERFACE) {
+                code.u1(2); // the number of argument slots, including the receiver
+                code.u1(0);
+            }
+            adjust(effect);
+        }
+
+        private void jump(int opcode, Label target, int effect) {
+            code.jump(opcode, target);
+            adjust(effect);
+        }
+
+        private void op(int opcode, int effect) {
+            code.op(opcode);
+            adjust(effect);
+        }
+
+        private void op2(int opcode, int operand, int effect) {
+            code.op2(opcode, operand);
+            adjust(effect);
+        }
+
+        private void adjust(int effect) {
+            depth += effect;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        /* The jump that is taken when a comparison does not hold, or -1 if
+           the node is not a comparison. */
+        private static int branchUnless(NodeType type) {
+            switch (type) {
+                case NODE_LESS_THAN:
+                    return IF_ICMPGE;
+                case NODE_GREATER_THAN:
+                    return IF_ICMPLE;
+                case NODE_LESS_EQUAL_THAN:
+                    return IF_ICMPGT;
+                case NODE_GREATER_EQUAL_THAN:
+                    return IF_ICMPLT;
+                case NODE_EQUALS:
+                    return IF_ICMPNE;
+                case NODE_NOT_EQUALS:
+                    return IF_ICMPEQ;
+                default:
+                    return -1;
+            }
+        }
+    }
+
+}
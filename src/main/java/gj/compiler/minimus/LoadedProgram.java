@@ -0,0 +1,115 @@
+package gj.compiler.minimus;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static gj.compiler.minimus.VirtualMachine.INSTRUCTION_SIZE;
+
+/**
+ * ~ Loaded Program ~
+ * <p/>
+ * A program that is ready to run: its instructions, fused into
+ * superinstructions or translated to a JVM class, and the image of the
+ * memory it starts with.  Nothing in it changes once it is loaded, so any
+ * number of {@link VirtualMachine}s can run it at the same time, each with
+ * its own registers and its own {@link Memory}, which starts out as the image
+ * of the program.  The machines run the instructions from the program,
+ * so the code segment is read-only: a program can read its own code, but
+ * storing into the code segment does not change the program.
+ * <p/>
+ * See {@link VmPool} for running many jobs of the same program.
+ */
+public final class LoadedProgram {
+
+    /* The instructions, followed by a HALT for a program that runs off the
+       end of its code. */
+    final int[] code;
+    final Memory.Image image;
+    final MachineTranslator.Program translated;
+    private final Map<String, Integer> fusions;
+
+    /**
+     * Loads a program, with its instructions fused into superinstructions.
+     * @param objectCode the program, as assembled by VirtualMachine.assemble()
+     */
+    public LoadedProgram(ObjectCode objectCode) {
+        this(objectCode, true, false);
+    }
+
+    /**
+     * Loads a program.
+     * @param objectCode the program, as assembled by VirtualMachine.assemble()
+     * @param fusion whether to fuse instructions into superinstructions
+     * @param translation whether to translate the program to a JVM class
+     *                    (it is interpreted if it cannot be translated)
+     */
+    public LoadedProgram(ObjectCode objectCode, boolean fusion, boolean translation) {
+        this(objectCode.getData(), objectCode.getCode(), fusion, translation);
+    }
+
+    private LoadedProgram(int[] data, int[] code, boolean fusion, boolean translation) {
+        ObjectCode.checkSizes(data.length, code.length);
+        this.image = new Memory.Image(code, data);
+        this.code = Arrays.copyOf(code, code.length + INSTRUCTION_SIZE);
+        this.translated = translation ? MachineTranslator.translate(this.code, code.length) : null;
+        this.fusions = translated == null && fusion
+                ? VirtualMachine.fuse(this.code, code.length)
+                : new TreeMap<>();
+    }
+
+    /**
+     * Loads a program from an object file written by ObjectCode.write().  The
+     * file is mapped into memory and the segments are read straight from the
+     * mapping; the code is checked like ObjectCode.read() checks it.  The
+     * symbol table is not needed to run the program, so it is not read.
+     * @param objectFile the object file
+     * @param fusion whether to fuse instructions into superinstructions
+     * @param translation whether to translate the program to a JVM class
+     * @return the loaded program
+     * @throws IOException if the file cannot be read or is not an object file
+     */
+    public static LoadedProgram read(Path objectFile, boolean fusion, boolean translation) throws IOException {
+        try (FileChannel channel = FileChannel.open(objectFile, StandardOpenOption.READ)) {
+            IntBuffer ints = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).asIntBuffer();
+            int[] header = ObjectCode.readHeader(ints);
+            int[] data = new int[header[0]];
+            int[] code = new int[header[1]];
+            ints.get(data);
+            ints.get(code);
+            try {
+                VirtualMachine.verify(code);
+            } catch (RuntimeException e) {
+                throw new IOException("Malformed object file!", e);
+            }
+            return new LoadedProgram(data, code, fusion, translation);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated object file!", e);
+        }
+    }
+
+    /**
+     * The sequences of instructions that were fused into superinstructions,
+     * for instance "CMPI+JLE", with the number of places each was found.
+     * @return number of superinstructions by sequence
+     */
+    public Map<String, Integer> getFusions() {
+        return new TreeMap<>(fusions);
+    }
+
+    /**
+     * Whether the program was translated to a JVM class, rather than being
+     * interpreted.
+     * @return true if it runs as JVM code
+     */
+    public boolean isTranslated() {
+        return translated != null;
+    }
+
+}
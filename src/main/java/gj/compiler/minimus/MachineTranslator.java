@@ -0,0 +1,344 @@
+package gj.compiler.minimus;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static gj.compiler.minimus.ClassFileWriter.Code;
+import static gj.compiler.minimus.ClassFileWriter.Label;
+import static gj.compiler.minimus.VirtualMachine.*;
+
+/**
+ * ~ Machine Translator ~
+ * <p/>
+ * Translates a program loaded into the {@link VirtualMachine} into a JVM
+ * class, so that it runs as JVM code instead of through the dispatch loop.
+ * <p/>
+ * The registers r0 to r9 and the stack pointer are local variables of the
+ * generated method, which reads and writes the {@link Memory} of the machine
+ * it is passed.  Every jump becomes a real branch to the instruction at the address
+ * of its label.  The machine has no flags register here: CMP and CMPI keep
+ * the two values they compare in a pair of locals and a conditional jump
+ * compares those, which the JIT turns into an ordinary compare and branch.
+ * SYSCALL calls back into the machine (the host) with r0 and r1.
+ * <p/>
+ * The class is defined by a {@link ProgramLoader} of its own, so it goes
+ * when the program does.  It is then in another package at run time and
+ * can only use public types, which is why {@link Program} and {@link Host}
+ * are public and the generated code calls nothing of the machine but the
+ * public methods of {@link Memory} and {@link Host}.
+ * <p/>
+ * Not every program can be translated.  A jump must land on an instruction
+ * of the program (or just after the last one, where the machine halts), the
+ * code may only contain known instructions, and a conditional jump may not
+ * be reached before anything has been compared, as the flags of the machine
+ * then do not hold any comparison.  For such programs translate() returns
+ * null and the machine interprets them.
+ */
+class MachineTranslator {
+
+    /* A translated program. */
+    public interface Program {
+        /* Runs the program on the memory and copies the registers into
+           "registers" when it halts. */
+        void run(Memory memory, int[] registers, Host host);
+    }
+
+    /* The machine running a translated program, as far as the program
+       needs it. */
+    public interface Host {
+        /* Called for SYSCALL with r0 and r1. */
+        void syscall(int code, int argument);
+    }
+
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+
+    private static final String PACKAGE = "gj/compiler/minimus/";
+    private static final String HOST = PACKAGE + "MachineTranslator$Host";
+    private static final String MEMORY = PACKAGE + "Memory";
+    private static final String PROGRAM = PACKAGE + "MachineTranslator$Program";
+
+    /* JVM opcodes. */
+    private static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13, ILOAD = 0x15,
+            ALOAD_0 = 0x2a, ALOAD_1 = 0x2b, ALOAD_2 = 0x2c, ALOAD_3 = 0x2d, ISTORE = 0x36,
+            IASTORE = 0x4f, IADD = 0x60, ISUB = 0x64, IMUL = 0x68, IDIV = 0x6c, IINC = 0x84, L2I = 0x88,
+            IF_ICMPEQ = 0x9f, IF_ICMPNE = 0xa0, IF_ICMPLT = 0xa1, IF_ICMPGE = 0xa2, IF_ICMPGT = 0xa3,
+            IF_ICMPLE = 0xa4, GOTO = 0xa7, RETURN = 0xb1, INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7,
+            INVOKEINTERFACE = 0xb9;
+
+    /* The local variables of the generated method "run", after "this" and
+       its arguments (the memory, the registers and the host). */
+    private static final int FIRST_REGISTER = 4, COMPARED = FIRST_REGISTER + 10,
+            WITH = COMPARED + 1, SP = WITH + 1, LOCALS = SP + 1;
+
+    /* ADD, SUB, MUL and DIV (or their immediate forms) in that order. */
+    private static final int[] ARITHMETIC = {IADD, ISUB, IMUL, IDIV};
+
+    private static final int MAX_CODE = 0xffff;
+
+    private MachineTranslator() {
+    }
+
+    /**
+     * Translates a program and loads it.
+     * @param instructions the instructions of the program
+     * @param codeLength the size of the program in ints
+     * @return the loaded program, or null if it cannot be translated
+     */
+    static Program translate(int[] instructions, int codeLength) {
+        if (!isTranslatable(instructions, codeLength)) {
+            return null;
+        }
+        String name = PACKAGE + "Minimus$Machine" + COUNTER.incrementAndGet();
+        byte[] classFile = generate(instructions, codeLength, name);
+        if (classFile == null) {
+            return null;
+        }
+        try {
+            return (Program) ProgramLoader.instantiate(name, classFile);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unable to load translated program!", e);
+        }
+    }
+
+    /* Checks the instructions and jumps, and then follows every path from
+       the start of the program up to its first comparison to see that no
+       conditional jump is on the way. */
+    private static boolean isTranslatable(int[] instructions, int codeLength) {
+        for (int pc = 0; pc < codeLength; pc += INSTRUCTION_SIZE) {
+            int opcode = instructions[pc];
+            if (opcode < HALT || opcode > SYSCALL) {
+                return false;
+            }
+            if (opcode >= JMP && opcode <= JGE) {
+                int target = instructions[pc + 1];
+                if (target < 0 || target > codeLength || target % INSTRUCTION_SIZE != 0) {
+                    return false;
+                }
+            }
+        }
+
+        boolean[] visited = new boolean[codeLength / INSTRUCTION_SIZE + 1];
+        int[] pending = new int[visited.length];
+        int count = 0;
+        pending[count++] = 0;
+        while (count > 0) {
+            int pc = pending[--count];
+            if (pc >= codeLength || visited[pc / INSTRUCTION_SIZE]) {
+                continue;
+            }
+            visited[pc / INSTRUCTION_SIZE] = true;
+            int opcode = instructions[pc];
+            if (opcode >= JE && opcode <= JGE) {
+                return false;
+            }
+            if (opcode == JMP) {
+                pending[count++] = instructions[pc + 1];
+            } else if (opcode != HALT && opcode != CMP && opcode != CMPI) {
+                pending[count++] = pc + INSTRUCTION_SIZE;
+            }
+        }
+        return true;
+    }
+
+    /* Writes the class file, or returns null if the program is too large for
+       a JVM method. */
+    private static byte[] generate(int[] instructions, int codeLength, String name) {
+        ClassFileWriter writer = new ClassFileWriter(name, "java/lang/Object", PROGRAM);
+        Code constructor = writer.method(ClassFileWriter.ACC_PUBLIC, "<init>", "()V");
+        constructor.op(ALOAD_0);
+        constructor.op2(INVOKESPECIAL, writer.methodRef("java/lang/Object", "<init>", "()V"));
+        constructor.op(RETURN);
+        constructor.setMaxs(1, 1);
+
+        Code code = writer.method(ClassFileWriter.ACC_PUBLIC, "run", "(L" + MEMORY + ";[IL" + HOST + ";)V");
+        Map<Integer, Label> labels = new HashMap<>();
+        for (int pc = 0; pc < codeLength; pc += INSTRUCTION_SIZE) {
+            if (instructions[pc] >= JMP && instructions[pc] <= JGE) {
+                labels.computeIfAbsent(instructions[pc + 1], target -> new Label());
+            }
+        }
+        Label halt = labels.computeIfAbsent(codeLength, target -> new Label());
+
+        // The JVM insists that locals are assigned before they are read.
+        for (int local = FIRST_REGISTER; local < SP; local++) {
+            code.op(ICONST_0);
+            code.op(ISTORE, local);
+        }
+        code.op(ALOAD_1);
+        code.op2(INVOKEVIRTUAL, writer.methodRef(MEMORY, "size", "()J"));
+        code.op(L2I);
+        code.op(ISTORE, SP);
+
+        for (int pc = 0; pc < codeLength; pc += INSTRUCTION_SIZE) {
+            Label label = labels.get(pc);
+            if (label != null) {
+                code.mark(label);
+            }
+            translate(code, writer, instructions[pc], instructions[pc + 1], instructions[pc + 2], labels, halt);
+        }
+
+        // Running off the end of the code halts the machine.
+        code.mark(halt);
+        for (int register = 0; register < 10; register++) {
+            code.op(ALOAD_2);
+            pushInt(code, writer, register);
+            code.op(ILOAD, FIRST_REGISTER + register);
+            code.op(IASTORE);
+        }
+        code.op(RETURN);
+
+        if (code.length() > MAX_CODE || !code.branchesFit()) {
+            return null;
+        }
+        code.setMaxs(4, LOCALS);
+        return writer.toByteArray();
+    }
+
+    private static void translate(Code code, ClassFileWriter writer, int opcode, int a, int b,
+                                  Map<Integer, Label> labels, Label halt) {
+        switch (opcode) {
+            case HALT:
+                code.jump(GOTO, halt);
+                break;
+            case NOP:
+                break;
+            case PUSH:
+                increment(code, SP, -1);
+                code.op(ALOAD_1);
+                code.op(ILOAD, SP);
+                code.op(ILOAD, FIRST_REGISTER + a);
+                write(code, writer);
+                break;
+            case POP:
+                code.op(ALOAD_1);
+                code.op(ILOAD, SP);
+                read(code, writer);
+                code.op(ISTORE, FIRST_REGISTER + a);
+                increment(code, SP, 1);
+                break;
+            case LOAD:
+                code.op(ALOAD_1);
+                code.op(ILOAD, FIRST_REGISTER + a);
+                read(code, writer);
+                code.op(ISTORE, FIRST_REGISTER + b);
+                break;
+            case LOADI:
+                code.op(ALOAD_1);
+                pushInt(code, writer, a);
+                read(code, writer);
+                code.op(ISTORE, FIRST_REGISTER + b);
+                break;
+            case STORE:
+                code.op(ALOAD_1);
+                code.op(ILOAD, FIRST_REGISTER + b);
+                code.op(ILOAD, FIRST_REGISTER + a);
+                write(code, writer);
+                break;
+            case STOREI:
+                code.op(ALOAD_1);
+                code.op(ILOAD, FIRST_REGISTER + b);
+                pushInt(code, writer, a);
+                write(code, writer);
+                break;
+            case MOV:
+                code.op(ILOAD, FIRST_REGISTER + a);
+                code.op(ISTORE, FIRST_REGISTER + b);
+                break;
+            case MOVI:
+                pushInt(code, writer, a);
+                code.op(ISTORE, FIRST_REGISTER + b);
+                break;
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+                code.op(ILOAD, FIRST_REGISTER + a);
+                code.op(ILOAD, FIRST_REGISTER + b);
+                code.op(ARITHMETIC[opcode - ADD]);
+                code.op(ISTORE, FIRST_REGISTER + b);
+                break;
+            case ADDI:
+            case SUBI:
+            case MULI:
+            case DIVI:
+                pushInt(code, writer, a);
+                code.op(ILOAD, FIRST_REGISTER + b);
+                code.op(ARITHMETIC[opcode - ADDI]);
+                code.op(ISTORE, FIRST_REGISTER + b);
+                break;
+            case CMP:
+                code.op(ILOAD, FIRST_REGISTER + a);
+                code.op(ISTORE, COMPARED);
+                code.op(ILOAD, FIRST_REGISTER + b);
+                code.op(ISTORE, WITH);
+                break;
+            case CMPI:
+                code.op(ILOAD, FIRST_REGISTER + a);
+                code.op(ISTORE, COMPARED);
+                pushInt(code, writer, b);
+                code.op(ISTORE, WITH);
+                break;
+            case JMP:
+                code.jump(GOTO, labels.get(a));
+                break;
+            case SYSCALL:
+                code.op(ALOAD_3);
+                code.op(ILOAD, FIRST_REGISTER);
+                code.op(ILOAD, FIRST_REGISTER + 1);
+                code.op2(INVOKEINTERFACE, writer.interfaceMethodRef(HOST, "syscall", "(II)V"));
+                code.u1(3); // the number of argument slots, including the receiver
+                code.u1(0);
+                break;
+            default:
+                // JE to JGE
+                code.op(ILOAD, COMPARED);
+                code.op(ILOAD, WITH);
+                code.jump(branch(opcode), labels.get(a));
+        }
+    }
+
+    private static int branch(int opcode) {
+        switch (opcode) {
+            case JE:
+                return IF_ICMPEQ;
+            case JNE:
+                return IF_ICMPNE;
+            case JL:
+                return IF_ICMPLT;
+            case JLE:
+                return IF_ICMPLE;
+            case JG:
+                return IF_ICMPGT;
+            default:
+                return IF_ICMPGE;
+        }
+    }
+
+    private static void read(Code code, ClassFileWriter writer) {
+        code.op2(INVOKEVIRTUAL, writer.methodRef(MEMORY, "read", "(I)I"));
+    }
+
+    private static void write(Code code, ClassFileWriter writer) {
+        code.op2(INVOKEVIRTUAL, writer.methodRef(MEMORY, "write", "(II)V"));
+    }
+
+    private static void increment(Code code, int local, int value) {
+        code.op(IINC);
+        code.u1(local);
+        code.u1(value);
+    }
+
+    private static void pushInt(Code code, ClassFileWriter writer, int value) {
+        if (value >= -1 && value <= 5) {
+            code.op(ICONST_0 + value);
+        } else if (value == (byte) value) {
+            code.op(BIPUSH, value);
+        } else if (value == (short) value) {
+            code.op2(SIPUSH, value);
+        } else {
+            code.op2(LDC_W, writer.integer(value));
+        }
+    }
+
+}
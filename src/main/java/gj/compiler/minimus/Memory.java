@@ -0,0 +1,123 @@
+package gj.compiler.minimus;
+
+import static gj.compiler.minimus.VirtualMachine.DATA_SECTION_START;
+
+/**
+ * ~ Memory ~
+ * <p/>
+ * The memory of a {@link VirtualMachine}: a range of ints, addressed from 0
+ * to size() - 1, with the code segment at the bottom, the data section from
+ * DATA_SECTION_START and the stack growing down from the top.  Addresses are
+ * unsigned, so a memory can be as large as a 32-bit address space.
+ * <p/>
+ * Every machine has a memory of its own, created by a {@link Factory} from
+ * the {@link Image} of the program it runs.  There are two kinds:
+ * <ul>
+ * <li>{@link #heap()}: MEM_SIZE ints on the heap, in pages that are shared
+ *     with the image until they are written (the default);</li>
+ * <li>{@link #direct(long)}: any size, in pages outside the heap (direct
+ *     ByteBuffers) that are only allocated once they are used, for programs
+ *     that need more than 64K but only use a part of it.</li>
+ * </ul>
+ * Reading or writing outside memory throws an IndexOutOfBoundsException.
+ */
+public abstract class Memory {
+
+    /** Creates the memory of a machine. */
+    public interface Factory {
+        /**
+         * @param image what the memory holds when a program starts
+         * @return the memory, holding the image
+         */
+        Memory create(Image image);
+    }
+
+    /**
+     * The memory as a program expects it when it starts: its code and then
+     * its data, with zeros everywhere else.  An image is shared by every
+     * machine that runs the program, and never changes.
+     */
+    public static final class Image {
+
+        static final Image EMPTY = new Image(new int[0], new int[0]);
+
+        /* The code and data, at their addresses. */
+        final int[] contents;
+        private volatile int[][] pages;
+
+        Image(int[] code, int[] data) {
+            contents = new int[data.length == 0 ? code.length : DATA_SECTION_START + data.length];
+            System.arraycopy(code, 0, contents, 0, code.length);
+            System.arraycopy(data, 0, contents, contents.length - data.length, data.length);
+        }
+
+        /**
+         * The number of ints up to the end of the data; everything after it
+         * is zero.
+         * @return the length of the image
+         */
+        public int length() {
+            return contents.length;
+        }
+
+        public int get(int address) {
+            return address < contents.length ? contents[address] : 0;
+        }
+
+        /* The image split up into the pages of HeapMemory, which the memory
+           of every machine shares. */
+        int[][] pages() {
+            int[][] split = pages;
+            if (split == null) {
+                pages = split = HeapMemory.split(this);
+            }
+            return split;
+        }
+    }
+
+    public static Factory heap() {
+        return HeapMemory::new;
+    }
+
+    /**
+     * Memory outside the heap, allocated a page at a time as it is used.
+     * @param size the number of ints, up to 2^32
+     * @return the factory
+     */
+    public static Factory direct(long size) {
+        if (size <= DATA_SECTION_START || size > 1L << 32) {
+            throw new IllegalArgumentException("Memory size out of range: " + size);
+        }
+        return image -> new DirectMemory(image, size);
+    }
+
+    public abstract int read(int address);
+
+    public abstract void write(int address, int value);
+
+    /**
+     * The number of ints in this memory.  The stack starts at the top.
+     * @return the size of the memory
+     */
+    public abstract long size();
+
+    /**
+     * Brings the memory back to the image it started with.
+     */
+    public abstract void reset();
+
+    /**
+     * The number of pages this memory holds of its own, rather than sharing
+     * with the image (or not allocating at all).
+     * @return number of pages
+     */
+    public abstract int pagesUsed();
+
+    /* Memory has to be large enough for the image. */
+    static void checkImage(Image image, long size) {
+        if (image.length() > size) {
+            throw new RuntimeException("Too much data for the data segment!");
+        }
+    }
+
+}
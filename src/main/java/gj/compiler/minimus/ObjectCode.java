@@ -0,0 +1,171 @@
+package gj.compiler.minimus;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ~ Object Code ~
+ * <p/>
+ * An assembled program for the {@link VirtualMachine}: the initial contents
+ * of the data segment, the packed instructions of the code segment and a
+ * symbol table.  The symbol table starts out with the labels of the code (by
+ * address); more symbols, like the homes of the variables (see
+ * Compiler.getVariables()), can be added before it is written.
+ * <p/>
+ * An object file holds the same, as big-endian ints, so that the segments can
+ * be mapped and copied straight into the memory of the machine:
+ * <pre>
+ * header   ::= "MVMO" version dataLength codeLength symbolCount
+ * data     ::= int * dataLength
+ * code     ::= int * codeLength
+ * symbol   ::= address nameLength name (UTF-8, padded to a multiple of 4)
+ * </pre>
+ * The code is checked when it is read, as a file may have been damaged or
+ * made by hand: it must be made of the instructions the assembler gives.
+ */
+public class ObjectCode {
+
+    private static final int MAGIC = 0x4d564d4f; // "MVMO"
+    private static final int VERSION = 1;
+    private static final int HEADER_INTS = 5;
+
+    private final int[] data;
+    private final int[] code;
+    private final Map<String, Integer> symbols;
+
+    public ObjectCode(int[] data, int[] code, Map<String, Integer> symbols) {
+        checkSizes(data.length, code.length);
+        VirtualMachine.verify(code);
+        this.data = data;
+        this.code = code;
+        this.symbols = new LinkedHashMap<>(symbols);
+    }
+
+    public int[] getData() {
+        return data;
+    }
+
+    public int[] getCode() {
+        return code;
+    }
+
+    /**
+     * The symbol table: addresses by name.  It can be modified.
+     * @return the symbols
+     */
+    public Map<String, Integer> getSymbols() {
+        return symbols;
+    }
+
+    /**
+     * Writes an object file.  It is written to a temporary file first and then
+     * moved into place, so a machine never loads half a file.
+     * @param file the object file
+     * @throws IOException if the file cannot be written
+     */
+    public void write(Path file) throws IOException {
+        byte[][] names = new byte[symbols.size()][];
+        int size = (HEADER_INTS + data.length + code.length) * 4;
+        int i = 0;
+        for (String name : symbols.keySet()) {
+            names[i] = name.getBytes(StandardCharsets.UTF_8);
+            size += 8 + padded(names[i].length);
+            i++;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(data.length).putInt(code.length).putInt(symbols.size());
+        buffer.asIntBuffer().put(data).put(code);
+        buffer.position(buffer.position() + (data.length + code.length) * 4);
+        i = 0;
+        for (int address : symbols.values()) {
+            buffer.putInt(address).putInt(names[i].length).put(names[i]);
+            buffer.position(buffer.position() + padded(names[i].length) - names[i].length);
+            i++;
+        }
+        buffer.flip();
+
+        Path directory = file.toAbsolutePath().getParent();
+        Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads an object file, including its symbol table.
+     * @param file the object file
+     * @return the object code
+     * @throws IOException if the file cannot be read or is not an object file
+     */
+    public static ObjectCode read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            IntBuffer ints = buffer.asIntBuffer();
+            int[] header = readHeader(ints);
+            int[] data = new int[header[0]];
+            int[] code = new int[header[1]];
+            ints.get(data).get(code);
+
+            buffer.position((HEADER_INTS + data.length + code.length) * 4);
+            Map<String, Integer> symbols = new LinkedHashMap<>();
+            for (int i = 0; i < header[2]; i++) {
+                int address = buffer.getInt();
+                byte[] name = new byte[buffer.getInt()];
+                buffer.get(name);
+                buffer.position(buffer.position() + padded(name.length) - name.length);
+                symbols.put(new String(name, StandardCharsets.UTF_8), address);
+            }
+            return new ObjectCode(data, code, symbols);
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed object file!", e);
+        }
+    }
+
+    /* Reads and checks the header, leaving the buffer at the data segment.
+       Returns the lengths of the data and the code and the number of
+       symbols. */
+    static int[] readHeader(IntBuffer ints) throws IOException {
+        if (ints.remaining() < HEADER_INTS || ints.get() != MAGIC || ints.get() != VERSION) {
+            throw new IOException("Not a Minimus object file, or an unsupported version!");
+        }
+        int[] header = {ints.get(), ints.get(), ints.get()};
+        try {
+            checkSizes(header[0], header[1]);
+        } catch (RuntimeException e) {
+            throw new IOException(e.getMessage());
+        }
+        if (header[2] < 0 || ints.remaining() < header[0] + header[1]) {
+            throw new IOException("Truncated object file!");
+        }
+        return header;
+    }
+
+    /* The segments have to fit in the memory of the machine. */
+    static void checkSizes(int dataLength, int codeLength) {
+        if (codeLength < 0 || codeLength > VirtualMachine.DATA_SECTION_START) {
+            throw new RuntimeException("Program too large for the code segment!");
+        }
+        // Whether the data fits is up to the memory of the machine that runs it.
+        if (dataLength < 0 || dataLength > Integer.MAX_VALUE - VirtualMachine.DATA_SECTION_START) {
+            throw new RuntimeException("Too much data for the data segment!");
+        }
+    }
+
+    private static int padded(int length) {
+        return (length + 3) & ~3;
+    }
+
+}
@@ -0,0 +1,295 @@
+package gj.compiler.minimus;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import static gj.compiler.minimus.Parser.Node;
+import static gj.compiler.minimus.Parser.NodeType;
+
+/**
+ * ~ Optimizer ~
+ * <p/>
+ * A stage between the parser and execution (or code generation) that
+ * rewrites the syntax tree into an equivalent, cheaper one:
+ * <ul>
+ * <li>constant folding: "12*(5+2)" becomes "84" and "3 < 4" becomes "1";</li>
+ * <li>algebraic simplification: "x*1", "1*x", "x/1", "x+0", "0+x" and "x-0"
+ *     become "x", and "x*0" and "0*x" become "0" when evaluating x has no
+ *     effect;</li>
+ * <li>dead branch elimination: an "if" with a constant condition is replaced
+ *     by the arm that is taken, and a "while" whose condition is constant
+ *     false disappears;</li>
+ * <li>literals are decoded once, so NODE_INTEGER no longer needs to be
+ *     parsed every time it is evaluated.</li>
+ * </ul>
+ * Evaluating "x" has an effect if it assigns a variable, divides by something
+ * that might be zero, or reads a variable that might not have been assigned
+ * yet (which is an error).  To know which variables have been assigned, the
+ * optimizer keeps track of the variables that are definitely assigned as it
+ * walks the program in execution order.
+ * <p/>
+ * Divisions by a constant zero are never folded, so the error still happens
+ * at run time.  The tree passed in is not modified, as it may be shared (see
+ * ParseCache); an optimized copy is returned.  Deferred bodies of a lazily
+ * parsed tree are parsed first.
+ */
+public class Optimizer {
+
+    /* The kinds of rewrites, for the report. */
+    public enum Rewrite {
+        CONSTANT_FOLDED, IDENTITY_SIMPLIFIED, BRANCH_REMOVED, LOOP_REMOVED, LITERAL_DECODED
+    }
+
+    private final Map<Rewrite, Integer> report = new EnumMap<>(Rewrite.class);
+
+    /* The variables (bit 0 for "a") that have definitely been assigned at the
+       point in the program being optimized. */
+    private long assigned;
+
+    /**
+     * Optimizes a program.
+     * @param root the root of the tree as returned by Parser.parse()
+     * @return the root of the optimized tree
+     */
+    public Node optimize(Node root) {
+        assigned = 0;
+        return optimizeNode(root);
+    }
+
+    /**
+     * The number of times each rewrite was applied, over all the programs
+     * optimized by this optimizer.
+     * @return counts by rewrite
+     */
+    public Map<Rewrite, Integer> getReport() {
+        return new EnumMap<>(report);
+    }
+
+    public int getCount(Rewrite rewrite) {
+        return report.getOrDefault(rewrite, 0);
+    }
+
+    private void applied(Rewrite rewrite) {
+        report.merge(rewrite, 1, Integer::sum);
+    }
+
+    private Node optimizeNode(Node node) {
+        switch (node.type) {
+            case NODE_DEFERRED:
+                return optimizeNode(((Parser.DeferredNode) node).resolve());
+            case NODE_INTEGER:
+                return literal(node);
+            case NODE_VARIABLE:
+            case NODE_EMPTY:
+                return copy(node);
+            case NODE_ASSIGNMENT: {
+                Node copy = copy(node, optimizeNode(node.children.get(0)));
+                assigned |= bit(node.value);
+                return copy;
+            }
+            case NODE_PRINT:
+                return copy(node, optimizeNode(node.children.get(0)));
+            case NODE_SEQUENCE: {
+                Node copy = copy(node);
+                for (Node child : node.children) {
+                    copy.addChild(optimizeNode(child));
+                }
+                return copy;
+            }
+            case NODE_IF:
+                return optimizeIf(node);
+            case NODE_WHILE:
+                return optimizeWhile(node);
+            default:
+                return optimizeOperation(node);
+        }
+    }
+
+    private Node optimizeIf(Node node) {
+        Node condition = optimizeNode(node.children.get(0));
+        if (isConstant(condition)) {
+            applied(Rewrite.BRANCH_REMOVED);
+            if (condition.number != 0) {
+                return optimizeNode(node.children.get(1));
+            }
+            return node.children.size() > 2 ? optimizeNode(node.children.get(2)) : empty(node);
+        }
+
+        // Only what is assigned in both arms is definitely assigned afterwards.
+        long before = assigned;
+        Node copy = copy(node, condition, optimizeNode(node.children.get(1)));
+        long afterThen = assigned;
+        assigned = before;
+        if (node.children.size() > 2) {
+            copy.addChild(optimizeNode(node.children.get(2)));
+        }
+        assigned &= afterThen;
+        return copy;
+    }
+
+    private Node optimizeWhile(Node node) {
+        Node condition = optimizeNode(node.children.get(0));
+        if (isConstant(condition) && condition.number == 0) {
+            applied(Rewrite.LOOP_REMOVED);
+            return empty(node);
+        }
+
+        // The body may not run at all, so what it assigns does not count afterwards.
+        long before = assigned;
+        Node copy = copy(node, condition, optimizeNode(node.children.get(1)));
+        assigned = before;
+        return copy;
+    }
+
+    private Node optimizeOperation(Node node) {
+        Node left = optimizeNode(node.children.get(0));
+        Node right = optimizeNode(node.children.get(1));
+
+        if (isConstant(left) && isConstant(right) && !(node.type == NodeType.NODE_DIVIDE && right.number == 0)) {
+            applied(Rewrite.CONSTANT_FOLDED);
+            return constant(node, evaluate(node.type, left.number, right.number));
+        }
+
+        switch (node.type) {
+            case NODE_ADDITION:
+                if (isConstant(right, 0)) {
+                    return simplified(left);
+                }
+                if (isConstant(left, 0)) {
+                    return simplified(right);
+                }
+                break;
+            case NODE_SUBTRACTION:
+                if (isConstant(right, 0)) {
+                    return simplified(left);
+                }
+                break;
+            case NODE_MULTIPLY:
+                if (isConstant(right, 1)) {
+                    return simplified(left);
+                }
+                if (isConstant(left, 1)) {
+                    return simplified(right);
+                }
+                if ((isConstant(right, 0) && isPure(left)) || (isConstant(left, 0) && isPure(right))) {
+                    applied(Rewrite.IDENTITY_SIMPLIFIED);
+                    return constant(node, 0);
+                }
+                break;
+            case NODE_DIVIDE:
+                if (isConstant(right, 1)) {
+                    return simplified(left);
+                }
+                break;
+        }
+        return copy(node, left, right);
+    }
+
+    private Node simplified(Node node) {
+        applied(Rewrite.IDENTITY_SIMPLIFIED);
+        return node;
+    }
+
+    /* Whether evaluating an (already optimized) expression can have no effect
+       other than producing its value. */
+    private boolean isPure(Node node) {
+        switch (node.type) {
+            case NODE_INTEGER:
+                return true;
+            case NODE_VARIABLE:
+                return (assigned & bit(node.value)) != 0;
+            case NODE_ASSIGNMENT:
+                return false;
+            case NODE_DIVIDE:
+                if (!isConstant(node.children.get(1)) || node.children.get(1).number == 0) {
+                    return false;
+                }
+                break;
+        }
+        for (Node child : node.children) {
+            if (!isPure(child)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* Performs an operation the same way Interpreter does. */
+    static int evaluate(NodeType type, int lh, int rh) {
+        switch (type) {
+            case NODE_LESS_THAN:
+                return lh < rh ? 1 : 0;
+            case NODE_GREATER_THAN:
+                return lh > rh ? 1 : 0;
+            case NODE_LESS_EQUAL_THAN:
+                return lh <= rh ? 1 : 0;
+            case NODE_GREATER_EQUAL_THAN:
+                return lh >= rh ? 1 : 0;
+            case NODE_EQUALS:
+                return lh == rh ? 1 : 0;
+            case NODE_NOT_EQUALS:
+                return lh != rh ? 1 : 0;
+            case NODE_ADDITION:
+                return lh + rh;
+            case NODE_SUBTRACTION:
+                return lh - rh;
+            case NODE_MULTIPLY:
+                return lh * rh;
+            case NODE_DIVIDE:
+                return lh / rh;
+        }
+        throw new RuntimeException("Unsupported comparison/operation!");
+    }
+
+    /* A literal that does not fit in an int is left alone; it fails when it
+       is evaluated, as it always has. */
+    private Node literal(Node node) {
+        Node copy = copy(node);
+        try {
+            copy.number = Integer.parseInt(node.value);
+            copy.decoded = true;
+            applied(Rewrite.LITERAL_DECODED);
+        } catch (NumberFormatException e) {
+            // not decoded
+        }
+        return copy;
+    }
+
+    private static boolean isConstant(Node node) {
+        return node.type == NodeType.NODE_INTEGER && node.decoded;
+    }
+
+    private static boolean isConstant(Node node, int value) {
+        return isConstant(node) && node.number == value;
+    }
+
+    private static long bit(String variable) {
+        return 1L << (variable.charAt(0) - 'a');
+    }
+
+    /* A decoded literal that takes the place of (and the span of) a node. */
+    private static Node constant(Node original, int value) {
+        Node node = new Node(NodeType.NODE_INTEGER, Integer.toString(value));
+        spanOf(node, original);
+        node.number = value;
+        node.decoded = true;
+        return node;
+    }
+
+    private static Node empty(Node original) {
+        return spanOf(new Node(NodeType.NODE_EMPTY), original);
+    }
+
+    private static Node copy(Node original, Node... children) {
+        return spanOf(new Node(original.type, original.value, children), original);
+    }
+
+    private static Node spanOf(Node node, Node original) {
+        node.start = original.start;
+        node.end = original.end;
+        node.line = original.line;
+        node.endLine = original.endLine;
+        return node;
+    }
+
+}
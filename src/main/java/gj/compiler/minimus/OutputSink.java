@@ -0,0 +1,76 @@
+package gj.compiler.minimus;
+
+import java.io.Closeable;
+import java.util.function.IntConsumer;
+
+/**
+ * ~ Output Sink ~
+ * <p/>
+ * Where the output of a program goes: the values printed by "print" in the
+ * {@link Interpreter} and by the print system call of the
+ * {@link VirtualMachine}, and the symbol table the Interpreter prints at the
+ * end.  Every value or line of text goes on a line of its own.
+ * <ul>
+ * <li>{@link #SYSTEM_OUT}: straight to System.out (the default);</li>
+ * <li>{@link PrintStreamSink}: to any PrintStream;</li>
+ * <li>{@link BatchedSink}: formatted into a buffer that is written to a
+ *     channel in large writes, possibly on a background thread;</li>
+ * <li>{@link CollectingSink}: keeps everything, for tests;</li>
+ * <li>{@link #DISCARD}: throws everything away, for benchmarks.</li>
+ * </ul>
+ * A sink is used by one program at a time and does not have to be thread
+ * safe.  The Interpreter and the VirtualMachine flush the sink when a program
+ * ends, but leave it open, so that it can be used for the next program.
+ */
+public interface OutputSink extends IntConsumer, Closeable {
+
+    /** Prints to System.out, whatever it is at the time. */
+    OutputSink SYSTEM_OUT = new OutputSink() {
+        @Override
+        public void print(int value) {
+            System.out.println(value);
+        }
+
+        @Override
+        public void print(String line) {
+            System.out.println(line);
+        }
+
+        @Override
+        public void flush() {
+            System.out.flush();
+        }
+    };
+
+    OutputSink DISCARD = new OutputSink() {
+        @Override
+        public void print(int value) {
+        }
+
+        @Override
+        public void print(String line) {
+        }
+    };
+
+    void print(int value);
+
+    void print(String line);
+
+    /**
+     * Writes out what has been buffered, if anything.
+     */
+    default void flush() {
+    }
+
+    /* So that a sink can be handed to code that prints to an IntConsumer. */
+    @Override
+    default void accept(int value) {
+        print(value);
+    }
+
+    @Override
+    default void close() {
+        flush();
+    }
+
+}
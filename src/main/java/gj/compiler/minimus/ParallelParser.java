@@ -0,0 +1,171 @@
+package gj.compiler.minimus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import static gj.compiler.minimus.Parser.Node;
+import static gj.compiler.minimus.Parser.NodeType;
+
+/**
+ * ~ Parallel Parser ~
+ * <p/>
+ * A program is a single statement, but in practice it is one large sequence:
+ * "{ ... }".  The statements inside that sequence can be parsed independently
+ * of each other, as long as we know where each of them starts.
+ * <p/>
+ * A quick pre-pass over the characters finds those places.  Minimus has no
+ * strings or comments, so braces can simply be counted: a top-level statement
+ * ends at a ";" or "}" that brings us back to the outer sequence, unless it is
+ * followed by an "else".  The pre-pass also counts lines, so that every chunk
+ * knows the line it starts on.  The statements are then grouped into chunks of
+ * roughly CHUNK_SIZE characters, which are scanned and parsed as tasks on a
+ * ForkJoinPool, and the results are joined into a single NODE_SEQUENCE.
+ * <p/>
+ * Programs that do not have this shape, or are too small to benefit, are
+ * parsed by the ordinary {@link Parser}.  The same happens when one of the
+ * chunks has a syntax error, so the error message (and its line number) is
+ * exactly the one the ordinary parser gives.
+ */
+public class ParallelParser {
+
+    public static final int CHUNK_SIZE = 1 << 16;
+
+    private final String program;
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+
+    public ParallelParser(String program) {
+        this(program, ForkJoinPool.commonPool());
+    }
+
+    public ParallelParser(String program, ForkJoinPool pool) {
+        this(program, pool, CHUNK_SIZE);
+    }
+
+    ParallelParser(String program, ForkJoinPool pool, int chunkSize) {
+        this.program = program;
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+    }
+
+    /* The main entry point. */
+    public Node parse() {
+        List<int[]> chunks = split();
+        if (chunks == null || chunks.size() < 2) {
+            return new Parser(program).parse();
+        }
+
+        List<Node> statements;
+        try {
+            statements = pool.invoke(new ChunkTask(chunks, 0, chunks.size()));
+        } catch (RuntimeException e) {
+            return new Parser(program).parse(); // reports the error the way it always has
+        }
+
+        int[] outer = chunks.get(0);
+        int[] close = chunks.get(chunks.size() - 1);
+        Node sequence = new Node(NodeType.NODE_SEQUENCE);
+        sequence.children = statements;
+        sequence.start = outer[START] - 1;
+        sequence.line = outer[OPEN_LINE];
+        sequence.end = close[CLOSE] + 1;
+        sequence.endLine = close[CLOSE_LINE];
+        return sequence;
+    }
+
+    /* A chunk is described by an int[]: where it starts and ends, and the
+       line it starts on.  The first chunk also remembers the line of the
+       opening brace and the last one the position and line of the closing
+       brace. */
+    private static final int START = 0, END = 1, LINE = 2, OPEN_LINE = 3, CLOSE = 4, CLOSE_LINE = 5;
+
+    /* The pre-pass.  Returns the chunks, or null if the program is not a
+       single, balanced sequence. */
+    private List<int[]> split() {
+        int length = program.length();
+        int line = 1;
+        int i = 0;
+        while (i < length && Character.isWhitespace(program.charAt(i))) {
+            if (program.charAt(i++) == '\n') {
+                line++;
+            }
+        }
+        if (i == length || program.charAt(i) != '{') {
+            return null;
+        }
+
+        List<int[]> chunks = new ArrayList<>();
+        int openLine = line;
+        int chunkStart = ++i;
+        int chunkLine = line;
+        int depth = 1;
+        for (; i < length; i++) {
+            char ch = program.charAt(i);
+            if (ch == '\n') {
+                line++;
+            } else if (ch == '{') {
+                depth++;
+            } else if (ch == '}' && --depth == 0) {
+                break;
+            }
+
+            // Is this the end of a top-level statement, and of a big enough chunk?
+            if (depth == 1 && (ch == ';' || ch == '}') && i + 1 - chunkStart >= chunkSize && !followedByElse(i + 1)) {
+                chunks.add(new int[]{chunkStart, i + 1, chunkLine, openLine, 0, 0});
+                chunkStart = i + 1;
+                chunkLine = line;
+            }
+        }
+        if (depth != 0) {
+            return null;
+        }
+        for (int j = i + 1; j < length; j++) {
+            if (!Character.isWhitespace(program.charAt(j))) {
+                return null;
+            }
+        }
+        chunks.add(new int[]{chunkStart, i, chunkLine, openLine, i, line});
+        return chunks;
+    }
+
+    private boolean followedByElse(int i) {
+        while (i < program.length() && Character.isWhitespace(program.charAt(i))) {
+            i++;
+        }
+        return program.startsWith("else", i)
+                && (i + 4 == program.length() || !Character.isAlphabetic(program.charAt(i + 4)));
+    }
+
+    /* Parses a range of chunks, splitting it in two until a single chunk is
+       left. */
+    private class ChunkTask extends RecursiveTask<List<Node>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<int[]> chunks;
+        private final int from;
+        private final int to;
+
+        ChunkTask(List<int[]> chunks, int from, int to) {
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<Node> compute() {
+            if (to - from == 1) {
+                int[] chunk = chunks.get(from);
+                return new Parser(program, chunk[START], chunk[END], chunk[LINE]).statements();
+            }
+            int middle = (from + to) >>> 1;
+            ChunkTask right = new ChunkTask(chunks, middle, to);
+            right.fork();
+            List<Node> statements = new ArrayList<>(new ChunkTask(chunks, from, middle).compute());
+            statements.addAll(right.join());
+            return statements;
+        }
+    }
+
+}
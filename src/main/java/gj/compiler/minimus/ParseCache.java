@@ -0,0 +1,202 @@
+package gj.compiler.minimus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static gj.compiler.minimus.Parser.Node;
+
+/**
+ * ~ Parse Cache ~
+ * <p/>
+ * Remembers the syntax trees of programs that have been parsed before, so
+ * that running the same program again skips the scanner and the parser
+ * altogether.  Programs are identified by the SHA-256 hash of their text.
+ * <p/>
+ * There are two tiers.  The first is a bounded in-memory map that forgets the
+ * least recently used tree once it is full.  The second, optional tier is a
+ * directory on disk with a file per program, holding the tree in the format
+ * of {@link AstSerializer}.  A tree found on disk is loaded without scanning
+ * anything and is then kept in memory as well.
+ * <p/>
+ * The trees handed out are shared between everyone using the cache, so they
+ * must not be modified.
+ */
+public class ParseCache {
+
+    private static final String EXTENSION = ".mast";
+
+    private final Map<String, Node> memory;
+    private final Path directory;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong storeFailures = new AtomicLong();
+
+    /**
+     * An in-memory cache only.
+     * @param capacity the maximum number of trees kept in memory
+     */
+    public ParseCache(int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * An in-memory cache backed by a directory on disk.
+     * @param capacity the maximum number of trees kept in memory
+     * @param directory where the trees are stored, or null for none
+     */
+    public ParseCache(int capacity, Path directory) {
+        // An access ordered LinkedHashMap is a ready-made LRU.
+        this.memory = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Node> eldest) {
+                return size() > capacity;
+            }
+        };
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the tree of the program, parsing it only if it is in neither
+     * tier of the cache.
+     * @param program the source of the program
+     * @return the (shared) syntax tree
+     */
+    public Node parse(String program) {
+        String key = hash(program);
+
+        Node node;
+        synchronized (memory) {
+            node = memory.get(key);
+        }
+        if (node != null) {
+            hits.incrementAndGet();
+            return node;
+        }
+
+        node = load(key);
+        if (node != null) {
+            diskHits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            node = new Parser(program).parse();
+            store(key, node);
+        }
+        synchronized (memory) {
+            memory.put(key, node);
+        }
+        return node;
+    }
+
+    /* Reads a tree from disk.  A file that cannot be read is treated as if it
+       was not there; it will be replaced. */
+    private Node load(String key) {
+        if (directory == null) {
+            return null;
+        }
+        try (InputStream in = Files.newInputStream(directory.resolve(key + EXTENSION))) {
+            return AstSerializer.read(new DataInputStream(new BufferedInputStream(in)));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /* Writes a tree to disk.  It is written to a temporary file first, so that
+       a concurrent reader never sees half a file.  A tree that cannot be
+       written is only counted: the program was parsed all the same, and it
+       is parsed again next time. */
+    private void store(String key, Node node) {
+        if (directory == null) {
+            return;
+        }
+        Path temporary = null;
+        try {
+            Files.createDirectories(directory);
+            temporary = Files.createTempFile(directory, key, ".tmp");
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporary))) {
+                AstSerializer.write(node, new DataOutputStream(out));
+            }
+            Files.move(temporary, directory.resolve(key + EXTENSION), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            storeFailures.incrementAndGet();
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException ignored) {
+                    // Nothing more to be done; the name is never used again.
+                }
+            }
+        }
+    }
+
+    private static String hash(String program) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(program.getBytes(StandardCharsets.UTF_8));
+            StringBuilder b = new StringBuilder(digest.length * 2);
+            for (byte d : digest) {
+                b.append(Character.forDigit((d >> 4) & 0xf, 16)).append(Character.forDigit(d & 0xf, 16));
+            }
+            return b.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available!", e);
+        }
+    }
+
+    /**
+     * The number of trees found in memory.
+     * @return number of memory hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * The number of trees loaded from disk.
+     * @return number of disk hits
+     */
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    /**
+     * The number of programs that had to be parsed.
+     * @return number of misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * The number of trees that could not be written to disk.
+     * @return number of failed writes
+     */
+    public long getStoreFailures() {
+        return storeFailures.get();
+    }
+
+    /**
+     * The number of trees currently held in memory.
+     * @return number of trees
+     */
+    public int size() {
+        synchronized (memory) {
+            return memory.size();
+        }
+    }
+
+}
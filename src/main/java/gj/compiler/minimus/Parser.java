@@ -1,11 +1,14 @@
 package gj.compiler.minimus;
 
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 import static gj.compiler.minimus.Scanner.TokenType;
-import static gj.compiler.minimus.Scanner.Token;
 
 public class Parser {
 
@@ -17,7 +20,7 @@ public class Parser {
         NODE_ASSIGNMENT, NODE_IF, NODE_WHILE, NODE_SEQUENCE, NODE_EMPTY, NODE_PRINT,
         NODE_LESS_THAN, NODE_GREATER_THAN, NODE_LESS_EQUAL_THAN, NODE_GREATER_EQUAL_THAN,
         NODE_EQUALS, NODE_NOT_EQUALS, NODE_ADDITION, NODE_SUBTRACTION, NODE_MULTIPLY, NODE_DIVIDE,
-        NODE_VARIABLE, NODE_INTEGER
+        NODE_VARIABLE, NODE_INTEGER, NODE_DEFERRED
     }
 
     /* The node of the syntax tree.  This gets build dynamically as the code
@@ -28,6 +31,25 @@ public class Parser {
         public String value;
         public List<Node> children;
 
+        /* Where the node was found in the source: the offset of its first
+           character, the offset just after its last character, and the lines
+           of its first and last token.  A statement's span includes its
+           terminating ";" and a sequence's span its braces. */
+        public int start;
+        public int end;
+        public int line;
+        public int endLine;
+
+        /* The value of a NODE_INTEGER once it has been decoded (see the
+           Optimizer), so that it does not need to be parsed every time it is
+           evaluated. */
+        public boolean decoded;
+        public int number;
+
+        /* The slot of the variable of a NODE_VARIABLE or NODE_ASSIGNMENT in
+           a Frame, once the tree has been through the Resolver. */
+        public int slot;
+
         public Node(NodeType type, String value, Node... child) {
             this.type = type;
             this.value = value;
@@ -44,10 +66,95 @@ public class Parser {
 
     }
 
-    private final Scanner scanner;
+    /* In lazy mode, the body of an "if" or "while" is not parsed straight
+       away; it is only brace-matched and its span recorded in a DeferredNode
+       (of type NODE_DEFERRED).  It is parsed, also lazily, the first time
+       resolve() is called on it, which the interpreter does when it first
+       reaches the body.  Syntax errors in such a body therefore only surface
+       then, or when validate() is called. */
+    public static class DeferredNode extends Node {
+        private final String program;
+        private Node resolved;
+
+        DeferredNode(String program) {
+            super(NodeType.NODE_DEFERRED);
+            this.program = program;
+        }
+
+        public synchronized Node resolve() {
+            if (resolved == null) {
+                resolved = Resolver.resolve(new Parser(program, start, end, line, true).parse());
+            }
+            return resolved;
+        }
+    }
+
+    /* A statement starts either with: "if", "while", "print", "{", "id" or
+       ";".  These sets are built once; the parser consults them for almost
+       every token. */
+    private static final Set<TokenType> STATEMENT_START = EnumSet.of(TokenType.TOKEN_IF,
+            TokenType.TOKEN_WHILE, TokenType.TOKEN_PRINT, TokenType.TOKEN_CURLY_OPEN, TokenType.TOKEN_ID,
+            TokenType.TOKEN_SEMICOLON);
+    private static final Set<TokenType> REL_OPERATION = EnumSet.of(TokenType.TOKEN_LESS_THAN,
+            TokenType.TOKEN_GREATER_THAN, TokenType.TOKEN_LESS_EQUAL_THAN, TokenType.TOKEN_GREATER_EQUAL_THAN,
+            TokenType.TOKEN_EQUALS, TokenType.TOKEN_NOT_EQUALS);
+    private static final Set<TokenType> SUM_OPERATION = EnumSet.of(TokenType.TOKEN_PLUS, TokenType.TOKEN_MINUS);
+    private static final Set<TokenType> FACTOR_OPERATION = EnumSet.of(TokenType.TOKEN_MULTIPLY,
+            TokenType.TOKEN_DIVIDE);
+
+    /* The parser reads its tokens either from a Scanner (one token at a time)
+       or from a TokenBuffer (the whole program tokenized up front). */
+    private final TokenSource scanner;
+
+    /* Lazy parsing needs the source of the program to parse the deferred
+       bodies later on, so it is only available for String programs. */
+    private final String program;
+    private final boolean lazy;
 
     public Parser(String program) {
-        scanner = new Scanner(program);
+        this(program, false);
+    }
+
+    public Parser(String program, boolean lazy) {
+        this(new Scanner(program), program, lazy);
+    }
+
+    /* Large programs do not need to be read into memory first; the scanner
+       only keeps a small window of the source. */
+    public Parser(Reader program) {
+        this(new Scanner(program));
+    }
+
+    public Parser(Scanner scanner) {
+        this(scanner, null, false);
+    }
+
+    /* Reads tokens by index from an already tokenized program. */
+    public Parser(TokenBuffer tokens) {
+        this(tokens, null, false);
+    }
+
+    /* Parses the part of a program between "from" and "to", which starts on
+       the given line.  The spans and line numbers of the nodes, as well as
+       those in error messages, are those of the whole program. */
+    Parser(String program, int from, int to, int line) {
+        this(program, from, to, line, false);
+    }
+
+    Parser(String program, int from, int to, int line, boolean lazy) {
+        this(new Scanner(new StringReader(program.substring(from, to)), from, line), program, lazy);
+    }
+
+    /* The same, for a part of a program that is read from elsewhere and
+       starts at offset "from". */
+    Parser(Reader part, int from, int line) {
+        this(new Scanner(part, from, line), null, false);
+    }
+
+    private Parser(TokenSource scanner, String program, boolean lazy) {
+        this.scanner = scanner;
+        this.program = program;
+        this.lazy = lazy;
     }
 
     /* The main entry point. */
@@ -55,6 +162,67 @@ public class Parser {
         return program();
     }
 
+    /**
+     * Parses the program into a compact tree, without recursion (see
+     * {@link IterativeParser}), so that the nesting of a program is only
+     * limited by the heap.  The grammar and the errors are the same as those
+     * of parse(), but for an integer literal that does not fit an int, which
+     * is an error here and left to the engine by parse().  The program is
+     * never parsed lazily.
+     * @return the compact tree
+     */
+    public CompactTree parseCompact() {
+        return new IterativeParser(scanner).parse();
+    }
+
+    /**
+     * Parses every deferred body in a tree that was parsed lazily, so that
+     * any syntax error in the program is reported now.  The deferred nodes
+     * are replaced by their subtrees.
+     * @param root the root of the tree
+     * @return the root, fully parsed
+     */
+    public static Node validate(Node root) {
+        if (root.type == NodeType.NODE_DEFERRED) {
+            root = ((DeferredNode) root).resolve();
+        }
+        for (int i = 0; i < root.children.size(); i++) {
+            root.children.set(i, validate(root.children.get(i)));
+        }
+        return root;
+    }
+
+    /**
+     * Parses a list of statements up to the end of the input, rather than a
+     * single statement.  This is used to parse the inside of a sequence
+     * without its braces.
+     */
+    List<Node> statements() {
+        List<Node> statements = new ArrayList<>();
+        while (STATEMENT_START.contains(scanner.peekType())) {
+            statements.add(statement());
+        }
+        if (scanner.nextType() != TokenType.TOKEN_EOI) {
+            throw new RuntimeException(e("Unexpected input, valid statement expected!"));
+        }
+        return statements;
+    }
+
+    /* The current line number of the token source. */
+    int getLineNumber() {
+        return scanner.getLineNumber();
+    }
+
+    /* Records the source span of a node.  It starts at the given offset and
+       line, and ends with the token that was consumed last. */
+    private Node span(Node node, int start, int line) {
+        node.start = start;
+        node.line = line;
+        node.end = scanner.previousEnd();
+        node.endLine = scanner.previousLine();
+        return node;
+    }
+
     /**
      * A convenience method that takes an error and formats it with the line
      * number.
@@ -73,7 +241,7 @@ public class Parser {
         Node statement = statement();
 
         // This should be the end of the program,
-        if (scanner.next().type != TokenType.TOKEN_EOI) {
+        if (scanner.nextType() != TokenType.TOKEN_EOI) {
             throw new RuntimeException(e("Unexpected input after end of program!"));
         }
 
@@ -94,69 +262,83 @@ public class Parser {
      * <pre/>
      */
     private Node statement() {
-        switch (scanner.peek().type) {
+        int start = scanner.peekOffset();
+        int line = scanner.peekLine();
+        switch (scanner.peekType()) {
             case TOKEN_IF:
-                scanner.next(); // discards known "if"
-                Node statement = new Node(NodeType.NODE_IF, null, parenthesisExpression(), statement());
-                if (scanner.peek().type == TokenType.TOKEN_ELSE) { // optional "else"
-                    scanner.next(); // discards known "else" token
-                    statement.addChild(statement()); // add the "else"
+                scanner.nextType(); // discards known "if"
+                Node statement = new Node(NodeType.NODE_IF, null, parenthesisExpression(), body());
+                if (scanner.peekType() == TokenType.TOKEN_ELSE) { // optional "else"
+                    scanner.nextType(); // discards known "else" token
+                    statement.addChild(body()); // add the "else"
                 }
-                return statement;
+                return span(statement, start, line);
             case TOKEN_WHILE:
-                scanner.next(); // discards known "while" token
-                return new Node(NodeType.NODE_WHILE, null, parenthesisExpression(), statement());
+                scanner.nextType(); // discards known "while" token
+                return span(new Node(NodeType.NODE_WHILE, null, parenthesisExpression(), body()), start, line);
             case TOKEN_CURLY_OPEN:
-                scanner.next(); // discards known "{" token
+                scanner.nextType(); // discards known "{" token
 
-                // A statement starts either with: "if", "while", "print", "{", "id" or ";"
-                TokenType[] tokens = new TokenType[]{TokenType.TOKEN_IF, TokenType.TOKEN_WHILE, TokenType.TOKEN_PRINT,
-                        TokenType.TOKEN_CURLY_OPEN, TokenType.TOKEN_ID, TokenType.TOKEN_SEMICOLON};
                 Node sequence = new Node(NodeType.NODE_SEQUENCE);
-                while (Arrays.asList(tokens).contains(scanner.peek().type)) {
+                while (STATEMENT_START.contains(scanner.peekType())) {
                     sequence.addChild(statement());
                 }
-                if (scanner.next().type != TokenType.TOKEN_CURLY_CLOSE) { // discards known "}" token
+                if (scanner.nextType() != TokenType.TOKEN_CURLY_CLOSE) { // discards known "}" token
                     throw new RuntimeException(e("} expected or valid statement!"));
                 }
 
-                return sequence;
+                return span(sequence, start, line);
             case TOKEN_SEMICOLON:
-                scanner.next(); // discards known ";" token
-                return new Node(NodeType.NODE_EMPTY, null);
+                scanner.nextType(); // discards known ";" token
+                return span(new Node(NodeType.NODE_EMPTY, null), start, line);
             case TOKEN_PRINT:
-                scanner.next(); // discards known "print" token
-                if (scanner.next().type != TokenType.TOKEN_PAREN_OPEN) {
+                scanner.nextType(); // discards known "print" token
+                if (scanner.nextType() != TokenType.TOKEN_PAREN_OPEN) {
                     throw new RuntimeException(e("( expected!"));
                 }
                 Node whatToPrint = expression();
-                if (scanner.next().type != TokenType.TOKEN_PAREN_CLOSE) {
+                if (scanner.nextType() != TokenType.TOKEN_PAREN_CLOSE) {
                     throw new RuntimeException(e(") expected!"));
                 }
-                if (scanner.next().type != TokenType.TOKEN_SEMICOLON) { // discards known "}" token
+                if (scanner.nextType() != TokenType.TOKEN_SEMICOLON) { // discards known "}" token
                     throw new RuntimeException(e("; expected!"));
                 }
-                return new Node(NodeType.NODE_PRINT, null, whatToPrint);
+                return span(new Node(NodeType.NODE_PRINT, null, whatToPrint), start, line);
             default: // expression will check if syntactical correct
                 Node expr = expression();
-                if (scanner.next().type != TokenType.TOKEN_SEMICOLON) {
+                if (scanner.nextType() != TokenType.TOKEN_SEMICOLON) {
                     throw new RuntimeException(e("; expected!"));
                 }
-                return expr;
+                return span(expr, start, line);
         }
     }
 
+    /**
+     * The body of an "if", "else" or "while" is an ordinary statement.  In
+     * lazy mode, a body that is a block is skipped over by matching its
+     * braces, without scanning it into tokens.
+     */
+    private Node body() {
+        if (!lazy || scanner.peekType() != TokenType.TOKEN_CURLY_OPEN) {
+            return statement();
+        }
+        int start = scanner.peekOffset();
+        int line = scanner.peekLine();
+        scanner.skipBlock();
+        return span(new DeferredNode(program), start, line);
+    }
+
     /**
      * A parenthesisExpression is simply an expression inside parenthesis. There is no need to preserve the "brackets"
      * as the location within the tree will enforce precedence automatically.
      * <pre> paren_expr ::= "(" expr ")" </pre>
      */
     private Node parenthesisExpression() {
-        if (scanner.next().type != TokenType.TOKEN_PAREN_OPEN) {
+        if (scanner.nextType() != TokenType.TOKEN_PAREN_OPEN) {
             throw new RuntimeException(e("( expected!"));
         }
         Node node = expression();
-        if (scanner.next().type != TokenType.TOKEN_PAREN_CLOSE) {
+        if (scanner.nextType() != TokenType.TOKEN_PAREN_CLOSE) {
             throw new RuntimeException(e(") expected!"));
         }
         return node;
@@ -172,16 +354,16 @@ public class Parser {
      **/
     private Node expression() {
         // If the next token is not an "id", it has to be a "test()".
-        if (scanner.peek().type != TokenType.TOKEN_ID) {
+        if (scanner.peekType() != TokenType.TOKEN_ID) {
             return test();
         }
 
         // It could either be an "assignment" or a "test()".
         Node tmp = test();
-        if (tmp.type == NodeType.NODE_VARIABLE && scanner.peek().type == TokenType.TOKEN_ASSIGNMENT) {
+        if (tmp.type == NodeType.NODE_VARIABLE && scanner.peekType() == TokenType.TOKEN_ASSIGNMENT) {
             // It's an assignment, so we need to repurpose the returned node.
-            scanner.next(); // discard known "assignment"
-            return new Node(NodeType.NODE_ASSIGNMENT, tmp.value, expression());
+            scanner.nextType(); // discard known "assignment"
+            return span(new Node(NodeType.NODE_ASSIGNMENT, tmp.value, expression()), tmp.start, tmp.line);
         }
 
         // It was a "test()".
@@ -198,26 +380,22 @@ public class Parser {
     private Node test() {
         Node sum = sum();
 
-        TokenType[] relOperation = new TokenType[]{TokenType.TOKEN_LESS_THAN, TokenType.TOKEN_GREATER_THAN,
-                TokenType.TOKEN_LESS_EQUAL_THAN, TokenType.TOKEN_GREATER_EQUAL_THAN,
-                TokenType.TOKEN_EQUALS, TokenType.TOKEN_NOT_EQUALS};
-
-        if (Arrays.asList(relOperation).contains(scanner.peek().type)) {
-            Token cmp = scanner.next();
+        if (REL_OPERATION.contains(scanner.peekType())) {
+            TokenType cmp = scanner.nextType();
             Node right = sum();
-            switch (cmp.type) {
+            switch (cmp) {
                 case TOKEN_LESS_THAN:
-                    return new Node(NodeType.NODE_LESS_THAN, null, sum, right);
+                    return span(new Node(NodeType.NODE_LESS_THAN, null, sum, right), sum.start, sum.line);
                 case TOKEN_GREATER_THAN:
-                    return new Node(NodeType.NODE_GREATER_THAN, null, sum, right);
+                    return span(new Node(NodeType.NODE_GREATER_THAN, null, sum, right), sum.start, sum.line);
                 case TOKEN_LESS_EQUAL_THAN:
-                    return new Node(NodeType.NODE_LESS_EQUAL_THAN, null, sum, right);
+                    return span(new Node(NodeType.NODE_LESS_EQUAL_THAN, null, sum, right), sum.start, sum.line);
                 case TOKEN_GREATER_EQUAL_THAN:
-                    return new Node(NodeType.NODE_GREATER_EQUAL_THAN, null, sum, right);
+                    return span(new Node(NodeType.NODE_GREATER_EQUAL_THAN, null, sum, right), sum.start, sum.line);
                 case TOKEN_EQUALS:
-                    return new Node(NodeType.NODE_EQUALS, null, sum, right);
+                    return span(new Node(NodeType.NODE_EQUALS, null, sum, right), sum.start, sum.line);
                 case TOKEN_NOT_EQUALS:
-                    return new Node(NodeType.NODE_NOT_EQUALS, null, sum, right);
+                    return span(new Node(NodeType.NODE_NOT_EQUALS, null, sum, right), sum.start, sum.line);
             }
         }
         return sum;
@@ -229,14 +407,13 @@ public class Parser {
      */
     private Node sum() {
         Node sum = factor();
-        TokenType[] sumOperation = new TokenType[]{TokenType.TOKEN_PLUS, TokenType.TOKEN_MINUS};
-        while (Arrays.asList(sumOperation).contains(scanner.peek().type)) {
-            switch (scanner.next().type) { // guaranteed to be "plus" or "minus"
+        while (SUM_OPERATION.contains(scanner.peekType())) {
+            switch (scanner.nextType()) { // guaranteed to be "plus" or "minus"
                 case TOKEN_PLUS:
-                    sum = new Node(NodeType.NODE_ADDITION, null, sum, factor());
+                    sum = span(new Node(NodeType.NODE_ADDITION, null, sum, factor()), sum.start, sum.line);
                     break;
                 case TOKEN_MINUS:
-                    sum = new Node(NodeType.NODE_SUBTRACTION, null, sum, factor());
+                    sum = span(new Node(NodeType.NODE_SUBTRACTION, null, sum, factor()), sum.start, sum.line);
                     break;
             }
         }
@@ -250,14 +427,13 @@ public class Parser {
     private Node factor() {
         Node factor = term();
 
-        TokenType[] factorOperation = new TokenType[]{TokenType.TOKEN_MULTIPLY, TokenType.TOKEN_DIVIDE};
-        while (Arrays.asList(factorOperation).contains(scanner.peek().type)) {
-            switch (scanner.next().type) { // guaranteed to be "multiply" or "divide"
+        while (FACTOR_OPERATION.contains(scanner.peekType())) {
+            switch (scanner.nextType()) { // guaranteed to be "multiply" or "divide"
                 case TOKEN_MULTIPLY:
-                    factor = new Node(NodeType.NODE_MULTIPLY, null, factor, term());
+                    factor = span(new Node(NodeType.NODE_MULTIPLY, null, factor, term()), factor.start, factor.line);
                     break;
                 case TOKEN_DIVIDE:
-                    factor = new Node(NodeType.NODE_DIVIDE, null, factor, term());
+                    factor = span(new Node(NodeType.NODE_DIVIDE, null, factor, term()), factor.start, factor.line);
                     break;
             }
         }
@@ -269,14 +445,14 @@ public class Parser {
      * <pre> term ::= id | int | paren_expr </pre>
      */
     private Node term() {
-        if (scanner.peek().type == TokenType.TOKEN_ID) {
+        if (scanner.peekType() == TokenType.TOKEN_ID) {
             return id();
-        } else if (scanner.peek().type == TokenType.TOKEN_INT) {
+        } else if (scanner.peekType() == TokenType.TOKEN_INT) {
             return integer();
         }
 
         // For improved error-checking
-        if (scanner.peek().type != TokenType.TOKEN_PAREN_OPEN) {
+        if (scanner.peekType() != TokenType.TOKEN_PAREN_OPEN) {
             throw new RuntimeException(e("Expected id, integer or expression."));
         }
 
@@ -288,7 +464,10 @@ public class Parser {
      * <pre> id ::= "a" | "b" | "c" | "d" | ... | "z" </pre>
      */
     private Node id() {
-        return new Node(NodeType.NODE_VARIABLE, scanner.next().lexeme);
+        int start = scanner.peekOffset();
+        int line = scanner.peekLine();
+        scanner.nextType();
+        return span(new Node(NodeType.NODE_VARIABLE, scanner.lexeme()), start, line);
     }
 
     /**
@@ -296,7 +475,10 @@ public class Parser {
      * <pre> int ::= an unsigned integer </pre>
      **/
     private Node integer() {
-        return new Node(NodeType.NODE_INTEGER, scanner.next().lexeme);
+        int start = scanner.peekOffset();
+        int line = scanner.peekLine();
+        scanner.nextType();
+        return span(new Node(NodeType.NODE_INTEGER, scanner.lexeme()), start, line);
     }
 
 }
@@ -0,0 +1,34 @@
+package gj.compiler.minimus;
+
+import java.io.PrintStream;
+
+/**
+ * ~ Print Stream Sink ~
+ * <p/>
+ * An {@link OutputSink} that prints every value with println(), the way
+ * Minimus always printed.  Every call goes through the lock of the stream.
+ */
+public class PrintStreamSink implements OutputSink {
+
+    private final PrintStream out;
+
+    public PrintStreamSink(PrintStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void print(int value) {
+        out.println(value);
+    }
+
+    @Override
+    public void print(String line) {
+        out.println(line);
+    }
+
+    @Override
+    public void flush() {
+        out.flush();
+    }
+
+}
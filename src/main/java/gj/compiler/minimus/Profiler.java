@@ -0,0 +1,226 @@
+package gj.compiler.minimus;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static gj.compiler.minimus.Parser.Node;
+
+/**
+ * ~ Profiler ~
+ * <p/>
+ * Finds out where a program spends its time.  Given to an
+ * {@link Interpreter}, it counts how many times every node of the tree is
+ * executed and measures the time spent in it, with and without the nodes
+ * under it, in nanoseconds.  Given to a {@link VirtualMachine}, it counts how
+ * many times every instruction is executed, by address and by opcode.  The
+ * counts add up over all the programs run with the profiler, until clear() is
+ * called; a profiler is for one or the other, not both.
+ * <p/>
+ * The results come as a report, sorted by the time (or executions) spent in
+ * a node or instruction itself, or in the "collapsed stack" format of flame
+ * graphs, one line per node with the path to it from the root:
+ * <pre>
+ *   SEQUENCE@1;WHILE@2;SEQUENCE@2;PRINT@3 123456
+ * </pre>
+ * For the machine, the path is the opcode and then the instruction at its
+ * address ("CMPI;CMPI r1, 1000@18 15").
+ */
+public class Profiler {
+
+    /** What the profiler found for one node, instruction or opcode. */
+    public static final class Entry {
+
+        private final String name;
+        private final int location;
+        private final Entry parent;
+        private long count;
+        private long total;
+        private long self;
+
+        private Entry(String name, int location, Entry parent) {
+            this.name = name;
+            this.location = location;
+            this.parent = parent;
+        }
+
+        /**
+         * The type of the node without "NODE_" ("WHILE"), the instruction
+         * ("CMPI r1, 1000") or the opcode ("CMPI").
+         * @return the name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * The line of the node in the source, or the address of the
+         * instruction; -1 for an opcode.
+         * @return the line or address
+         */
+        public int getLocation() {
+            return location;
+        }
+
+        /**
+         * @return the number of times it was executed
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * The time spent in the node, including the nodes under it, or the
+         * number of instructions executed for it.
+         * @return nanoseconds or executions
+         */
+        public long getTotal() {
+            return total;
+        }
+
+        /**
+         * The time spent in the node itself, or the number of times the
+         * instruction was executed (0 for an opcode, which only adds up its
+         * instructions).
+         * @return nanoseconds or executions
+         */
+        public long getSelf() {
+            return self;
+        }
+
+        /**
+         * The path to it from the root, as in the collapsed stacks.
+         * @return the frames, separated by ";"
+         */
+        public String getStack() {
+            return parent == null ? frame() : parent.getStack() + ";" + frame();
+        }
+
+        private String frame() {
+            return location < 0 ? name : name + "@" + location;
+        }
+    }
+
+    private static final String NANOSECONDS = "ns", EXECUTIONS = "executions";
+
+    /* By node, by instruction address (an Integer) and by opcode (a String). */
+    private final Map<Object, Entry> entries = new LinkedHashMap<>();
+    private String unit;
+
+    /* The nodes being executed, the time each of them started and the time
+       spent in the nodes under it so far. */
+    private Entry[] stack = new Entry[16];
+    private long[] started = new long[16];
+    private long[] inChildren = new long[16];
+    private int depth;
+
+    /* Called by the Interpreter before it executes a node... */
+    void enter(Node node) {
+        use(NANOSECONDS);
+        Entry entry = entries.get(node);
+        if (entry == null) {
+            String name = node.type.name().substring("NODE_".length());
+            entry = new Entry(name, node.line, depth > 0 ? stack[depth - 1] : null);
+            entries.put(node, entry);
+        }
+        if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+            started = Arrays.copyOf(started, depth * 2);
+            inChildren = Arrays.copyOf(inChildren, depth * 2);
+        }
+        stack[depth] = entry;
+        inChildren[depth] = 0;
+        started[depth++] = System.nanoTime();
+    }
+
+    /* ... and after, also when it throws. */
+    void exit() {
+        long elapsed = System.nanoTime() - started[--depth];
+        Entry entry = stack[depth];
+        entry.count++;
+        entry.total += elapsed;
+        entry.self += elapsed - inChildren[depth];
+        if (depth > 0) {
+            inChildren[depth - 1] += elapsed;
+        }
+    }
+
+    /* Called by the VirtualMachine for every instruction that was executed,
+       once the program stopped. */
+    void count(int address, String instruction, String mnemonic, long executions) {
+        use(EXECUTIONS);
+        Entry opcode = entries.computeIfAbsent(mnemonic, key -> new Entry(mnemonic, -1, null));
+        Entry entry = entries.computeIfAbsent(address, key -> new Entry(instruction, address, opcode));
+        entry.count += executions;
+        entry.total += executions;
+        entry.self += executions;
+        opcode.count += executions;
+        opcode.total += executions;
+    }
+
+    private void use(String kind) {
+        if (unit == null) {
+            unit = kind;
+        } else if (!unit.equals(kind)) {
+            throw new IllegalStateException("A profiler is for the Interpreter or the VirtualMachine, not both!");
+        }
+    }
+
+    /**
+     * Everything that was executed, the most expensive (by the time or
+     * executions spent in it itself) first.
+     * @return the entries
+     */
+    public List<Entry> getEntries() {
+        List<Entry> sorted = new ArrayList<>(entries.values());
+        sorted.sort(Comparator.comparingLong(Entry::getSelf).thenComparingLong(Entry::getTotal).reversed());
+        return sorted;
+    }
+
+    /**
+     * A table of getEntries(), one line each.
+     * @return the report
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder(String.format("%14s %14s %12s %6s  %s%n",
+                "self", "total", "count", "at", "name (" + (unit == null ? NANOSECONDS : unit) + ")"));
+        for (Entry entry : getEntries()) {
+            report.append(String.format("%14d %14d %12d %6s  %s%n", entry.self, entry.total, entry.count,
+                    entry.location < 0 ? "" : Integer.toString(entry.location), entry.name));
+        }
+        return report.toString();
+    }
+
+    /**
+     * Writes the profile as collapsed stacks, the input of flame graph tools
+     * such as flamegraph.pl: a line for every node or instruction with its
+     * path and the time or executions spent in it itself.
+     * @param out where to write to
+     */
+    public void writeCollapsed(Appendable out) {
+        try {
+            for (Entry entry : entries.values()) {
+                if (entry.self > 0) {
+                    out.append(entry.getStack()).append(' ').append(Long.toString(entry.self)).append('\n');
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Forgets everything profiled so far.
+     */
+    public void clear() {
+        entries.clear();
+        unit = null;
+        depth = 0;
+    }
+
+}
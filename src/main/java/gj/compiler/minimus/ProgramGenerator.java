@@ -0,0 +1,313 @@
+package gj.compiler.minimus;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Random;
+
+/**
+ * ~ Program Generator ~
+ * <p/>
+ * Writes random Minimus programs, following the grammar in the
+ * {@link Scanner}, for load tests and for measuring how parsing and running
+ * scale with the size of a program.  The same seed and settings always give
+ * the same program.  The program is written as it is generated, so it can be
+ * far larger than memory (see {@link #generate(Appendable)}).
+ * <p/>
+ * Every program terminates and runs without an error, whatever the seed:
+ * <ul>
+ * <li>all the variables, the loop counters included, are assigned at the
+ *     start, so none is undefined;</li>
+ * <li>every loop counts a variable of its own from 0 up to its trip count,
+ *     and nothing else assigns that variable.  The counters are the last
+ *     letters of the alphabet, one for every level of nesting ("z" for the
+ *     outer loops, "y" for the loops in them, ...);</li>
+ * <li>every divisor is of the form (x*x+1), which is never 0, not even when
+ *     x*x overflows.</li>
+ * </ul>
+ * The rest of the alphabet is left to the statements; setVariables() limits
+ * how many of those letters are used.
+ * <p/>
+ * {@link #generateAssembly()} gives the same program for the
+ * {@link VirtualMachine}, through the {@link Compiler}.
+ */
+public class ProgramGenerator {
+
+    private final long seed;
+
+    private int statements = 100;
+    private int maxDepth = 3;
+    private int maxTripCount = 10;
+    private int blockSize = 4;
+    private double loopDensity = 0.1;
+    private double branchDensity = 0.2;
+    private double printDensity = 0.05;
+    private int variables = 26;
+    private int expressionDepth = 3;
+
+    /* The state while generating a program. */
+    private Random random;
+    private Appendable out;
+
+    public ProgramGenerator(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * The number of statements at the top level of the program, which sets
+     * its size: the statements nested in them come on top.
+     * @param statements the number of statements
+     */
+    public void setStatements(int statements) {
+        this.statements = statements;
+    }
+
+    /**
+     * How deep loops and "if" statements can be nested in each other.  At
+     * most 13 levels, as every level takes a letter for its loop counter.
+     * @param maxDepth the number of levels
+     */
+    public void setMaxDepth(int maxDepth) {
+        if (maxDepth < 0 || maxDepth > 13) {
+            throw new IllegalArgumentException("Nesting depth out of range: " + maxDepth);
+        }
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * The largest number of times a loop goes round; every loop takes a
+     * random number up to it.  Note that nested loops multiply.
+     * @param maxTripCount the number of rounds
+     */
+    public void setMaxTripCount(int maxTripCount) {
+        this.maxTripCount = maxTripCount;
+    }
+
+    /**
+     * The largest number of statements in the body of a loop or "if".
+     * @param blockSize the number of statements
+     */
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * The chance that a statement is a loop, as long as it is not nested too
+     * deep already.
+     * @param loopDensity between 0 and 1
+     */
+    public void setLoopDensity(double loopDensity) {
+        this.loopDensity = loopDensity;
+    }
+
+    /**
+     * The chance that a statement is an "if" (with an "else" half of the
+     * time), as long as it is not nested too deep already.
+     * @param branchDensity between 0 and 1
+     */
+    public void setBranchDensity(double branchDensity) {
+        this.branchDensity = branchDensity;
+    }
+
+    /**
+     * The chance that a statement is a "print".
+     * @param printDensity between 0 and 1
+     */
+    public void setPrintDensity(double printDensity) {
+        this.printDensity = printDensity;
+    }
+
+    /**
+     * How many different variables the statements use, from "a" on, which
+     * is how many registers a compiled program needs.  The letters taken by
+     * the loop counters are not counted.
+     * @param variables at least 1
+     */
+    public void setVariables(int variables) {
+        if (variables < 1) {
+            throw new IllegalArgumentException("At least one variable is needed!");
+        }
+        this.variables = variables;
+    }
+
+    /**
+     * How deep the operations in an expression can be nested.
+     * @param expressionDepth the number of levels
+     */
+    public void setExpressionDepth(int expressionDepth) {
+        this.expressionDepth = expressionDepth;
+    }
+
+    /**
+     * Generates the program.
+     * @return the source of the program
+     */
+    public String generate() {
+        StringBuilder program = new StringBuilder();
+        generate(program);
+        return program.toString();
+    }
+
+    /**
+     * Generates the program, writing it out as it goes.
+     * @param out where to write the source to, for instance a Writer
+     */
+    public void generate(Appendable out) {
+        this.random = new Random(seed);
+        this.out = out;
+        try {
+            append("{\n");
+            for (int i = 0; i < variableCount(); i++) {
+                append("  ").append(variable(i)).append(" = ").append(Integer.toString(random.nextInt(100))).append(";\n");
+            }
+            for (int depth = 0; depth < maxDepth; depth++) {
+                append("  ").append(counter(depth)).append(" = 0;\n");
+            }
+            for (int i = 0; i < statements; i++) {
+                statement(0, 1);
+            }
+            append("}\n");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            this.out = null;
+        }
+    }
+
+    /**
+     * Generates the program and compiles it for the VirtualMachine.  Unlike
+     * the source, the program is held in memory while it is compiled, and
+     * the code segment of the machine only holds a few thousand
+     * instructions, so this is for small programs.
+     * @return the assembly of the program
+     */
+    public String generateAssembly() {
+        return new Compiler().compile(generate());
+    }
+
+    /* The letters that are not loop counters, up to the number asked for. */
+    private int variableCount() {
+        return Math.min(variables, 26 - maxDepth);
+    }
+
+    private static char variable(int index) {
+        return (char) ('a' + index);
+    }
+
+    /* The counter of the loops at a level of nesting. */
+    private static char counter(int depth) {
+        return (char) ('z' - depth);
+    }
+
+    /* A statement at a level of nesting (the number of loops and "if"s it is
+       in), on a line of its own. */
+    private void statement(int depth, int indent) throws IOException {
+        double kind = random.nextDouble();
+        boolean nested = depth < maxDepth;
+        if (nested && kind < loopDensity) {
+            loop(depth, indent);
+        } else if (nested && kind < loopDensity + branchDensity) {
+            branch(depth, indent);
+        } else if (kind >= loopDensity + branchDensity && kind < loopDensity + branchDensity + printDensity) {
+            indent(indent).append("print(");
+            expression(0, depth);
+            append(");\n");
+        } else {
+            indent(indent).append(variable(random.nextInt(variableCount())));
+            if (random.nextInt(10) == 0) {
+                append(" = ").append(variable(random.nextInt(variableCount())));
+            }
+            append(" = ");
+            expression(0, depth);
+            append(";\n");
+        }
+    }
+
+    private void loop(int depth, int indent) throws IOException {
+        char counter = counter(depth);
+        indent(indent).append(counter).append(" = 0;\n");
+        indent(indent).append("while (").append(counter).append(" < ").append(Integer.toString(random.nextInt(maxTripCount + 1)))
+                .append(") {\n");
+        block(depth + 1, indent + 1);
+        indent(indent + 1).append(counter).append(" = ").append(counter).append(" + 1;\n");
+        indent(indent).append("}\n");
+    }
+
+    private void branch(int depth, int indent) throws IOException {
+        indent(indent).append("if (");
+        condition(depth);
+        append(") {\n");
+        block(depth + 1, indent + 1);
+        if (random.nextBoolean()) {
+            indent(indent).append("} else {\n");
+            block(depth + 1, indent + 1);
+        }
+        indent(indent).append("}\n");
+    }
+
+    private void block(int depth, int indent) throws IOException {
+        int size = 1 + random.nextInt(blockSize);
+        for (int i = 0; i < size; i++) {
+            statement(depth, indent);
+        }
+    }
+
+    private void condition(int loops) throws IOException {
+        final String[] relations = {" < ", " > ", " <= ", " >= ", " == ", " =/= "};
+        expression(1, loops);
+        append(relations[random.nextInt(relations.length)]);
+        expression(1, loops);
+    }
+
+    /* An expression, which may read the counters of the levels around it. */
+    private void expression(int level, int loops) throws IOException {
+        int kind = level >= expressionDepth ? random.nextInt(2) : random.nextInt(7);
+        switch (kind) {
+            case 0:
+                append(Integer.toString(random.nextInt(100)));
+                break;
+            case 1:
+                append(readable(loops));
+                break;
+            case 2:
+                // The divisor is x*x+1, which is never 0.
+                append("(");
+                expression(level + 1, loops);
+                append(" / (");
+                char x = readable(loops);
+                append(x).append(" * ").append(x).append(" + 1))");
+                break;
+            default:
+                final String[] operators = {" + ", " - ", " * ", " + ", " - "};
+                append("(");
+                expression(level + 1, loops);
+                append(operators[random.nextInt(operators.length)]);
+                expression(level + 1, loops);
+                append(")");
+        }
+    }
+
+    /* A variable of the statements, or the counter of a loop at a level
+       around the expression. */
+    private char readable(int loops) {
+        if (loops > 0 && random.nextInt(4) == 0) {
+            return counter(random.nextInt(loops));
+        }
+        return variable(random.nextInt(variableCount()));
+    }
+
+    private Appendable indent(int indent) throws IOException {
+        for (int i = 0; i < indent; i++) {
+            out.append("  ");
+        }
+        return out;
+    }
+
+    private Appendable append(CharSequence text) throws IOException {
+        return out.append(text);
+    }
+
+    private Appendable append(char c) throws IOException {
+        return out.append(c);
+    }
+
+}
@@ -0,0 +1,34 @@
+package gj.compiler.minimus;
+
+/**
+ * ~ Program Loader ~
+ * <p/>
+ * Defines a generated class in a class loader of its own.  A class can only
+ * be unloaded together with its loader, so a class defined in the loader of
+ * Minimus itself stays until the JVM exits, and a process that compiles
+ * program after program slowly fills its metaspace.  A class defined here
+ * goes as soon as nothing refers to the object made of it.
+ * <p/>
+ * The class has the package name of Minimus, but it is in a package of its
+ * own at run time, so the generated code can only use public types and
+ * their public members.
+ */
+final class ProgramLoader extends ClassLoader {
+
+    private ProgramLoader() {
+        super(ProgramLoader.class.getClassLoader());
+    }
+
+    /**
+     * Defines the class and makes an object of it.
+     * @param name the internal name of the class ("a/b/C")
+     * @param classFile the class file
+     * @return an object made with the constructor without arguments
+     * @throws ReflectiveOperationException if the object cannot be made
+     */
+    static Object instantiate(String name, byte[] classFile) throws ReflectiveOperationException {
+        Class<?> type = new ProgramLoader().defineClass(name.replace('/', '.'), classFile, 0, classFile.length);
+        return type.getDeclaredConstructor().newInstance();
+    }
+
+}
@@ -0,0 +1,37 @@
+package gj.compiler.minimus;
+
+import static gj.compiler.minimus.Parser.Node;
+import static gj.compiler.minimus.Parser.NodeType;
+
+/**
+ * ~ Resolver ~
+ * <p/>
+ * Binds every NODE_VARIABLE and NODE_ASSIGNMENT of a tree to the slot of its
+ * variable in a {@link Frame}, so the interpreter never has to look a variable
+ * up by name.  The slot only depends on the name, so resolving a tree that is
+ * shared (see ParseCache), or resolving it twice, is harmless.
+ * <p/>
+ * Deferred bodies of a lazily parsed tree are left alone; they are resolved
+ * when they are parsed.
+ */
+public class Resolver {
+
+    private Resolver() {
+    }
+
+    /**
+     * Resolves the variables of a tree, in place.
+     * @param root the root of the tree
+     * @return the same root
+     */
+    public static Node resolve(Node root) {
+        if (root.type == NodeType.NODE_VARIABLE || root.type == NodeType.NODE_ASSIGNMENT) {
+            root.slot = Frame.slotOf(root.value);
+        }
+        for (Node child : root.children) {
+            resolve(child);
+        }
+        return root;
+    }
+
+}
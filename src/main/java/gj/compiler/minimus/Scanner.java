@@ -1,5 +1,17 @@
 package gj.compiler.minimus;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
 /**
  * ~ Scanner or Lexical Analyzer ~++
  * <p/>
@@ -30,7 +42,7 @@ package gj.compiler.minimus;
  * int          ::= an unsigned integer
  * </pre>
  */
-public class Scanner {
+public class Scanner implements TokenSource {
 
     public static final char END_OF_TEXT = 0x03;
 
@@ -73,32 +85,139 @@ public class Scanner {
         }
     }
 
-    /* The scanner receives the entire program as a String as shown below.
-       Today, it is trivial to process the entire program and put all the
-       tokens in a list that is fully traversable. However, traditionally,
-       lexical analysers were build to process tokens one at a time as the
-       parser only requires the current (and possibly the next) token at any
-       given time. Ideally, this String could be replaced by a InputStream
-       reading characters from the source file as needed.  A string was chosen
-       for simplicity's sake. */
-    private final String program;
-
-    /* The "location" stores the position in the String that needs to be read
-       next, while "current" stores the next token to be returned.  */
+    /* The size of the character window that is kept in memory.  Only this
+       many characters of the source are ever held by the scanner at once,
+       regardless of how large the program is. */
+    public static final int BUFFER_SIZE = 8192;
+
+    /* Originally the scanner received the entire program as a String and
+       walked it with charAt().  Traditionally, lexical analysers were built
+       to process tokens one at a time as the parser only requires the
+       current (and possibly the next) token at any given time, so there is
+       no need to keep the whole program around.  The characters are now read
+       from a Reader into a small, fixed-size buffer that is refilled as it
+       runs dry.  A String program is simply wrapped in a StringReader. */
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+
+    /* "position" is the index of the next character in the buffer and
+       "limit" the number of valid characters in it.  Once the reader is
+       exhausted, "eof" is set so it is never asked again. */
+    private int position = 0;
+    private int limit = 0;
+    private boolean eof = false;
+
+    /* The "location" stores the offset in the program of the character that
+       needs to be read next, while "current" stores the next token to be
+       returned.  */
     private int location = 0;
     private Token current = null;
 
+    /* The lexeme of the token last returned by nextType(). */
+    private String lexeme = null;
+
+    /* Where the look-ahead token ("current") starts and ends in the program,
+       and on which line.  The end of the token consumed last is kept as well,
+       so that the parser can record the source span of every node. */
+    private int currentStart = 0;
+    private int currentEnd = 0;
+    private int currentLine = 1;
+    private int previousEnd = 0;
+    private int previousLine = 1;
+
     /* Keeping track of the current line number. */
     private int line = 1;
 
     public Scanner(String program) {
-        this.program = program;
+        this(new StringReader(program));
+    }
+
+    /**
+     * Scans characters from a Reader.  The reader is not closed by the
+     * scanner; that remains the responsibility of the caller.
+     * @param reader source of the program
+     */
+    public Scanner(Reader reader) {
+        this(reader, 0, 1);
+    }
+
+    /* Scans a part of a larger program.  The reader starts at the given
+       offset and line of that program, so that offsets and line numbers are
+       reported as they are in the whole program. */
+    Scanner(Reader reader, int offset, int line) {
+        this.reader = reader;
+        this.location = offset;
+        this.line = line;
+        this.previousEnd = offset;
+        this.previousLine = line;
+    }
+
+    /**
+     * Scans UTF-8 encoded bytes from a channel, for example a FileChannel or a
+     * socket.
+     * @param channel source of the program
+     */
+    public Scanner(ReadableByteChannel channel) {
+        this(Channels.newReader(channel, StandardCharsets.UTF_8.newDecoder(), BUFFER_SIZE));
+    }
+
+    /**
+     * Scans the bytes of a (typically memory-mapped) buffer.  Minimus source
+     * is plain ASCII, so each byte is one character.
+     * @param bytes source of the program
+     */
+    public Scanner(ByteBuffer bytes) {
+        this(new ByteBufferReader(bytes));
+    }
+
+    /**
+     * Memory-maps a source file and scans it.  The operating system pages the
+     * file in as the scanner moves through it.
+     * @param file the program file
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public Scanner(Path file) throws IOException {
+        this(map(file));
+    }
+
+    private static ByteBuffer map(Path file) throws IOException {
+        // The mapping remains valid after the channel has been closed.
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /* Refills the buffer from the reader.  Returns false if there is nothing
+       left to read. */
+    private boolean fill() {
+        if (eof) {
+            return false;
+        }
+        try {
+            int read = reader.read(buffer, 0, buffer.length);
+            while (read == 0) { // a Reader may legally return nothing at all
+                read = reader.read(buffer, 0, buffer.length);
+            }
+            if (read < 0) {
+                eof = true;
+                return false;
+            }
+            position = 0;
+            limit = read;
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Scanner error: unable to read program!", e);
+        }
     }
 
     /* Returns the next character in the program (or 0x03 if end of input is
        found. */
     private char nextChar() {
-        char ch = location < program.length() ? program.charAt(location++) : END_OF_TEXT;
+        if (position == limit && !fill()) {
+            return END_OF_TEXT;
+        }
+        char ch = buffer[position++];
+        location++;
         if (ch == '\n') {
             line = line + 1;
         }
@@ -107,7 +226,10 @@ public class Scanner {
 
     /* This peeks ahead without moving the location pointer. */
     private char peekChar() {
-        return location < program.length() ? program.charAt(location) : END_OF_TEXT;
+        if (position == limit && !fill()) {
+            return END_OF_TEXT;
+        }
+        return buffer[position];
     }
 
     /* Handles "<" and "<=". */
@@ -196,6 +318,8 @@ public class Scanner {
         while (Character.isWhitespace(ch)) {
             ch = nextChar();
         }
+        currentStart = ch == END_OF_TEXT ? location : location - 1;
+        currentLine = line;
 
         switch (ch) {
             case END_OF_TEXT:
@@ -236,6 +360,7 @@ public class Scanner {
     public Token peek() {
         if (current == null) {
             current = getNextToken();
+            currentEnd = location;
         }
         return current;
     }
@@ -246,16 +371,109 @@ public class Scanner {
      */
     public Token next() {
         Token tokenToReturn = peek();
+        previousEnd = currentEnd;
+        previousLine = currentLine;
         current = getNextToken();
+        currentEnd = location;
         return tokenToReturn;
     }
 
+    @Override
+    public TokenType peekType() {
+        return peek().type;
+    }
+
+    @Override
+    public TokenType nextType() {
+        Token token = next();
+        lexeme = token.lexeme;
+        return token.type;
+    }
+
+    @Override
+    public String lexeme() {
+        return lexeme;
+    }
+
+    /* Only the braces matter while skipping, so the characters are not
+       scanned into tokens at all. */
+    @Override
+    public void skipBlock() {
+        if (peek().type != TokenType.TOKEN_CURLY_OPEN) {
+            throw new IllegalStateException("A block starts with {");
+        }
+        int depth = 1;
+        while (depth > 0) {
+            char ch = nextChar();
+            if (ch == '{') {
+                depth++;
+            } else if (ch == '}') {
+                depth--;
+            } else if (ch == END_OF_TEXT) {
+                throw new RuntimeException(String.format("} expected! (line %d)", line));
+            }
+        }
+        previousEnd = location;
+        previousLine = line;
+        current = null;
+    }
+
+    @Override
+    public int peekOffset() {
+        peek();
+        return currentStart;
+    }
+
+    @Override
+    public int peekLine() {
+        peek();
+        return currentLine;
+    }
+
+    @Override
+    public int previousEnd() {
+        return previousEnd;
+    }
+
+    @Override
+    public int previousLine() {
+        return previousLine;
+    }
+
     /**
      * Return the current line number.
      * @return current line number as an int
      */
+    @Override
     public int getLineNumber() {
         return line;
     }
 
+    /* Exposes a ByteBuffer as a Reader, one ASCII character per byte.  This
+       avoids a charset decoder (and its own buffers) in front of mapped
+       files. */
+    private static class ByteBufferReader extends Reader {
+        private final ByteBuffer bytes;
+
+        ByteBufferReader(ByteBuffer bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read(char[] chars, int offset, int length) {
+            if (!bytes.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, bytes.remaining());
+            for (int i = 0; i < count; i++) {
+                chars[offset + i] = (char) (bytes.get() & 0xff);
+            }
+            return count;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
 }
@@ -0,0 +1,369 @@
+package gj.compiler.minimus;
+
+import java.util.Arrays;
+
+import static gj.compiler.minimus.Scanner.TokenType;
+
+/**
+ * ~ Packed Token Buffer ~
+ * <p/>
+ * An alternative to the streaming {@link Scanner} that tokenizes the entire
+ * program in one pass and stores the result in parallel primitive arrays:
+ * the token type ordinal, the parsed value of integers (or the index of an id,
+ * 0 for "a" up to 25 for "z"), the offsets in the source where the token
+ * starts and ends and the line it was found on.  No Token objects are created at all,
+ * not even for ids and integers.
+ * <p/>
+ * Characters are classified through a lookup table rather than
+ * Character.isWhitespace()/isDigit()/isAlphabetic(), and tokens are
+ * recognised by a small table-driven DFA.  Integer literals are accumulated
+ * digit by digit while they are being recognised.
+ * <p/>
+ * The parser reads the tokens by index, see {@link Parser#Parser(TokenBuffer)}.
+ */
+public class TokenBuffer implements TokenSource {
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    /* Every ASCII character falls in one of these classes. Anything outside
+       of ASCII is C_OTHER. */
+    private static final int C_OTHER = 0, C_SPACE = 1, C_NEWLINE = 2, C_DIGIT = 3, C_LETTER = 4, C_LESS = 5,
+            C_GREATER = 6, C_EQUAL = 7, C_SLASH = 8, C_PUNCTUATION = 9, C_END = 10;
+    private static final int CLASS_COUNT = 11;
+
+    /* The states of the DFA.  S_START is where every token begins. */
+    private static final int S_START = 0, S_INT = 1, S_WORD = 2, S_LESS = 3, S_GREATER = 4, S_EQUAL = 5,
+            S_EQUAL_SLASH = 6, S_PUNCTUATION = 7, S_LESS_EQUAL = 8, S_GREATER_EQUAL = 9, S_EQUALS = 10,
+            S_NOT_EQUALS = 11, S_DIVIDE = 12;
+    private static final int STATE_COUNT = 13;
+
+    /* -1 means "no transition": the token ends before the current character. */
+    private static final byte STOP = -1;
+
+    private static final byte[] CLASSES = new byte[128];
+    private static final byte[][] TRANSITIONS = new byte[STATE_COUNT][CLASS_COUNT];
+
+    /* The token type of single character punctuation, indexed by character. */
+    private static final byte[] PUNCTUATION = new byte[128];
+
+    /* The token type of each accepting state, -1 if the state does not
+       accept.  Words and punctuation are resolved separately. */
+    private static final byte[] ACCEPT = new byte[STATE_COUNT];
+
+    /* Ids are limited to "a" to "z", so their lexemes can be shared. */
+    private static final String[] IDS = new String[26];
+
+    static {
+        for (char ch : new char[]{' ', '\t', '\r', '\f', 0x0b, 0x1c, 0x1d, 0x1e, 0x1f}) {
+            CLASSES[ch] = C_SPACE;
+        }
+        CLASSES['\n'] = C_NEWLINE;
+        for (char ch = '0'; ch <= '9'; ch++) {
+            CLASSES[ch] = C_DIGIT;
+        }
+        for (char ch = 'a'; ch <= 'z'; ch++) {
+            CLASSES[ch] = C_LETTER;
+            CLASSES[Character.toUpperCase(ch)] = C_LETTER;
+            IDS[ch - 'a'] = String.valueOf(ch);
+        }
+        CLASSES['<'] = C_LESS;
+        CLASSES['>'] = C_GREATER;
+        CLASSES['='] = C_EQUAL;
+        CLASSES['/'] = C_SLASH;
+        CLASSES[Scanner.END_OF_TEXT] = C_END;
+
+        Arrays.fill(PUNCTUATION, (byte) -1);
+        punctuation('{', TokenType.TOKEN_CURLY_OPEN);
+        punctuation('}', TokenType.TOKEN_CURLY_CLOSE);
+        punctuation('(', TokenType.TOKEN_PAREN_OPEN);
+        punctuation(')', TokenType.TOKEN_PAREN_CLOSE);
+        punctuation(';', TokenType.TOKEN_SEMICOLON);
+        punctuation('+', TokenType.TOKEN_PLUS);
+        punctuation('-', TokenType.TOKEN_MINUS);
+        punctuation('*', TokenType.TOKEN_MULTIPLY);
+
+        for (byte[] row : TRANSITIONS) {
+            Arrays.fill(row, STOP);
+        }
+        TRANSITIONS[S_START][C_DIGIT] = S_INT;
+        TRANSITIONS[S_START][C_LETTER] = S_WORD;
+        TRANSITIONS[S_START][C_LESS] = S_LESS;
+        TRANSITIONS[S_START][C_GREATER] = S_GREATER;
+        TRANSITIONS[S_START][C_EQUAL] = S_EQUAL;
+        TRANSITIONS[S_START][C_SLASH] = S_DIVIDE;
+        TRANSITIONS[S_START][C_PUNCTUATION] = S_PUNCTUATION;
+        TRANSITIONS[S_INT][C_DIGIT] = S_INT;
+        TRANSITIONS[S_WORD][C_LETTER] = S_WORD;
+        TRANSITIONS[S_LESS][C_EQUAL] = S_LESS_EQUAL;
+        TRANSITIONS[S_GREATER][C_EQUAL] = S_GREATER_EQUAL;
+        TRANSITIONS[S_EQUAL][C_EQUAL] = S_EQUALS;
+        TRANSITIONS[S_EQUAL][C_SLASH] = S_EQUAL_SLASH;
+        TRANSITIONS[S_EQUAL_SLASH][C_EQUAL] = S_NOT_EQUALS;
+
+        Arrays.fill(ACCEPT, (byte) -1);
+        ACCEPT[S_INT] = (byte) TokenType.TOKEN_INT.ordinal();
+        ACCEPT[S_LESS] = (byte) TokenType.TOKEN_LESS_THAN.ordinal();
+        ACCEPT[S_GREATER] = (byte) TokenType.TOKEN_GREATER_THAN.ordinal();
+        ACCEPT[S_EQUAL] = (byte) TokenType.TOKEN_ASSIGNMENT.ordinal();
+        ACCEPT[S_LESS_EQUAL] = (byte) TokenType.TOKEN_LESS_EQUAL_THAN.ordinal();
+        ACCEPT[S_GREATER_EQUAL] = (byte) TokenType.TOKEN_GREATER_EQUAL_THAN.ordinal();
+        ACCEPT[S_EQUALS] = (byte) TokenType.TOKEN_EQUALS.ordinal();
+        ACCEPT[S_NOT_EQUALS] = (byte) TokenType.TOKEN_NOT_EQUALS.ordinal();
+        ACCEPT[S_DIVIDE] = (byte) TokenType.TOKEN_DIVIDE.ordinal();
+    }
+
+    private static void punctuation(char ch, TokenType type) {
+        CLASSES[ch] = C_PUNCTUATION;
+        PUNCTUATION[ch] = (byte) type.ordinal();
+    }
+
+    /* The packed tokens.  Only the first "count" entries are in use. */
+    private byte[] types;
+    private int[] values;
+    private int[] offsets;
+    private int[] ends;
+    private int[] lines;
+    private int count = 0;
+
+    /* The cursor used when the parser reads from the buffer: the index of the
+       next token and the one returned last by nextType(). */
+    private int index = 0;
+    private int previous = -1;
+
+    private TokenBuffer(int capacity) {
+        types = new byte[capacity];
+        values = new int[capacity];
+        offsets = new int[capacity];
+        ends = new int[capacity];
+        lines = new int[capacity];
+    }
+
+    /**
+     * Tokenizes an entire program.  The last token is always TOKEN_EOI.
+     * @param program the source of the program
+     * @return the packed tokens
+     */
+    public static TokenBuffer tokenize(String program) {
+        // Typical programs have about one token for every three characters.
+        TokenBuffer buffer = new TokenBuffer(program.length() / 3 + 16);
+        buffer.scan(program);
+        return buffer;
+    }
+
+    private static int classOf(String program, int i) {
+        if (i >= program.length()) {
+            return C_END;
+        }
+        char ch = program.charAt(i);
+        return ch < 128 ? CLASSES[ch] : C_OTHER;
+    }
+
+    private void scan(String program) {
+        int i = 0;
+        int line = 1;
+        while (true) {
+            // Skip white space, counting lines.
+            int cls = classOf(program, i);
+            while (cls == C_SPACE || cls == C_NEWLINE) {
+                if (cls == C_NEWLINE) {
+                    line++;
+                }
+                cls = classOf(program, ++i);
+            }
+
+            int start = i;
+            if (cls == C_END) {
+                add(TokenType.TOKEN_EOI.ordinal(), 0, start, start, line);
+                return;
+            }
+
+            // Run the DFA for as long as there are transitions.
+            int state = S_START;
+            int value = 0;
+            int next;
+            while ((next = TRANSITIONS[state][cls]) != STOP) {
+                if (next == S_INT) {
+                    int digit = program.charAt(i) - '0';
+                    if (value > (Integer.MAX_VALUE - digit) / 10) {
+                        // The message names the whole literal, not just the
+                        // digits up to the one that overflowed.
+                        int end = i;
+                        while (classOf(program, end) == C_DIGIT) {
+                            end++;
+                        }
+                        throw new RuntimeException(String.format("Scanner error: integer too large: %s (line %d)",
+                                program.substring(start, end), line));
+                    }
+                    value = value * 10 + digit;
+                }
+                state = next;
+                cls = classOf(program, ++i);
+            }
+
+            switch (state) {
+                case S_START:
+                    throw new RuntimeException(String.format("Scanner error: unknown token: %s (line %d)",
+                            program.charAt(i), line));
+                case S_PUNCTUATION:
+                    add(PUNCTUATION[program.charAt(start)], 0, start, i, line);
+                    break;
+                case S_WORD:
+                    addWord(program, start, i, line);
+                    break;
+                case S_EQUAL_SLASH:
+                    if (cls == C_END) {
+                        throw new RuntimeException("Scanner error: Unexpected end of input!");
+                    }
+                    throw new RuntimeException(String.format("Scanner error: Unknown character: %c",
+                            program.charAt(i)));
+                default:
+                    add(ACCEPT[state], value, start, i, line);
+            }
+        }
+    }
+
+    /* Words are either reserved words or ids, which are single letters. */
+    private void addWord(String program, int start, int end, int line) {
+        int length = end - start;
+        char first = program.charAt(start);
+        if (length == 1 && first >= 'a' && first <= 'z') {
+            add(TokenType.TOKEN_ID.ordinal(), first - 'a', start, end, line);
+        } else if (length == 2 && program.startsWith("if", start)) {
+            add(TokenType.TOKEN_IF.ordinal(), 0, start, end, line);
+        } else if (length == 4 && program.startsWith("else", start)) {
+            add(TokenType.TOKEN_ELSE.ordinal(), 0, start, end, line);
+        } else if (length == 5 && program.startsWith("while", start)) {
+            add(TokenType.TOKEN_WHILE.ordinal(), 0, start, end, line);
+        } else if (length == 5 && program.startsWith("print", start)) {
+            add(TokenType.TOKEN_PRINT.ordinal(), 0, start, end, line);
+        } else {
+            throw new RuntimeException(String.format("Scanner error: unknown token: %s (line %d)",
+                    program.substring(start, end), line));
+        }
+    }
+
+    private void add(int type, int value, int offset, int end, int line) {
+        if (count == types.length) {
+            int capacity = count * 2;
+            types = Arrays.copyOf(types, capacity);
+            values = Arrays.copyOf(values, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+        }
+        types[count] = (byte) type;
+        values[count] = value;
+        offsets[count] = offset;
+        ends[count] = end;
+        lines[count] = line;
+        count++;
+    }
+
+    /**
+     * The number of tokens, including the final TOKEN_EOI.
+     * @return number of tokens
+     */
+    public int size() {
+        return count;
+    }
+
+    public TokenType type(int i) {
+        return TYPES[types[i]];
+    }
+
+    /**
+     * The value of an integer, or the index of an id ("a" is 0).  Other tokens
+     * have a value of 0.
+     */
+    public int value(int i) {
+        return values[i];
+    }
+
+    public int offset(int i) {
+        return offsets[i];
+    }
+
+    public int end(int i) {
+        return ends[i];
+    }
+
+    public int line(int i) {
+        return lines[i];
+    }
+
+    @Override
+    public TokenType peekType() {
+        return TYPES[types[index]];
+    }
+
+    @Override
+    public TokenType nextType() {
+        previous = index;
+        TokenType type = TYPES[types[index]];
+        if (index < count - 1) { // TOKEN_EOI repeats forever, like the scanner
+            index++;
+        }
+        return type;
+    }
+
+    /* The lexeme of the previous token.  Ids are shared and integers are
+       formatted from their value. */
+    @Override
+    public String lexeme() {
+        switch (TYPES[types[previous]]) {
+            case TOKEN_ID:
+                return IDS[values[previous]];
+            case TOKEN_INT:
+                return Integer.toString(values[previous]);
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public void skipBlock() {
+        if (types[index] != TokenType.TOKEN_CURLY_OPEN.ordinal()) {
+            throw new IllegalStateException("A block starts with {");
+        }
+        int depth = 0;
+        do {
+            int type = types[index];
+            if (type == TokenType.TOKEN_CURLY_OPEN.ordinal()) {
+                depth++;
+            } else if (type == TokenType.TOKEN_CURLY_CLOSE.ordinal()) {
+                depth--;
+            } else if (type == TokenType.TOKEN_EOI.ordinal()) {
+                throw new RuntimeException(String.format("} expected! (line %d)", lines[index]));
+            }
+            previous = index++;
+        } while (depth > 0);
+    }
+
+    @Override
+    public int peekOffset() {
+        return offsets[index];
+    }
+
+    @Override
+    public int peekLine() {
+        return lines[index];
+    }
+
+    @Override
+    public int previousEnd() {
+        return previous < 0 ? 0 : ends[previous];
+    }
+
+    @Override
+    public int previousLine() {
+        return previous < 0 ? 1 : lines[previous];
+    }
+
+    /* The line of the next token, which is what the scanner reports after
+       having read its look-ahead. */
+    @Override
+    public int getLineNumber() {
+        return lines[index];
+    }
+
+}
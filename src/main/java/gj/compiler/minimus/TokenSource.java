@@ -0,0 +1,71 @@
+package gj.compiler.minimus;
+
+import static gj.compiler.minimus.Scanner.TokenType;
+
+/**
+ * What the parser needs from a lexer: the type of the next token, a way to
+ * consume it and, for ids and integers, the text of the token just consumed.
+ * <p/>
+ * Both the streaming {@link Scanner} and the packed {@link TokenBuffer}
+ * implement this, so the parser does not need to know where its tokens come
+ * from.
+ */
+interface TokenSource {
+
+    /**
+     * Returns the type of the next token without consuming it.
+     * @return type of the next token
+     */
+    TokenType peekType();
+
+    /**
+     * Consumes the next token.
+     * @return type of the consumed token
+     */
+    TokenType nextType();
+
+    /**
+     * The lexeme of the token most recently consumed by nextType(), or null if
+     * that token does not carry one.
+     * @return lexeme as a String
+     */
+    String lexeme();
+
+    /**
+     * Return the current line number.
+     * @return current line number as an int
+     */
+    int getLineNumber();
+
+    /**
+     * The offset in the program where the next token starts.
+     * @return offset of the next token
+     */
+    int peekOffset();
+
+    /**
+     * The line on which the next token is found.
+     * @return line of the next token
+     */
+    int peekLine();
+
+    /**
+     * The offset just after the token most recently consumed by nextType().
+     * @return end offset of the previous token
+     */
+    int previousEnd();
+
+    /**
+     * The line of the token most recently consumed by nextType().
+     * @return line of the previous token
+     */
+    int previousLine();
+
+    /**
+     * Skips a block: the next token must be "{", and everything up to and
+     * including the matching "}" is consumed.  Afterwards, previousEnd() and
+     * previousLine() refer to that "}".
+     */
+    void skipBlock();
+
+}
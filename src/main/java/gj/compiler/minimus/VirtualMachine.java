@@ -1,6 +1,14 @@
 package gj.compiler.minimus;
 
-import java.util.*;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -28,41 +36,124 @@ import java.util.stream.Collectors;
  *   ADDI, SUBI, MULI, DIVI [c], [rj]       ; c opp rj -> rj
  *   CMP [ri], [rj]                         ; compare ri with rj, sets flags
  *   CMPI [ri], [c]                         ; compare ri with c, sets flags
- *   JMP, JE, JL, JLE, JG, JGE [ri]         ; ri -> pc (based on flag)
- *   SYSCALL
+ *   JMP, JE, JNE, JL, JLE, JG, JGE [:l]    ; address of label l -> pc (based on flag)
+ *   SYSCALL                                ; r0 = 1: print r1
+ *                                          ; r0 = 2: fail, variable r1 (0 is "a")
+ *                                          ;         is undefined
  *   HALT
  *   NOP
  * </pre>
  * </p>
+ * Constants are decimal or hexadecimal ("0x1000") and may be negative.
+ * </p>
+ * The assembler makes two passes over the code: the first finds the address
+ * of every ":label", the second packs every instruction into three ints (the
+ * opcode and two operands) in the code segment of memory.  Registers are
+ * stored by number and labels by address, so once a program is loaded, the
+ * machine runs without looking at a string again.  When a program is loaded,
+ * common sequences such as a compare followed by a conditional jump are
+ * fused into superinstructions that are dispatched once (see
+ * {@link #getFusions()}).  Alternatively, a program can be translated to JVM
+ * code (see {@link #setTranslation(boolean)}).
+ * </p>
+ * A loaded program (see {@link LoadedProgram}) can be run by many machines
+ * at once.  The machines run its instructions from the program, and each has
+ * only its registers and the pages of memory it writes to of its own.  The
+ * memory is MEM_SIZE ints on the heap, unless the machine is given a larger
+ * one (see {@link #setMemory(Memory.Factory)}).
+ * </p>
  * Example:
  * <pre>
  * .data        ; starts storing at 0x1000 upwards
  * 1
  * 2
  * .code        ; starts storing from 0x0000 upwards
- * LOADI r1, 4096
- * LOADI r2, 4097
+ * LOADI 4096, r1
+ * LOADI 4097, r2
  * :loop
  * ADD r2, r1   ; Add r2 to r1 (r1 = r1 + r2)
  * MOVI 1, r0   ; "1" is the system call for print
  * SYSCALL      ; call the OS
- * CMP r1, 1000 ; compare r1 with a 1000
+ * CMPI r1, 1000 ; compare r1 with a 1000
  * JLE :loop
  * HALT
  * </pre>
  */
 public class VirtualMachine {
 
-    private static final int MEM_SIZE = 0xffff;
-    private static final int DATA_SECTION_START = 0x1000;
+    static final int MEM_SIZE = 0xffff;
+    static final int DATA_SECTION_START = 0x1000;
+
+    /* Every instruction takes three ints: the opcode and two operands. */
+    static final int INSTRUCTION_SIZE = 3;
+    private static final int REGISTERS = 10;
+
+    /* The opcodes.  HALT is 0, so running off the end of the code stops the
+       machine. */
+    static final int HALT = 0, NOP = 1, PUSH = 2, POP = 3, LOAD = 4, LOADI = 5, STORE = 6, STOREI = 7,
+            MOV = 8, MOVI = 9, ADD = 10, SUB = 11, MUL = 12, DIV = 13, ADDI = 14, SUBI = 15, MULI = 16, DIVI = 17,
+            CMP = 18, CMPI = 19, JMP = 20, JE = 21, JNE = 22, JL = 23, JLE = 24, JG = 25, JGE = 26, SYSCALL = 27;
+
+    private static final String[] MNEMONICS = {"HALT", "NOP", "PUSH", "POP", "LOAD", "LOADI", "STORE", "STOREI",
+            "MOV", "MOVI", "ADD", "SUB", "MUL", "DIV", "ADDI", "SUBI", "MULI", "DIVI",
+            "CMP", "CMPI", "JMP", "JE", "JNE", "JL", "JLE", "JG", "JGE", "SYSCALL"};
+
+    /* The operands each instruction expects: R for a register, C for a
+       constant and L for a label. */
+    private static final String[] OPERANDS = {"", "", "R", "R", "RR", "CR", "RR", "CR",
+            "RR", "CR", "RR", "RR", "RR", "RR", "CR", "CR", "CR", "CR",
+            "RR", "RC", "L", "L", "L", "L", "L", "L", "L", ""};
+
+    /* The superinstructions the loader fuses pairs and runs of instructions
+       into (see fuse()).  They never come out of the assembler. */
+    private static final int CMP_JE = 32, CMP_JNE = 33, CMP_JL = 34, CMP_JLE = 35, CMP_JG = 36, CMP_JGE = 37,
+            CMPI_JE = 38, CMPI_JNE = 39, CMPI_JL = 40, CMPI_JLE = 41, CMPI_JG = 42, CMPI_JGE = 43,
+            MOVI_SYSCALL = 44, MOVI_STORE = 45, MOVI_STOREI = 46,
+            MOVI_ADD = 47, MOVI_SUB = 48, MOVI_MUL = 49, MOVI_DIV = 50,
+            LOADI_ADD = 51, LOADI_SUB = 52, LOADI_MUL = 53, LOADI_DIV = 54,
+            LOADI_MODIFY_STORE = 55;
+
+    /* The flags set by CMP and CMPI. */
+    private static final int EQ = 1, NE = 1 << 1, LT = 1 << 2, LE = 1 << 3, GT = 1 << 4, GE = 1 << 5;
+
+    /* The system calls, selected by r0. */
+    private static final int SYSCALL_PRINT = 1, SYSCALL_UNDEFINED = 2;
+
+    private static final Map<String, Integer> OPCODES = new HashMap<>();
+
+    static {
+        for (int i = 0; i < MNEMONICS.length; i++) {
+            OPCODES.put(MNEMONICS[i], i);
+        }
+    }
+
+    private Memory.Factory memoryFactory = Memory.heap();
+    private LoadedProgram program;
+    private Memory memory = memoryFactory.create(Memory.Image.EMPTY);
+    private final int[] registers = new int[REGISTERS];
+
+    /* Whether a program ran since the memory and registers were last
+       attached or reset, so that they need a reset before the next run. */
+    private boolean dirty;
+
+    private boolean translation = false;
+    private boolean fusion = true;
+    private long dispatchesSaved;
+
+    /* Where the print system call goes. */
+    private OutputSink out = OutputSink.SYSTEM_OUT;
 
-    private int[] memory = new int[MEM_SIZE];
+    /* Told how many times every instruction was executed, if set. */
+    private Profiler profiler;
+
+    /* What a translated program calls back; syscall() itself is not public. */
+    private final MachineTranslator.Host host = this::syscall;
 
     public VirtualMachine(){
     }
 
     /* Extract a given segment and drop all comments (; this is a comment). */
-    private List<String> extractSection(String program, String section) {
+    private static List<String> extractSection(String program, String section) {
         // Regular expression matches the section name and then grabs the
         // content as group 1, but stops stort of the next section name or
         // the end of the file, that's the "(?=\.\w+|$)" part.
@@ -78,58 +169,802 @@ public class VirtualMachine {
                 : Collections.emptyList();
     }
 
+    // convert opcode and args into the 3 ints of an instruction
+    private static int[] decode(String instruction, int ip, Map<String, Integer> labels) {
+        String[] parts = instruction.split("\\s+", 2);
+        Integer opcode = OPCODES.get(parts[0].toUpperCase());
+        if (opcode == null) {
+            throw new RuntimeException(String.format("Unknown instruction: %s (address %d)", instruction, ip));
+        }
 
-    // convert opcode and args into 3-byte string
-    private int[] decode(String instruction, int ip) {
+        String expected = OPERANDS[opcode];
+        String[] arguments = parts.length > 1 ? parts[1].split(",") : new String[0];
+        if (arguments.length != expected.length()) {
+            throw new RuntimeException(String.format("%s expects %d operand(s): %s (address %d)",
+                    MNEMONICS[opcode], expected.length(), instruction, ip));
+        }
 
+        int[] decoded = new int[INSTRUCTION_SIZE];
+        decoded[0] = opcode;
+        for (int i = 0; i < arguments.length; i++) {
+            String argument = arguments[i].trim();
+            switch (expected.charAt(i)) {
+                case 'R':
+                    decoded[i + 1] = register(argument, instruction, ip);
+                    break;
+                case 'C':
+                    decoded[i + 1] = constant(argument, instruction, ip);
+                    break;
+                default:
+                    Integer address = labels.get(argument);
+                    if (address == null) {
+                        throw new RuntimeException(String.format("Unknown label: %s (address %d)", argument, ip));
+                    }
+                    decoded[i + 1] = address;
+            }
+        }
+        return decoded;
+    }
 
+    /* Checks instructions that did not come from the assembler, such as
+       those of an object file, by the rules decode() applies to the text:
+       only the instructions of the assembly (no superinstructions),
+       registers r0 to r9, jumps to an instruction of the program or just
+       after the last one, and no operands an instruction does not take. */
+    static void verify(int[] code) {
+        if (code.length % INSTRUCTION_SIZE != 0) {
+            throw new RuntimeException("Code segment does not hold whole instructions!");
+        }
+        for (int ip = 0; ip < code.length; ip += INSTRUCTION_SIZE) {
+            int opcode = code[ip];
+            if (opcode < 0 || opcode >= MNEMONICS.length) {
+                throw new RuntimeException(String.format("Unknown opcode: %d (address %d)", opcode, ip));
+            }
+            String expected = OPERANDS[opcode];
+            for (int i = 0; i < INSTRUCTION_SIZE - 1; i++) {
+                int operand = code[ip + 1 + i];
+                char kind = i < expected.length() ? expected.charAt(i) : '-';
+                if (kind == 'R' && (operand < 0 || operand >= REGISTERS)) {
+                    throw new RuntimeException(String.format("Register expected: %s (address %d)",
+                            describe(code, ip), ip));
+                } else if (kind == 'L' && (operand < 0 || operand > code.length || operand % INSTRUCTION_SIZE != 0)) {
+                    throw new RuntimeException(String.format("Jump outside of the code: %s (address %d)",
+                            describe(code, ip), ip));
+                } else if (kind == '-' && operand != 0) {
+                    throw new RuntimeException(String.format("%s expects %d operand(s) (address %d)",
+                            MNEMONICS[opcode], expected.length(), ip));
+                }
+            }
+        }
+    }
+
+    private static int register(String argument, String instruction, int ip) {
+        if (argument.length() == 2 && Character.toLowerCase(argument.charAt(0)) == 'r'
+                && Character.isDigit(argument.charAt(1))) {
+            return argument.charAt(1) - '0';
+        }
+        throw new RuntimeException(String.format("Register expected: %s (address %d)", instruction, ip));
+    }
 
-        return null;
+    private static int constant(String argument, String instruction, int ip) {
+        try {
+            boolean negative = argument.startsWith("-");
+            String digits = negative ? argument.substring(1) : argument;
+            long value = digits.startsWith("0x") || digits.startsWith("0X")
+                    ? Long.parseLong(digits.substring(2), 16)
+                    : Long.parseLong(digits);
+            value = negative ? -value : value;
+            if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+                throw new NumberFormatException();
+            }
+            return (int) value;
+        } catch (NumberFormatException e) {
+            throw new RuntimeException(String.format("Constant expected: %s (address %d)", instruction, ip));
+        }
     }
 
-    // load program
-    private void load(String program) {
+    /**
+     * Assembles a program: the data section is parsed and the code section is
+     * packed into instructions, ready to be loaded or written to an object
+     * file.
+     * @param program the assembly, with a .data and a .code section
+     * @return the object code
+     */
+    public static ObjectCode assemble(String program) {
 
-        // Load the dta section.
+        // The data section.
         List<String> section = extractSection(program, "data");
-        ListIterator<String> it = section.listIterator();
-        while (it.hasNext()) {
-            memory[DATA_SECTION_START + it.nextIndex()] = Integer.parseInt(it.next());
+        int[] data = new int[section.size()];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = constant(section.get(i), section.get(i), DATA_SECTION_START + i);
         }
 
-
-        // Load the code section.
+        // The code section. The first pass extracts the label positions, the
+        // second decodes every instruction that is not a label.
         section = extractSection(program, "code");
-        Map<String, Integer> labels = new HashMap<>();
-        
+        Map<String, Integer> labels = new LinkedHashMap<>();
+        int ip = 0;
+        for (String line : section) {
+            if (line.startsWith(":")) {
+                if (labels.put(line, ip) != null) {
+                    throw new RuntimeException(String.format("Duplicate label: %s", line));
+                }
+            } else {
+                ip += INSTRUCTION_SIZE;
+            }
+        }
 
+        int[] code = new int[ip];
+        ip = 0;
+        for (String line : section) {
+            if (!line.startsWith(":")) {
+                System.arraycopy(decode(line, ip, labels), 0, code, ip, INSTRUCTION_SIZE);
+                ip += INSTRUCTION_SIZE;
+            }
+        }
+        return new ObjectCode(data, code, labels);
+    }
 
-        // set instruction pointer
-        // extract label positions
+    /* Rewrites common sequences of instructions into superinstructions, so
+       that the dispatch loop does the work of a whole sequence in one go:
+         CMP/CMPI + Jcc                   compare and branch
+         MOVI c, rx + SYSCALL             system call
+         MOVI c, rx + STORE/STOREI ?, rx  store to a constant address
+         MOVI c, rx + ALU ry, rx          operation with a constant
+         LOADI c, rx + ALU ry, rx         operation with a variable
+         LOADI c, rx + ALU ?, rx
+           + MOVI c, ry + STORE rx, ry    load, modify and store a variable
+       Only the opcode of the first instruction is replaced.  The handler of a
+       superinstruction reads the operands of the rest of the sequence from
+       where they are and skips over them, so the rest of the sequence is still
+       there, intact, for a jump that lands in the middle of it.  A sequence
+       may also overlap with the next one for the same reason.  (This does
+       assume that a program does not overwrite its own code, which it cannot
+       as the code is not in its memory.)  Returns the number of each
+       sequence fused. */
+    static Map<String, Integer> fuse(int[] code, int codeLength) {
+        final int[] mem = code;
+        Map<String, Integer> fusions = new TreeMap<>();
+        for (int pc = 0; pc + INSTRUCTION_SIZE < codeLength; pc += INSTRUCTION_SIZE) {
+            int first = mem[pc];
+            int target = mem[pc + 2];
+            int second = mem[pc + INSTRUCTION_SIZE];
+            boolean sameTarget = mem[pc + INSTRUCTION_SIZE + 2] == target;
+            int fused = HALT;
+            int length = 2;
+            switch (first) {
+                case CMP:
+                case CMPI:
+                    if (second >= JE && second <= JGE) {
+                        fused = (first == CMP ? CMP_JE : CMPI_JE) + second - JE;
+                    }
+                    break;
+                case MOVI:
+                    if (second == SYSCALL) {
+                        fused = MOVI_SYSCALL;
+                    } else if (second == STORE && sameTarget) {
+                        fused = MOVI_STORE;
+                    } else if (second == STOREI && sameTarget) {
+                        fused = MOVI_STOREI;
+                    } else if (second >= ADD && second <= DIV && sameTarget) {
+                        fused = MOVI_ADD + second - ADD;
+                    }
+                    break;
+                case LOADI:
+                    if (isLoadModifyStore(mem, pc, codeLength)) {
+                        fused = LOADI_MODIFY_STORE;
+                        length = 4;
+                    } else if (second >= ADD && second <= DIV && sameTarget) {
+                        fused = LOADI_ADD + second - ADD;
+                    }
+                    break;
+            }
+            if (fused != HALT) {
+                StringBuilder name = new StringBuilder(MNEMONICS[first]);
+                for (int i = 1; i < length; i++) {
+                    name.append('+').append(MNEMONICS[mem[pc + i * INSTRUCTION_SIZE]]);
+                }
+                fusions.merge(name.toString(), 1, Integer::sum);
+                mem[pc] = fused;
+            }
+        }
+        return fusions;
+    }
 
-        // for each instruction that is not label
-        //          decode instruction
-        //          load into memory
+    /* LOADI c, rx + ALU ?, rx + MOVI c, ry + STORE rx, ry (with rx and ry
+       different registers). */
+    private static boolean isLoadModifyStore(int[] mem, int pc, int codeLength) {
+        if (pc + 4 * INSTRUCTION_SIZE > codeLength) {
+            return false;
+        }
+        int address = mem[pc + 1], x = mem[pc + 2];
+        int alu = pc + INSTRUCTION_SIZE, movi = alu + INSTRUCTION_SIZE, store = movi + INSTRUCTION_SIZE;
+        return mem[alu] >= ADD && mem[alu] <= DIVI && mem[alu + 2] == x
+                && mem[movi] == MOVI && mem[movi + 1] == address && mem[movi + 2] != x
+                && mem[store] == STORE && mem[store + 1] == x && mem[store + 2] == mem[movi + 2];
     }
 
+    /* The dispatch loop.  The registers, flags, stack pointer and program
+       counter are all local variables while the program runs.  The
+       instructions come from the program, the data from the memory. */
     private void execute() {
+        dispatchesSaved = 0;
+        if (profiler != null) {
+            executeProfiled();
+            return;
+        }
+        if (program.translated != null) {
+            program.translated.run(memory, registers, host);
+            return;
+        }
+        final int[] code = program.code;
+        final Memory mem = memory;
+        final int[] r = new int[REGISTERS];
+        int flags = 0;
+        int sp = (int) mem.size(); // the stack grows downward from the top of memory
+        int pc = 0;
+        long saved = 0;
 
-        // set ip, sp
-        // execute
+        while (true) {
+            int opcode = code[pc];
+            int a = code[pc + 1];
+            int b = code[pc + 2];
+            pc += INSTRUCTION_SIZE;
+            switch (opcode) {
+                case HALT:
+                    System.arraycopy(r, 0, registers, 0, REGISTERS);
+                    dispatchesSaved = saved;
+                    return;
+                case NOP:
+                    break;
+                case PUSH:
+                    mem.write(--sp, r[a]);
+                    break;
+                case POP:
+                    r[a] = mem.read(sp++);
+                    break;
+                case LOAD:
+                    r[b] = mem.read(r[a]);
+                    break;
+                case LOADI:
+                    r[b] = mem.read(a);
+                    break;
+                case STORE:
+                    mem.write(r[b], r[a]);
+                    break;
+                case STOREI:
+                    mem.write(r[b], a);
+                    break;
+                case MOV:
+                    r[b] = r[a];
+                    break;
+                case MOVI:
+                    r[b] = a;
+                    break;
+                case ADD:
+                    r[b] = r[a] + r[b];
+                    break;
+                case SUB:
+                    r[b] = r[a] - r[b];
+                    break;
+                case MUL:
+                    r[b] = r[a] * r[b];
+                    break;
+                case DIV:
+                    r[b] = r[a] / r[b];
+                    break;
+                case ADDI:
+                    r[b] = a + r[b];
+                    break;
+                case SUBI:
+                    r[b] = a - r[b];
+                    break;
+                case MULI:
+                    r[b] = a * r[b];
+                    break;
+                case DIVI:
+                    r[b] = a / r[b];
+                    break;
+                case CMP:
+                    flags = compare(r[a], r[b]);
+                    break;
+                case CMPI:
+                    flags = compare(r[a], b);
+                    break;
+                case JMP:
+                    pc = a;
+                    break;
+                case JE:
+                    if ((flags & EQ) != 0) pc = a;
+                    break;
+                case JNE:
+                    if ((flags & NE) != 0) pc = a;
+                    break;
+                case JL:
+                    if ((flags & LT) != 0) pc = a;
+                    break;
+                case JLE:
+                    if ((flags & LE) != 0) pc = a;
+                    break;
+                case JG:
+                    if ((flags & GT) != 0) pc = a;
+                    break;
+                case JGE:
+                    if ((flags & GE) != 0) pc = a;
+                    break;
+                case SYSCALL:
+                    syscall(r[0], r[1]);
+                    break;
+                // The superinstructions.  The program counter points at the
+                // second instruction of the sequence.
+                case CMP_JE:
+                    flags = compare(r[a], r[b]);
+                    pc = (flags & EQ) != 0 ? code[pc + 1] : pc + INSTRUCTION_SIZE;
+                    saved++;
+                    break;
+                case CMP_JNE:
+                    flags = compare(r[a], r[b]);
+                    pc = (flags & NE) != 0 ? code[pc + 1] : pc + INSTRUCTION_SIZE;
+                    saved++;
+                    break;
+                case CMP_JL:
+                    flags = compare(r[a], r[b]);
+                    pc = (flags & LT) != 0 ? code[pc + 1] : pc + INSTRUCTION_SIZE;
+                    saved++;
+                    break;
+                case CMP_JLE:
+                    flags = compare(r[a], r[b]);
+                    pc = (flags & LE) != 0 ? code[pc + 1] : pc + INSTRUCTION_SIZE;
+                    saved++;
+                    break;
+                case CMP_JG:
+                    flags = compare(r[a], r[b]);
+                    pc = (flags & GT) != 0 ? code[pc + 1] : pc + INSTRUCTION_SIZE;
+                    saved++;
+                    break;
+                case CMP_JGE:
+                    flags = compare(r[a], r[b]);
+                    pc = (flags & GE) != 0 ? code[pc + 1] : pc + INSTRUCTION_SIZE;
+                    saved++;
+                    break;
+                case CMPI_JE:
+                    flags = compare(r[a], b);
+                    pc = (flags & EQ) != 0 ? code[pc + 1] : pc + INSTRUCTION_SIZE;
+                    saved++;
+                    break;
+                case CMPI_JNE:
+                    flags = compare(r[a], b);
+                    pc = (flags & NE) != 0 ? code[pc + 1] : pc + INSTRUCTION_SIZE;
+                    saved++;
+                    break;
+                case CMPI_JL:
+                    flags = compare(r[a], b);
+                    pc = (flags & LT) != 0 ? code[pc + 1] : pc + INSTRUCTION_SIZE;
+                    saved++;
+                    break;
+                case CMPI_JLE:
+                    flags = compare(r[a], b);
+                    pc = (flags & LE) != 0 ? code[pc + 1] : pc + INSTRUCTION_SIZE;
+                    saved++;
+                    break;
+                case CMPI_JG:
+                    flags = compare(r[a], b);
+                    pc = (flags & GT) != 0 ? code[pc + 1] : pc + INSTRUCTION_SIZE;
+                    saved++;
+                    break;
+                case CMPI_JGE:
+                    flags = compare(r[a], b);
+                    pc = (flags & GE) != 0 ? code[pc + 1] : pc + INSTRUCTION_SIZE;
+                    saved++;
+                    break;
+                case MOVI_SYSCALL:
+                    r[b] = a;
+                    syscall(r[0], r[1]);
+                    pc += INSTRUCTION_SIZE;
+                    saved++;
+                    break;
+                case MOVI_STORE:
+                    r[b] = a;
+                    mem.write(a, r[code[pc + 1]]);
+                    pc += INSTRUCTION_SIZE;
+                    saved++;
+                    break;
+                case MOVI_STOREI:
+                    r[b] = a;
+                    mem.write(a, code[pc + 1]);
+                    pc += INSTRUCTION_SIZE;
+                    saved++;
+                    break;
+                case MOVI_ADD:
+                    r[b] = a;
+                    r[b] = r[code[pc + 1]] + a;
+                    pc += INSTRUCTION_SIZE;
+                    saved++;
+                    break;
+                case MOVI_SUB:
+                    r[b] = a;
+                    r[b] = r[code[pc + 1]] - a;
+                    pc += INSTRUCTION_SIZE;
+                    saved++;
+                    break;
+                case MOVI_MUL:
+                    r[b] = a;
+                    r[b] = r[code[pc + 1]] * a;
+                    pc += INSTRUCTION_SIZE;
+                    saved++;
+                    break;
+                case MOVI_DIV:
+                    r[b] = a;
+                    r[b] = r[code[pc + 1]] / a;
+                    pc += INSTRUCTION_SIZE;
+                    saved++;
+                    break;
+                case LOADI_ADD:
+                    r[b] = mem.read(a);
+                    r[b] = r[code[pc + 1]] + r[b];
+                    pc += INSTRUCTION_SIZE;
+                    saved++;
+                    break;
+                case LOADI_SUB:
+                    r[b] = mem.read(a);
+                    r[b] = r[code[pc + 1]] - r[b];
+                    pc += INSTRUCTION_SIZE;
+                    saved++;
+                    break;
+                case LOADI_MUL:
+                    r[b] = mem.read(a);
+                    r[b] = r[code[pc + 1]] * r[b];
+                    pc += INSTRUCTION_SIZE;
+                    saved++;
+                    break;
+                case LOADI_DIV:
+                    r[b] = mem.read(a);
+                    r[b] = r[code[pc + 1]] / r[b];
+                    pc += INSTRUCTION_SIZE;
+                    saved++;
+                    break;
+                case LOADI_MODIFY_STORE: {
+                    r[b] = mem.read(a);
+                    int operation = code[pc];
+                    int source = code[pc + 1];
+                    r[b] = alu(operation, operation >= ADDI ? source : r[source], r[b]);
+                    r[code[pc + 5]] = a;
+                    mem.write(a, r[b]);
+                    pc += 3 * INSTRUCTION_SIZE;
+                    saved += 3;
+                    break;
+                }
+                default:
+                    throw new RuntimeException(String.format("Illegal instruction at address %d", pc - INSTRUCTION_SIZE));
+            }
+        }
+    }
 
+    /* The dispatch loop for profiling, which counts every instruction it
+       executes by address.  It runs the instructions as they were assembled,
+       from the image of the program, rather than fused or translated, so
+       that every one of them is counted.  Keeping it apart keeps the counting
+       out of the loop above. */
+    private void executeProfiled() {
+        int codeLength = program.code.length - INSTRUCTION_SIZE;
+        final int[] code = Arrays.copyOf(program.image.contents, codeLength + INSTRUCTION_SIZE);
+        final long[] counts = new long[codeLength / INSTRUCTION_SIZE + 1];
+        final Memory mem = memory;
+        final int[] r = new int[REGISTERS];
+        int flags = 0;
+        int sp = (int) mem.size();
+        int pc = 0;
+        try {
+            while (true) {
+                int opcode = code[pc];
+                int a = code[pc + 1];
+                int b = code[pc + 2];
+                counts[pc / INSTRUCTION_SIZE]++;
+                pc += INSTRUCTION_SIZE;
+                switch (opcode) {
+                    case HALT:
+                        System.arraycopy(r, 0, registers, 0, REGISTERS);
+                        return;
+                    case NOP:
+                        break;
+                    case PUSH:
+                        mem.write(--sp, r[a]);
+                        break;
+                    case POP:
+                        r[a] = mem.read(sp++);
+                        break;
+                    case LOAD:
+                        r[b] = mem.read(r[a]);
+                        break;
+                    case LOADI:
+                        r[b] = mem.read(a);
+                        break;
+                    case STORE:
+                        mem.write(r[b], r[a]);
+                        break;
+                    case STOREI:
+                        mem.write(r[b], a);
+                        break;
+                    case MOV:
+                        r[b] = r[a];
+                        break;
+                    case MOVI:
+                        r[b] = a;
+                        break;
+                    case ADD:
+                    case SUB:
+                    case MUL:
+                    case DIV:
+                        r[b] = alu(opcode, r[a], r[b]);
+                        break;
+                    case ADDI:
+                    case SUBI:
+                    case MULI:
+                    case DIVI:
+                        r[b] = alu(opcode, a, r[b]);
+                        break;
+                    case CMP:
+                        flags = compare(r[a], r[b]);
+                        break;
+                    case CMPI:
+                        flags = compare(r[a], b);
+                        break;
+                    case JMP:
+                        pc = a;
+                        break;
+                    case JE:
+                    case JNE:
+                    case JL:
+                    case JLE:
+                    case JG:
+                    case JGE:
+                        // The flags are in the same order as the jumps.
+                        if ((flags & 1 << (opcode - JE)) != 0) pc = a;
+                        break;
+                    case SYSCALL:
+                        syscall(r[0], r[1]);
+                        break;
+                    default:
+                        throw new RuntimeException(String.format("Illegal instruction at address %d", pc - INSTRUCTION_SIZE));
+                }
+            }
+        } finally {
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    int address = i * INSTRUCTION_SIZE;
+                    profiler.count(address, describe(code, address), MNEMONICS[code[address]], counts[i]);
+                }
+            }
+        }
+    }
+
+    /* The instruction at an address as it would be written in assembly,
+       with a label as its address. */
+    private static String describe(int[] code, int address) {
+        int opcode = code[address];
+        if (opcode < 0 || opcode >= MNEMONICS.length) {
+            return "?" + opcode;
+        }
+        StringBuilder text = new StringBuilder(MNEMONICS[opcode]);
+        String operands = OPERANDS[opcode];
+        for (int i = 0; i < operands.length(); i++) {
+            int operand = code[address + 1 + i];
+            text.append(i == 0 ? " " : ", ").append(operands.charAt(i) == 'R' ? "r" + operand : Integer.toString(operand));
+        }
+        return text.toString();
+    }
+
+    /* The operations of ADD to DIVI: x opp y. */
+    private static int alu(int opcode, int x, int y) {
+        switch (opcode) {
+            case ADD:
+            case ADDI:
+                return x + y;
+            case SUB:
+            case SUBI:
+                return x - y;
+            case MUL:
+            case MULI:
+                return x * y;
+            default:
+                return x / y;
+        }
+    }
+
+    private static int compare(int x, int y) {
+        if (x == y) {
+            return EQ | LE | GE;
+        }
+        return x < y ? NE | LT | LE : NE | GT | GE;
+    }
+
+    /* Also called by programs translated by MachineTranslator, through
+       "host". */
+    void syscall(int code, int argument) {
+        if (code == SYSCALL_PRINT) {
+            out.print(argument);
+        } else if (code == SYSCALL_UNDEFINED) {
+            throw new RuntimeException(String.format("Variable %s is undefined!", Frame.nameOf(argument)));
+        } else {
+            throw new RuntimeException(String.format("Unknown system call: %d", code));
+        }
     }
 
     public void run(String program) {
+        run(assemble(program));
+    }
 
-        //System.out.println(String.join("\n", extractSection(program, "code")));
+    public void run(ObjectCode objectCode) {
+        run(new LoadedProgram(objectCode, fusion, translation));
+    }
+
+    /**
+     * Runs a program from an object file written by ObjectCode.write().
+     * @param objectFile the object file
+     * @throws IOException if the file cannot be read or is not an object file
+     */
+    public void run(Path objectFile) throws IOException {
+        run(LoadedProgram.read(objectFile, fusion, translation));
+    }
+
+    /**
+     * Runs a loaded program, which other machines may be running as well.
+     * Running the same program again only resets the pages of memory the
+     * last run wrote to, and nothing if the machine was reset since (as
+     * VmPool does when a machine is handed back).
+     * @param program the program
+     */
+    public void run(LoadedProgram program) {
+        if (this.program != program) {
+            attach(program);
+        } else if (dirty) {
+            reset();
+        }
+        dirty = true;
         try {
-            load(program);
-        } catch (NumberFormatException e) {
+            execute();
+        } finally {
+            out.flush();
+        }
+    }
 
+    /**
+     * Runs the program that was run last again, from the start.
+     */
+    public void run() {
+        if (program == null) {
+            throw new IllegalStateException("No program loaded!");
         }
+        run(program);
+    }
+
+    /* Makes a program the one this machine runs, with memory that starts
+       out as the image of the program. */
+    void attach(LoadedProgram program) {
+        this.program = program;
+        memory = memoryFactory.create(program.image);
+        Arrays.fill(registers, 0);
+        dirty = false;
+    }
 
+    /* Brings the machine back to the state it was in before the program
+       ran. */
+    void reset() {
+        memory.reset();
+        Arrays.fill(registers, 0);
+        dirty = false;
     }
 
+    LoadedProgram getProgram() {
+        return program;
+    }
+
+    /**
+     * Turns the translation of programs to JVM classes (see
+     * MachineTranslator) on or off for the programs this machine loads from
+     * now on (a LoadedProgram is loaded with its own settings).  A
+     * program that cannot be translated is interpreted.  It is off by
+     * default, as translating takes more time than a short program runs.
+     * @param translation whether to translate programs
+     */
+    public void setTranslation(boolean translation) {
+        this.translation = translation;
+    }
+
+    /**
+     * Whether the last program run was translated to a JVM class, rather
+     * than interpreted.
+     * @return true if it runs as JVM code
+     */
+    public boolean isTranslated() {
+        return program != null && program.isTranslated();
+    }
+
+    /**
+     * Turns the fusion of instructions into superinstructions on or off for
+     * the programs this machine loads from now on.  It is on by default.
+     * @param fusion whether to fuse instructions
+     */
+    public void setFusion(boolean fusion) {
+        this.fusion = fusion;
+    }
+
+    /**
+     * Send what the program prints somewhere else than System.out.  The sink
+     * is flushed when the program halts, but not closed.
+     * @param out the sink for the print system call
+     */
+    public void setOutput(OutputSink out) {
+        this.out = out;
+    }
+
+    /**
+     * Profile the programs this machine runs: count how many times every
+     * instruction is executed.  A profiled program is interpreted one
+     * instruction at a time, even if it was fused or translated when it was
+     * loaded.  Without a profiler, the machine runs exactly as before.
+     * @param profiler the profiler, or null to not profile
+     */
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /**
+     * The sequences of instructions that were fused into superinstructions
+     * in the last program run, for instance "CMPI+JLE", with the number of
+     * places each was found.
+     * @return number of superinstructions by sequence
+     */
+    public Map<String, Integer> getFusions() {
+        return program == null ? new TreeMap<>() : program.getFusions();
+    }
+
+    /**
+     * The number of instructions that the last program did not have to
+     * dispatch because they were part of a superinstruction, counted until it
+     * halted.
+     * @return instructions dispatched as part of a superinstruction
+     */
+    public long getDispatchesSaved() {
+        return dispatchesSaved;
+    }
+
+    /**
+     * Chooses the kind of memory of this machine, for the programs it runs
+     * from now on.  It is Memory.heap() by default.
+     * @param memoryFactory creates the memory for a program
+     */
+    public void setMemory(Memory.Factory memoryFactory) {
+        this.memoryFactory = memoryFactory;
+        this.program = null; // the next run gets new memory
+    }
+
+    /**
+     * The number of pages of memory the last program used (see
+     * Memory.pagesUsed()), which are the only ones this machine has a copy
+     * of.
+     * @return number of pages
+     */
+    public int getPagesUsed() {
+        return memory.pagesUsed();
+    }
+
+    /**
+     * The value of a register when the last program halted.
+     * @param register 0 to 9
+     * @return value of the register
+     */
+    public int getRegister(int register) {
+        return registers[register];
+    }
+
+    /**
+     * A word of memory, for instance a variable in the data section.
+     * @param address the address
+     * @return its value
+     */
+    public int getMemory(int address) {
+        return memory.read(address);
+    }
 
 }
-  
\ No newline at end of file
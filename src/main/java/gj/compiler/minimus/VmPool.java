@@ -0,0 +1,107 @@
+package gj.compiler.minimus;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * ~ Virtual Machine Pool ~
+ * <p/>
+ * Runs many jobs of the same {@link LoadedProgram}, on machines that are
+ * used again and again.  All the machines share the instructions and the
+ * image of the memory of the program; a machine that is handed back to the
+ * pool only puts back the pages of memory its job wrote to, so starting the
+ * next job on it costs next to nothing.
+ * <p/>
+ * A pool can be used from many threads at once, but a machine may only be
+ * used by one thread at a time:
+ * <pre>
+ *   VirtualMachine vm = pool.acquire();
+ *   try {
+ *       vm.run();
+ *       ... vm.getMemory(0x1000) ...
+ *   } finally {
+ *       pool.release(vm);
+ *   }
+ * </pre>
+ */
+public class VmPool {
+
+    private final LoadedProgram program;
+    private final Memory.Factory memoryFactory;
+    private final ConcurrentLinkedDeque<VirtualMachine> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger created = new AtomicInteger();
+
+    public VmPool(LoadedProgram program) {
+        this(program, Memory.heap());
+    }
+
+    /**
+     * @param program the program the machines run
+     * @param memoryFactory creates the memory of every machine
+     */
+    public VmPool(LoadedProgram program, Memory.Factory memoryFactory) {
+        this.program = program;
+        this.memoryFactory = memoryFactory;
+    }
+
+    public LoadedProgram getProgram() {
+        return program;
+    }
+
+    /**
+     * Takes a machine from the pool, or creates one if they are all in use.
+     * Calling run() on it runs the program of the pool.
+     * @return the machine, ready to run the program
+     */
+    public VirtualMachine acquire() {
+        VirtualMachine vm = idle.pollFirst();
+        if (vm == null) {
+            vm = new VirtualMachine();
+            vm.setMemory(memoryFactory);
+            vm.attach(program);
+            created.incrementAndGet();
+        }
+        return vm;
+    }
+
+    /**
+     * Hands a machine back to the pool.  A machine that has run a different
+     * program in the meantime is not kept.
+     * @param vm a machine from acquire()
+     */
+    public void release(VirtualMachine vm) {
+        if (vm.getProgram() != program) {
+            return;
+        }
+        vm.reset();
+        // The most recently used machine goes out first, while its pages are
+        // still in the cache.
+        idle.offerFirst(vm);
+    }
+
+    /**
+     * Runs the program on a machine from the pool.
+     * @param results given the machine after the program halted, to read the
+     *                registers and memory
+     */
+    public void run(Consumer<VirtualMachine> results) {
+        VirtualMachine vm = acquire();
+        try {
+            vm.run();
+            results.accept(vm);
+        } finally {
+            release(vm);
+        }
+    }
+
+    /**
+     * The number of machines the pool has created, which is the largest
+     * number of jobs that ran at the same time.
+     * @return number of machines
+     */
+    public int getCreated() {
+        return created.get();
+    }
+
+}
@@ -0,0 +1,50 @@
+package gj.compiler.minimus;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class BytecodeTest {
+
+    private int run(String program) {
+        return Bytecode.compile(new Parser(program).parse()).execute(new Frame());
+    }
+
+    @Test
+    public void testWhile() {
+        Bytecode bytecode = Bytecode.compile(new Parser("{ a=0; while (a < 3) a=a+1; }").parse());
+        assertEquals("0: PUSH 0\n"
+                + "2: STORE 0\n"
+                + "4: LOAD 0\n"
+                + "6: PUSH 3\n"
+                + "8: JLT 19\n"
+                + "10: LOAD 0\n"
+                + "12: PUSH 1\n"
+                + "14: ADD\n"
+                + "15: STORE 0\n"
+                + "17: JUMP 4\n"
+                + "19: PUSH 0\n"
+                + "21: RETURN\n", bytecode.disassemble());
+    }
+
+    @Test
+    public void testResult() {
+        // The value of the program is the value of its root, like in the Interpreter.
+        assertEquals(0, run("{ a=1; }"));
+        assertEquals(12, run("a=b=c=12;"));
+        assertEquals(3, run("if (1 > 2) a=2; else a=3;"));
+        assertEquals(0, run("if (1 > 2) a=2;"));
+        assertEquals(7, run("if (5) a=7;"));
+    }
+
+    @Test
+    public void testErrors() {
+        RuntimeException e = assertThrows(RuntimeException.class, () -> run("{ a=1; b=a+c; }"));
+        assertEquals("Variable c is undefined!", e.getMessage());
+        assertThrows(ArithmeticException.class, () -> run("{ a=0; b=1/a; }"));
+        assertEquals(0, run("{ a=0; if (a) a=99999999999; }"));
+        assertThrows(NumberFormatException.class, () -> run("{ a=1; if (a) a=99999999999; }"));
+    }
+
+}
@@ -0,0 +1,64 @@
+package gj.compiler.minimus;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CompilerTest {
+
+    @Test
+    public void testCompile() {
+        Compiler compiler = new Compiler();
+        String assembly = compiler.compile("{ a=1; while (a < 100) a=a*2; print(a); }");
+        assertEquals(".data\n"
+                + "0                       ; 0x1000 a\n"
+                + ".code\n"
+                + "MOVI 1, r1\n"
+                + ":L1\n"
+                + "CMPI r1, 100\n"
+                + "JGE :L2\n"
+                + "MOVI 2, r2\n"
+                + "MUL r1, r2\n"
+                + "MOV r2, r1\n"
+                + "JMP :L1\n"
+                + ":L2\n"
+                + "MOVI 1, r0\n"
+                + "SYSCALL                 ; print\n"
+                + "MOVI 0x1000, r0\n"
+                + "STORE r1, r0            ; a\n"
+                + "HALT\n", assembly);
+        assertEquals(Map.of("a", 0x1000), compiler.getVariables());
+        assertEquals(Map.of(), compiler.getDefined());
+        assertEquals(0, compiler.getSpilled());
+    }
+
+    @Test
+    public void testSpill() {
+        Compiler compiler = new Compiler();
+        String assembly = compiler.compile("{ a=1;b=2;c=3;d=4;e=5;f=6;g=7;h=8;i=9;j=10; "
+                + "k=a+b*(c+d*(e+f*(g+h*(i+j)))); print(k-a-b-c-d-e-f-g-h-i-j); }");
+        assertTrue(compiler.getSpilled() > 0);
+        // r8 and r9 are only used to load and store spilled values.
+        assertFalse(assembly.contains("MOVI 8, r8"));
+        assertTrue(assembly.matches("(?s).*\nLOADI 0x10[0-9a-f]{2}, r8\n.*"));
+        assertEquals(11, compiler.getVariables().size());
+    }
+
+    @Test
+    public void testErrors() {
+        // Reading a variable that is never assigned fails when the read is
+        // reached, as in the Interpreter.
+        Compiler compiler = new Compiler();
+        String assembly = compiler.compile("{ a=1;\nb=a+c; }");
+        assertEquals(Map.of("c", 0x1003), compiler.getDefined());
+        RuntimeException e = assertThrows(RuntimeException.class, () -> new VirtualMachine().run(assembly));
+        assertEquals("Variable c is undefined!", e.getMessage());
+        assertThrows(RuntimeException.class, () -> new Compiler().compile("a=99999999999;"));
+    }
+
+}
@@ -0,0 +1,49 @@
+package gj.compiler.minimus;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FrameTest {
+
+    @Test
+    public void testSlots() {
+        Frame frame = new Frame();
+        frame.set(Frame.slotOf("z"), -4);
+        frame.set(Frame.slotOf("c"), 7);
+        assertEquals(-4, frame.get(25));
+        assertEquals(7, frame.get(2));
+        assertFalse(frame.isDefined(0));
+
+        RuntimeException e = assertThrows(RuntimeException.class, () -> frame.get(0));
+        assertEquals("Variable a is undefined!", e.getMessage());
+    }
+
+    @Test
+    public void testMapView() {
+        Frame frame = new Frame();
+        Map<String, Integer> view = frame.asMap();
+        assertTrue(view.isEmpty());
+
+        frame.set(Frame.slotOf("b"), 2);
+        frame.set(Frame.slotOf("a"), 1);
+        Map<String, Integer> expected = new HashMap<>();
+        expected.put("a", 1);
+        expected.put("b", 2);
+        assertEquals(expected, view);
+        assertEquals(view, expected);
+        assertEquals(expected.hashCode(), view.hashCode());
+        assertEquals("{a=1, b=2}", view.toString());
+        assertNull(view.get("c"));
+        assertNull(view.get("ab"));
+        assertThrows(UnsupportedOperationException.class, () -> view.put("c", 3));
+    }
+
+}
@@ -0,0 +1,100 @@
+package gj.compiler.minimus;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class IncrementalParserTest {
+
+    /* Renders a tree including the spans of every node. */
+    private static String render(Parser.Node root) {
+        StringBuilder b = new StringBuilder(String.valueOf(root.type));
+        if (root.value != null) {
+            b.append('(').append(root.value).append(')');
+        }
+        b.append('@').append(root.start).append('-').append(root.end)
+                .append(':').append(root.line).append('-').append(root.endLine);
+        for (Parser.Node child : root.children) {
+            b.append(' ').append(render(child));
+        }
+        return b.append(';').toString();
+    }
+
+    private static String render(IncrementalParser parser) {
+        return render(parser.getTree());
+    }
+
+    /* Applies the edit and compares the result with parsing from scratch. */
+    private void edit(IncrementalParser parser, int offset, int removed, String inserted) {
+        parser.edit(offset, removed, inserted);
+        assertEquals(render(new Parser(parser.getText()).parse()), render(parser), parser.getText());
+    }
+
+    @Test
+    public void testEdits() {
+        String program = "{\n  a=1;\n  b=2;\n  if (a < b) {\n    c=3;\n    d=4;\n  }\n  while (a < 10) a = a + 1;\n  e=5;\n}\n";
+        IncrementalParser parser = new IncrementalParser(program);
+
+        edit(parser, program.indexOf("d=4"), 3, "d=44;\n    x=a*b");
+        assertFalse(parser.isFullReparse());
+        assertTrue(parser.getReparsedLength() < parser.getText().length() / 2);
+
+        edit(parser, parser.getText().indexOf("b=2;") + 4, 0, "\n\n  print(b);");
+        assertFalse(parser.isFullReparse());
+
+        edit(parser, parser.getText().indexOf("{\n    c=3;") + 1, 0, "\n    ;");
+        edit(parser, parser.getText().indexOf("  while"), 0, "else { f=6; }\n");
+        assertFalse(parser.isFullReparse());
+
+        edit(parser, parser.getText().indexOf("e=5;"), 4, "");
+        edit(parser, parser.getText().indexOf("a + 1"), 5, "(a+1)*1");
+
+        // Touching the outer braces needs the whole program.
+        edit(parser, 0, 1, "{ z=0; ");
+        assertTrue(parser.isFullReparse());
+    }
+
+    @Test
+    public void testEmptySequence() {
+        IncrementalParser parser = new IncrementalParser("{ a=1; if (a) {} }");
+        edit(parser, parser.getText().indexOf("{}") + 1, 0, " b=2; ");
+        assertFalse(parser.isFullReparse());
+        edit(parser, parser.getText().indexOf(" b=2; "), 6, "");
+    }
+
+    @Test
+    public void testSubtreesAfterEditReused() {
+        IncrementalParser parser = new IncrementalParser("{ a=1; b=2; c=3; while (a < 10) { a=a+1; } }");
+        Parser.Node loop = parser.getTree().children.get(3);
+        Parser.Node body = loop.children.get(1);
+        int bodyStart = body.start;
+
+        edit(parser, parser.getText().indexOf("b=2"), 3, "b=\n\n22");
+        assertFalse(parser.isFullReparse());
+        assertSame(loop, parser.getTree().children.get(3));
+        assertSame(body, loop.children.get(1));
+        // The spans are those of Parser.parse(), so the body has moved too.
+        assertEquals(bodyStart + 3, body.start);
+        assertEquals(3, body.line);
+    }
+
+    @Test
+    public void testSyntaxError() {
+        IncrementalParser parser = new IncrementalParser("{ a=1; { b=2; } c=3; }");
+        String before = render(parser);
+        assertThrows(RuntimeException.class, () -> parser.edit(parser.getText().indexOf("b=2"), 3, "b=="));
+        assertEquals("{ a=1; { b=2; } c=3; }", parser.getText());
+        assertEquals(before, render(parser));
+
+        // A brace that no longer matches is only found by parsing everything again.
+        assertThrows(RuntimeException.class, () -> parser.edit(parser.getText().indexOf("{ b"), 1, ""));
+        assertTrue(parser.isFullReparse());
+        edit(parser, parser.getText().indexOf("{ b"), 9, "");
+        assertFalse(parser.isFullReparse());
+    }
+
+}
@@ -5,8 +5,27 @@ import hu.webarticum.treeprinter.decorator.BorderTreeNodeDecorator;
 import hu.webarticum.treeprinter.printer.traditional.TraditionalTreePrinter;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
 public class InterpreterTest {
 
+    /* Runs the program on every engine and checks that they agree. */
+    private Map<String, Integer> runAllEngines(String program) {
+        Map<String, Integer> expected = new Interpreter(program).run();
+        for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+            assertEquals(expected, new Interpreter(program, engine).run(), engine.name());
+        }
+        return expected;
+    }
+
     @Test
     public void testSimple() {
         String program = "{ a=12*(5+2); }";
@@ -35,4 +54,146 @@ public class InterpreterTest {
         i.run();
     }
 
+    @Test
+    public void testSymbolTable() {
+        // The symbol table is the caller's to change.
+        Map<String, Integer> symbolTable = new Interpreter("{ a=1; b=a+1; }").run();
+        symbolTable.put("c", 3);
+        symbolTable.put("a", 0);
+        assertEquals(Map.of("a", 0, "b", 2, "c", 3), symbolTable);
+    }
+
+    @Test
+    public void testEngines() {
+        assertEquals(Map.of("a", 84), runAllEngines("{ a=12*(5+2); }"));
+        assertEquals(Map.of("a", 1024, "b", 10), runAllEngines("{ b=1; a=2; while (b < 10) { a=a*2; b=b+1; }}"));
+        runAllEngines("{ a = 1; while (a <= 10) { print(a*a); a = a + 1; } }");
+        runAllEngines("{ a=2; b=0; if (a=/=2) { b = 1; } else { b = 2; } c=a>=b; d=a==b; e=a/b-7; f=g=h=a<b; }");
+        runAllEngines("a=b=c=d=12;");
+    }
+
+    @Test
+    public void testOutput() {
+        String program = "{ a = 1; while (a <= 5) { print(a*a); a = a + 1; } }";
+        for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+            CollectingSink out = new CollectingSink();
+            Interpreter interpreter = new Interpreter(program, engine);
+            interpreter.setOutput(out);
+            interpreter.setTierUpThreshold(2);
+            interpreter.run();
+            assertEquals(List.of(1, 4, 9, 16, 25), out.getValues(), engine.name());
+            assertEquals(List.of("1", "4", "9", "16", "25", "{a=6}", "Execution result: 0"), out.getLines(), engine.name());
+
+            out.clear();
+            interpreter.setPrintSymbolTable(false);
+            assertEquals(Map.of("a", 6), interpreter.run());
+            assertEquals(List.of("1", "4", "9", "16", "25"), out.getLines(), engine.name());
+        }
+    }
+
+    @Test
+    public void testProfiler() {
+        String program = "{ a = 0;\n while (a < 10) {\n  if (a == 5) print(a);\n  a = a + 1;\n }\n}";
+        for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+            Profiler profiler = new Profiler();
+            Interpreter interpreter = new Interpreter(program, engine);
+            interpreter.setOutput(OutputSink.DISCARD);
+            interpreter.setProfiler(profiler);
+            assertEquals(Map.of("a", 10), interpreter.run());
+
+            Map<String, Profiler.Entry> byStack = new HashMap<>();
+            for (Profiler.Entry entry : profiler.getEntries()) {
+                byStack.put(entry.getStack(), entry);
+            }
+            assertEquals(1, byStack.get("SEQUENCE@1").getCount(), engine.name());
+            assertEquals(1, byStack.get("SEQUENCE@1;WHILE@2").getCount());
+            assertEquals(11, byStack.get("SEQUENCE@1;WHILE@2;LESS_THAN@2").getCount());
+            assertEquals(10, byStack.get("SEQUENCE@1;WHILE@2;SEQUENCE@2;IF@3").getCount());
+            assertEquals(1, byStack.get("SEQUENCE@1;WHILE@2;SEQUENCE@2;IF@3;PRINT@3").getCount());
+            assertEquals(10, byStack.get("SEQUENCE@1;WHILE@2;SEQUENCE@2;ASSIGNMENT@4;ADDITION@4").getCount());
+
+            // The root holds all of the time, which is split up among the nodes.
+            Profiler.Entry root = byStack.get("SEQUENCE@1");
+            long self = profiler.getEntries().stream().mapToLong(Profiler.Entry::getSelf).sum();
+            assertEquals(root.getTotal(), self);
+            StringBuilder collapsed = new StringBuilder();
+            profiler.writeCollapsed(collapsed);
+            for (String line : collapsed.toString().split("\n")) {
+                assertTrue(line.matches("SEQUENCE@1(;[A-Z_]+@\\d)* \\d+"), line);
+            }
+        }
+    }
+
+    @Test
+    public void testClosureShapes() {
+        // Operations on variables and constants, in statements and in conditions.
+        assertEquals(Map.of("a", 5, "b", 30, "c", 5, "d", 1, "e", 1, "f", 4),
+                runAllEngines("{ a=0; b=0; while (a < 5) { a=a+1; b=b+a+a-a/a*2+2; } c=b/6; d=a>=c; e=c==a; "
+                        + "if (d) f=a-1; else f=0; while (a*2 <= 10-1) a=a+1; }"));
+        // A literal that does not fit is only a problem once it is evaluated.
+        // (The TokenBuffer of the compact engine already rejects it while scanning.)
+        String program = "{ a=1; if (a=/=1) a=99999999999; }";
+        assertEquals(Map.of("a", 1), new Interpreter(program, Interpreter.Engine.CLOSURE).run());
+        assertThrows(ArithmeticException.class, () -> new Interpreter("{ a=0; b=1/a; }", Interpreter.Engine.CLOSURE).run());
+    }
+
+    @Test
+    public void testTiered() {
+        String program = "{ a=0; c=0; while (a < 10) { b=0; while (b < a) { c=c+b; b=b+1; } a=a+1; } }";
+        List<String> events = new ArrayList<>();
+        Interpreter interpreter = new Interpreter(program, Interpreter.Engine.TIERED);
+        interpreter.setTierUpThreshold(5);
+        interpreter.setTierListener((loop, backEdges) -> events.add(loop.line + ":" + loop.start + ":" + backEdges));
+        assertEquals(new Interpreter(program).run(), interpreter.run());
+        // The inner loop (at offset 34) gets hot first, then the outer one (at offset 12).
+        assertEquals(List.of("1:34:5", "1:12:5"), events);
+
+        // Switching tiers in the middle of a loop keeps the undefined variable error.
+        Interpreter failing = new Interpreter("{ a=0; while (a < 10) { if (a == 7) b=c; a=a+1; } }",
+                Interpreter.Engine.TIERED);
+        failing.setTierUpThreshold(2);
+        RuntimeException e = assertThrows(RuntimeException.class, failing::run);
+        assertEquals("Variable c is undefined!", e.getMessage());
+    }
+
+    @Test
+    public void testUndefinedVariable() {
+        for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+            RuntimeException e = assertThrows(RuntimeException.class,
+                    () -> new Interpreter("{ a=1; b=a+c; }", engine).run(), engine.name());
+            assertEquals("Variable c is undefined!", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testLazyParsing() {
+        String program = "{ a=0; b=0; while (a < 10) { a=a+1; if (a > 5) { b=b+a; } else { ; } } if (b > 100) { c=b*; } }";
+        Interpreter interpreter = new Interpreter(program);
+        interpreter.setLazyParsing(true);
+        assertEquals(Map.of("a", 10, "b", 40), interpreter.run());
+        assertThrows(RuntimeException.class, () -> new Interpreter(program).run());
+    }
+
+    @Test
+    public void testDeepNesting() throws InterruptedException {
+        // 100000 nested parentheses and 20000 nested blocks and ifs.
+        int depth = 100_000;
+        String program = "{ a = " + "(".repeat(depth) + "1" + ")".repeat(depth) + "; b = 0; "
+                + "{ if (a) ".repeat(depth / 5) + "b = b + 1;" + " }".repeat(depth / 5) + " }";
+        AtomicReference<Object> result = new AtomicReference<>();
+        // A thread with a small stack, like a virtual thread's.
+        Thread thread = new Thread(null, () -> {
+            try {
+                Interpreter interpreter = new Interpreter(program, Interpreter.Engine.ITERATIVE);
+                interpreter.setPrintSymbolTable(false);
+                result.set(interpreter.run());
+            } catch (Throwable e) {
+                result.set(e);
+            }
+        }, "small-stack", 64 * 1024);
+        thread.start();
+        thread.join();
+        assertEquals(Map.of("a", 1, "b", 1), result.get());
+    }
+
 }
@@ -0,0 +1,76 @@
+package gj.compiler.minimus;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class JvmCompilerTest {
+
+    private int run(String program, Frame frame, List<Integer> printed) {
+        return JvmCompiler.compile(new Parser(program).parse()).run(frame, printed::add);
+    }
+
+    @Test
+    public void testRun() {
+        Frame frame = new Frame();
+        List<Integer> printed = new ArrayList<>();
+        assertEquals(0, run("{ a = 1; while (a <= 5) { print(a*a); a = a + 1; } if (a > 5) b = a/2; }", frame, printed));
+        assertEquals(List.of(1, 4, 9, 16, 25), printed);
+        assertEquals(Map.of("a", 6, "b", 3), frame.asMap());
+
+        assertEquals(12, run("a=b=c=12;", new Frame(), printed));
+        assertEquals(3, run("if (1 > 2) a=2; else a=3;", new Frame(), printed));
+        assertEquals(-70000, run("a=0-70000;", new Frame(), printed));
+    }
+
+    @Test
+    public void testFrame() {
+        // Variables come from the frame and only assigned ones go back to it.
+        Frame frame = new Frame();
+        frame.set(Frame.slotOf("x"), 5);
+        run("{ if (x > 10) { y = 1; } z = x * 2; }", frame, new ArrayList<>());
+        assertEquals(Map.of("x", 5, "z", 10), frame.asMap());
+    }
+
+    @Test
+    public void testErrors() {
+        RuntimeException e = assertThrows(RuntimeException.class,
+                () -> run("{ a=1; b=a+c; }", new Frame(), new ArrayList<>()));
+        assertEquals("Variable c is undefined!", e.getMessage());
+        e = assertThrows(RuntimeException.class,
+                () -> run("{ a=0; while (a < 2) { if (a == 1) c=d; b=a; a=a+1; } }", new Frame(), new ArrayList<>()));
+        assertEquals("Variable d is undefined!", e.getMessage());
+
+        // "b" might be undefined where it is read, but it is not.
+        Frame frame = new Frame();
+        run("{ a=0; while (a < 2) { if (a == 1) c=b; b=a; a=a+1; } }", frame, new ArrayList<>());
+        assertEquals(Map.of("a", 2, "b", 1, "c", 0), frame.asMap());
+
+        assertThrows(ArithmeticException.class, () -> run("{ a=0; b=1/a; }", new Frame(), new ArrayList<>()));
+        assertThrows(NumberFormatException.class, () -> run("{ a=1; if (a) a=99999999999; }", new Frame(), new ArrayList<>()));
+    }
+
+    @Test
+    public void testClassLoader() {
+        // Every program has a loader of its own, so that it can be unloaded.
+        JvmCompiler.Program first = JvmCompiler.compile(new Parser("a=1;").parse());
+        JvmCompiler.Program second = JvmCompiler.compile(new Parser("a=1;").parse());
+        assertNotSame(JvmCompiler.class.getClassLoader(), first.getClass().getClassLoader());
+        assertNotSame(first.getClass().getClassLoader(), second.getClass().getClassLoader());
+    }
+
+    @Test
+    public void testTooLarge() {
+        // Fits in 64KB, but the jump over the body of the "if" does not fit in 16 bits.
+        String program = "{ a=1; b=0; if (a) {" + " b=b+1;".repeat(6000) + " } }";
+        RuntimeException e = assertThrows(RuntimeException.class, () -> run(program, new Frame(), new ArrayList<>()));
+        assertEquals("Program is too large to compile to a JVM method!", e.getMessage());
+    }
+
+}
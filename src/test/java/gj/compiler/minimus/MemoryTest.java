@@ -0,0 +1,91 @@
+package gj.compiler.minimus;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MemoryTest {
+
+    @Test
+    public void testDirect() {
+        Memory.Image image = new Memory.Image(new int[]{1, 2, 3}, new int[]{7, 8});
+        Memory memory = Memory.direct(1L << 32).create(image);
+        assertEquals(1L << 32, memory.size());
+        assertEquals(2, memory.read(1));
+        assertEquals(8, memory.read(0x1001));
+        assertEquals(0, memory.read(0x1002));
+        // Pages that were only read are not counted (or filled by reset()).
+        assertEquals(0, memory.pagesUsed());
+
+        // Addresses are unsigned: -1 is the last int of a 32-bit address space.
+        memory.write(-1, 42);
+        memory.write(0x12345678, 43);
+        memory.write(0x1001, 9);
+        assertEquals(42, memory.read(0xffffffff));
+        assertEquals(43, memory.read(0x12345678));
+        assertEquals(3, memory.pagesUsed());
+
+        memory.reset();
+        assertEquals(0, memory.pagesUsed());
+        assertEquals(0, memory.read(-1));
+        assertEquals(0, memory.read(0x12345678));
+        assertEquals(8, memory.read(0x1001));
+        // Writing a page again after the reset marks it again.
+        memory.write(0x1001, 10);
+        assertEquals(1, memory.pagesUsed());
+        memory.reset();
+        assertEquals(8, memory.read(0x1001));
+
+        Memory small = Memory.direct(0x1800).create(image);
+        small.write(0x17ff, 1);
+        assertThrows(IndexOutOfBoundsException.class, () -> small.write(0x1800, 1));
+        assertThrows(IndexOutOfBoundsException.class, () -> small.read(-1));
+        assertThrows(IllegalArgumentException.class, () -> Memory.direct((1L << 32) + 1));
+    }
+
+    @Test
+    public void testLargeData() {
+        // Sums 100000 ints of data, which only fit in a larger memory.
+        int[] data = new int[100_000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = i % 7;
+        }
+        String code = ".code\n"
+                + "MOVI 0x1000, r1\n"
+                + "MOVI 0, r2\n"
+                + ":loop\n"
+                + "LOAD r1, r3\n"
+                + "ADD r3, r2\n"
+                + "PUSH r2\n"
+                + "POP r2\n"
+                + "ADDI 1, r1\n"
+                + "CMPI r1, " + (0x1000 + data.length) + "\n"
+                + "JL :loop\n"
+                + "STORE r2, r1\n";
+        ObjectCode objectCode = new ObjectCode(data, VirtualMachine.assemble(code).getCode(), Map.of());
+        int expected = 0;
+        for (int value : data) {
+            expected += value;
+        }
+
+        for (boolean translation : new boolean[]{false, true}) {
+            VirtualMachine vm = new VirtualMachine();
+            vm.setTranslation(translation);
+            vm.setMemory(Memory.direct(1 << 20));
+            vm.run(objectCode);
+            assertEquals(translation, vm.isTranslated());
+            assertEquals(expected, vm.getRegister(2));
+            assertEquals(expected, vm.getMemory(0x1000 + data.length));
+            // The data and the stack, not the megabyte in between.
+            assertTrue(vm.getPagesUsed() < 30);
+        }
+
+        RuntimeException e = assertThrows(RuntimeException.class, () -> new VirtualMachine().run(objectCode));
+        assertEquals("Too much data for the data segment!", e.getMessage());
+    }
+
+}
@@ -0,0 +1,70 @@
+package gj.compiler.minimus;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class OptimizerTest {
+
+    private String optimize(Optimizer optimizer, String program) {
+        return ParserTest.render(optimizer.optimize(new Parser(program).parse()));
+    }
+
+    @Test
+    public void testConstantFolding() {
+        Optimizer optimizer = new Optimizer();
+        assertEquals("NODE_SEQUENCE[NODE_ASSIGNMENT(a)[NODE_INTEGER(84)], NODE_ASSIGNMENT(b)[NODE_INTEGER(1)]]",
+                optimize(optimizer, "{ a=12*(5+2); b=3<4; }"));
+        assertEquals(5, optimizer.getCount(Optimizer.Rewrite.LITERAL_DECODED));
+        assertEquals(3, optimizer.getCount(Optimizer.Rewrite.CONSTANT_FOLDED));
+
+        // Dividing by zero is left for run time.
+        assertEquals("NODE_ASSIGNMENT(a)[NODE_DIVIDE[NODE_INTEGER(1), NODE_INTEGER(0)]]", optimize(optimizer, "a=1/0;"));
+    }
+
+    @Test
+    public void testIdentities() {
+        Optimizer optimizer = new Optimizer();
+        assertEquals("NODE_SEQUENCE[NODE_ASSIGNMENT(a)[NODE_INTEGER(2)], NODE_ASSIGNMENT(b)[NODE_VARIABLE(a)], "
+                        + "NODE_ASSIGNMENT(c)[NODE_INTEGER(0)]]",
+                optimize(optimizer, "{ a=2; b=(a*1+0)/1-0; c=0*(a+b); }"));
+        assertEquals(5, optimizer.getCount(Optimizer.Rewrite.IDENTITY_SIMPLIFIED));
+
+        // "x*0" keeps x if it assigns, might divide by zero or reads a variable that might be undefined.
+        assertEquals("NODE_ASSIGNMENT(c)[NODE_MULTIPLY[NODE_ASSIGNMENT(a)[NODE_INTEGER(1)], NODE_INTEGER(0)]]",
+                optimize(optimizer, "c=(a=1)*0;"));
+        assertEquals("NODE_ASSIGNMENT(c)[NODE_MULTIPLY[NODE_DIVIDE[NODE_INTEGER(1), NODE_VARIABLE(x)], NODE_INTEGER(0)]]",
+                optimize(optimizer, "c=(1/x)*0;"));
+        assertEquals("NODE_SEQUENCE[NODE_IF[NODE_VARIABLE(b), NODE_ASSIGNMENT(a)[NODE_INTEGER(1)]], "
+                        + "NODE_ASSIGNMENT(c)[NODE_MULTIPLY[NODE_VARIABLE(a), NODE_INTEGER(0)]]]",
+                optimize(optimizer, "{ if (b) a=1; c=a*0; }"));
+    }
+
+    @Test
+    public void testDeadBranches() {
+        Optimizer optimizer = new Optimizer();
+        assertEquals("NODE_SEQUENCE[NODE_ASSIGNMENT(b)[NODE_INTEGER(2)], NODE_EMPTY, NODE_EMPTY]",
+                optimize(optimizer, "{ if (1 > 2) b=1; else b=2; if (0) b=3; while (2 < 1) b=b+1; }"));
+        assertEquals(2, optimizer.getCount(Optimizer.Rewrite.BRANCH_REMOVED));
+        assertEquals(1, optimizer.getCount(Optimizer.Rewrite.LOOP_REMOVED));
+    }
+
+    @Test
+    public void testInterpreter() {
+        String program = "{ a=0; b=1*2; while (a < 10*1) { a=a+1+0; if (1) b=b*2; else b=0; } c=a*0; }";
+        Map<String, Integer> expected = new Interpreter(program).run();
+        for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+            Interpreter interpreter = new Interpreter(program, engine);
+            interpreter.setOptimizer(new Optimizer());
+            assertEquals(expected, interpreter.run());
+        }
+
+        Interpreter interpreter = new Interpreter("{ a=1/0; }");
+        interpreter.setOptimizer(new Optimizer());
+        assertThrows(ArithmeticException.class, interpreter::run);
+    }
+
+}
@@ -0,0 +1,88 @@
+package gj.compiler.minimus;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class OutputSinkTest {
+
+    @Test
+    public void testBatched() {
+        for (boolean background : new boolean[]{false, true}) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            StringBuilder expected = new StringBuilder();
+            // A small buffer, so that it fills up many times over.
+            try (BatchedSink sink = new BatchedSink(Channels.newChannel(bytes), 16, background)) {
+                for (int value : new int[]{0, 7, -7, 10, 1234567890, Integer.MAX_VALUE, Integer.MIN_VALUE}) {
+                    sink.print(value);
+                    expected.append(value).append('\n');
+                }
+                sink.print("a line longer than the buffer: 2\u00b2");
+                expected.append("a line longer than the buffer: 2\u00b2\n");
+                for (int value = -1000; value < 1000; value++) {
+                    sink.accept(value);
+                    expected.append(value).append('\n');
+                }
+                sink.flush();
+                assertEquals(expected.toString(), bytes.toString(StandardCharsets.UTF_8));
+
+                sink.print(42);
+                expected.append("42\n");
+            }
+            assertEquals(expected.toString(), bytes.toString(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testBatchedFailure() {
+        WritableByteChannel broken = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                throw new IOException("Disk full");
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        for (boolean background : new boolean[]{false, true}) {
+            BatchedSink sink = new BatchedSink(broken, 16, background);
+            sink.print(1);
+            UncheckedIOException e = assertThrows(UncheckedIOException.class, sink::close);
+            assertEquals("Disk full", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testInterpreterAndMachine() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (BatchedSink sink = new BatchedSink(Channels.newChannel(bytes), 1024, true)) {
+            Interpreter interpreter = new Interpreter("{ a=3; while (a > 0) { print(a); a=a-1; } }");
+            interpreter.setOutput(sink);
+            interpreter.setPrintSymbolTable(false);
+            interpreter.run();
+            // The interpreter flushes when the program ends.
+            assertEquals("3\n2\n1\n", bytes.toString(StandardCharsets.UTF_8));
+
+            VirtualMachine vm = new VirtualMachine();
+            vm.setOutput(sink);
+            vm.run(".code\nMOVI 1, r0\nMOVI -5, r1\nSYSCALL\n");
+            assertEquals("3\n2\n1\n-5\n", bytes.toString(StandardCharsets.UTF_8));
+        }
+    }
+
+}
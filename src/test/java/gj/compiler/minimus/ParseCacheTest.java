@@ -0,0 +1,87 @@
+package gj.compiler.minimus;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class ParseCacheTest {
+
+    private static final String PROGRAM = "{ a=12*(5+2);\n b=007; c=99999999999999;\n"
+            + " if (a > b) { print(a); } else { while (b < 10) b = b + 1; } }";
+
+    @Test
+    public void testSerializer() throws IOException {
+        Parser.Node expected = new Parser(PROGRAM).parse();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        AstSerializer.write(expected, new DataOutputStream(bytes));
+        Parser.Node actual = AstSerializer.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(ParserTest.render(expected), ParserTest.render(actual));
+        assertEquals(expected.children.get(2).line, actual.children.get(2).line);
+        assertEquals(expected.children.get(2).end, actual.children.get(2).end);
+    }
+
+    @Test
+    public void testMemory() {
+        ParseCache cache = new ParseCache(2);
+        Parser.Node first = cache.parse("a=1;");
+        assertSame(first, cache.parse("a=1;"));
+        cache.parse("b=1;");
+        cache.parse("c=1;"); // evicts "a=1;"
+        cache.parse("a=1;");
+        assertEquals(1, cache.getHits());
+        assertEquals(4, cache.getMisses());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testDisk(@TempDir Path directory) throws IOException {
+        new ParseCache(10, directory).parse(PROGRAM);
+        try (var files = Files.list(directory)) {
+            assertEquals(1, files.count());
+        }
+
+        ParseCache cache = new ParseCache(10, directory);
+        Parser.Node node = cache.parse(PROGRAM);
+        assertEquals(ParserTest.render(new Parser(PROGRAM).parse()), ParserTest.render(node));
+        assertEquals(1, cache.getDiskHits());
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    public void testDiskFailure(@TempDir Path directory) throws IOException {
+        // A file where the directory should be: nothing can be stored.
+        Path file = Files.createFile(directory.resolve("cache"));
+        ParseCache cache = new ParseCache(10, file);
+        Parser.Node node = cache.parse(PROGRAM);
+        assertEquals(ParserTest.render(new Parser(PROGRAM).parse()), ParserTest.render(node));
+        assertEquals(1, cache.getStoreFailures());
+        assertSame(node, cache.parse(PROGRAM));
+    }
+
+    @Test
+    public void testInterpreter() {
+        ParseCache cache = new ParseCache(10);
+        String program = "{ b=1; a=2; while (b < 10) { a=a*2; b=b+1; }}";
+        for (int i = 0; i < 3; i++) {
+            for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+                Interpreter interpreter = new Interpreter(program, engine);
+                interpreter.setParseCache(cache);
+                assertEquals(Map.of("a", 1024, "b", 10), interpreter.run());
+            }
+        }
+        assertEquals(1, cache.getMisses());
+    }
+
+}
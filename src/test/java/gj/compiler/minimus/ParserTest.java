@@ -5,6 +5,11 @@ import hu.webarticum.treeprinter.decorator.BorderTreeNodeDecorator;
 import hu.webarticum.treeprinter.printer.traditional.TraditionalTreePrinter;
 import org.junit.jupiter.api.Test;
 
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
 public class ParserTest {
 
     private SimpleTreeNode construct(Parser.Node root) {
@@ -16,6 +21,22 @@ public class ParserTest {
         return node;
     }
 
+    /* A one line rendering of a tree, handy for comparing trees. */
+    static String render(Parser.Node root) {
+        StringBuilder b = new StringBuilder(String.valueOf(root.type));
+        if (root.value != null) {
+            b.append('(').append(root.value).append(')');
+        }
+        if (!root.children.isEmpty()) {
+            b.append('[');
+            for (int i = 0; i < root.children.size(); i++) {
+                b.append(i > 0 ? ", " : "").append(render(root.children.get(i)));
+            }
+            b.append(']');
+        }
+        return b.toString();
+    }
+
     public void print(Parser.Node root) {
         SimpleTreeNode stn = construct(root);
         new TraditionalTreePrinter().print(new BorderTreeNodeDecorator(stn));
@@ -77,4 +98,108 @@ public class ParserTest {
         print(node);
     }
 
+    @Test
+    public void testTokenBuffer() {
+        String program = "{ a=12;b=13;c=a+b*(a-b)+(a+b)-(12-b-a*3+2-1)+(1); if (a=/=2) { b = 1; } else { print(b >= 2); } "
+                + "while (a <= b) {b = b + 1;} d=e=f=a<b; }";
+        Parser.Node expected = new Parser(program).parse();
+        Parser.Node actual = new Parser(TokenBuffer.tokenize(program)).parse();
+        assertEquals(render(expected), render(actual));
+    }
+
+    @Test
+    public void testCompactTree() {
+        String program = "{ a=12*(5+2); if (a > 80) b = a; else { b = 0; print(b); } }";
+        CompactTree tree = CompactTree.parse(program);
+        assertEquals(18, tree.size());
+
+        int sequence = tree.root();
+        assertEquals(Parser.NodeType.NODE_SEQUENCE, tree.kind(sequence));
+        int assignment = tree.firstChild(sequence);
+        assertEquals(Parser.NodeType.NODE_ASSIGNMENT, tree.kind(assignment));
+        assertEquals(0, tree.payload(assignment));
+        int multiply = tree.firstChild(assignment);
+        assertEquals(12, tree.payload(tree.firstChild(multiply)));
+
+        int ifNode = tree.nextSibling(assignment);
+        assertEquals(Parser.NodeType.NODE_IF, tree.kind(ifNode));
+        assertEquals(CompactTree.NONE, tree.nextSibling(ifNode));
+        int otherwise = tree.child(ifNode, 2);
+        assertEquals(Parser.NodeType.NODE_SEQUENCE, tree.kind(otherwise));
+        assertEquals(Parser.NodeType.NODE_PRINT, tree.kind(tree.child(otherwise, 1)));
+        assertEquals(CompactTree.NONE, tree.child(ifNode, 3));
+    }
+
+    @Test
+    public void testParseCompact() {
+        // The iterative path builds the same tree as the recursive one.
+        String program = "{ a=b=12*(5+2)-3/c; if (a > 80) b = a; else { b = 0; print(b); } "
+                + "while (a =/= (b+1)*2) { ; a=a-1; } if (a) if (b) c=1; else c=2; }";
+        CompactTree expected = CompactTree.of(new Parser(program).parse());
+        CompactTree actual = new Parser(program).parseCompact();
+        assertEquals(expected.size(), actual.size());
+        for (int node = 0; node < expected.size(); node++) {
+            assertEquals(expected.kind(node), actual.kind(node));
+            assertEquals(expected.payload(node), actual.payload(node));
+            assertEquals(expected.firstChild(node), actual.firstChild(node));
+            assertEquals(expected.nextSibling(node), actual.nextSibling(node));
+        }
+
+        // And gives the same errors.
+        for (String broken : new String[]{"{ a=1;\n b=(2; }", "{ a=1 }", "{ if a) b=1; }", "{ 5; }",
+                "{ a=1; } b=2;", "{ print 1; }", "{ a=*2; }", "{ (a)=1; }"}) {
+            assertEquals(assertThrows(RuntimeException.class, () -> new Parser(broken).parse()).getMessage(),
+                    assertThrows(RuntimeException.class, () -> new Parser(broken).parseCompact()).getMessage());
+        }
+
+        // A literal is decoded while parsing, so one that is too large is a
+        // parse error.
+        RuntimeException e = assertThrows(RuntimeException.class,
+                () -> new Parser("{\n a = 2147483648; }").parseCompact());
+        assertEquals("Integer too large: 2147483648 (line 2)", e.getMessage());
+    }
+
+    @Test
+    public void testParallel() {
+        StringBuilder b = new StringBuilder("\n{\n");
+        for (int i = 0; i < 2000; i++) {
+            b.append("  a=").append(i).append("; if (a < b) { b = b + a; }\n  else\n  print(a);\n");
+            b.append("  while (a > 0) { a = a - 1; { c = a; } }\n");
+        }
+        String program = b.append("}\n").toString();
+
+        Parser.Node expected = new Parser(program).parse();
+        Parser.Node actual = new ParallelParser(program, ForkJoinPool.commonPool(), 1024).parse();
+        assertEquals(render(expected), render(actual));
+        assertEquals(expected.children.size(), actual.children.size());
+        for (int i = 0; i < expected.children.size(); i++) {
+            assertEquals(expected.children.get(i).line, actual.children.get(i).line);
+            assertEquals(expected.children.get(i).start, actual.children.get(i).start);
+        }
+        assertEquals(expected.endLine, actual.endLine);
+        assertEquals(expected.end, actual.end);
+
+        // A syntax error deep inside the program reports the same line.
+        String broken = program.replace("a=1500;", "a=1500");
+        String sequential = assertThrows(RuntimeException.class, () -> new Parser(broken).parse()).getMessage();
+        String parallel = assertThrows(RuntimeException.class,
+                () -> new ParallelParser(broken, ForkJoinPool.commonPool(), 1024).parse()).getMessage();
+        assertEquals(sequential, parallel);
+    }
+
+    @Test
+    public void testLazy() {
+        String program = "{ a=1;\n if (a == 1) { b=2; while (b < 5) { b=b+1; } }\n else { c=a*; }\n d=3; }";
+
+        // The broken "else" is only brace-matched, so parsing succeeds.
+        Parser.Node node = new Parser(program, true).parse();
+        assertEquals(Parser.NodeType.NODE_DEFERRED, node.children.get(1).children.get(1).type);
+        RuntimeException e = assertThrows(RuntimeException.class, () -> Parser.validate(node));
+        assertEquals(assertThrows(RuntimeException.class, () -> new Parser(program).parse()).getMessage(),
+                e.getMessage());
+
+        String valid = program.replace("c=a*;", "c=a*2;");
+        assertEquals(render(new Parser(valid).parse()), render(Parser.validate(new Parser(valid, true).parse())));
+    }
+
 }
@@ -0,0 +1,76 @@
+package gj.compiler.minimus;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ProgramGeneratorTest {
+
+    @Test
+    public void testSeeded() {
+        assertEquals(new ProgramGenerator(7).generate(), new ProgramGenerator(7).generate());
+        assertNotEquals(new ProgramGenerator(7).generate(), new ProgramGenerator(8).generate());
+
+        ProgramGenerator small = new ProgramGenerator(7);
+        small.setStatements(10);
+        ProgramGenerator large = new ProgramGenerator(7);
+        large.setStatements(1000);
+        assertTrue(large.generate().length() > 50 * small.generate().length());
+
+        ProgramGenerator few = new ProgramGenerator(7);
+        few.setVariables(3);
+        few.setMaxDepth(2);
+        Interpreter interpreter = new Interpreter(few.generate());
+        interpreter.setOutput(OutputSink.DISCARD);
+        // "a" to "c" and the counters "z" and "y".
+        assertEquals(Set.of("a", "b", "c", "y", "z"), interpreter.run().keySet());
+    }
+
+    @Test
+    public void testPrograms() {
+        for (int seed = 0; seed < 50; seed++) {
+            ProgramGenerator generator = new ProgramGenerator(seed);
+            // Small enough for the code segment of the machine.
+            generator.setStatements(12);
+            generator.setVariables(1 + seed % 20);
+            generator.setMaxDepth(seed % 4);
+            generator.setBlockSize(3);
+            generator.setLoopDensity(0.3);
+            generator.setPrintDensity(0.2);
+            String program = generator.generate();
+
+            // It terminates, without dividing by zero, on every engine.
+            CollectingSink expected = new CollectingSink();
+            Interpreter interpreter = new Interpreter(program);
+            interpreter.setOutput(expected);
+            interpreter.setPrintSymbolTable(false);
+            Map<String, Integer> variables = interpreter.run();
+            for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+                Interpreter other = new Interpreter(program, engine);
+                other.setOutput(OutputSink.DISCARD);
+                other.setPrintSymbolTable(false);
+                assertEquals(variables, other.run(), engine.name());
+            }
+
+            // The assembly does the same.
+            Compiler compiler = new Compiler();
+            String assembly = compiler.compile(program);
+            assertEquals(assembly, generator.generateAssembly());
+            CollectingSink printed = new CollectingSink();
+            VirtualMachine vm = new VirtualMachine();
+            vm.setOutput(printed);
+            vm.run(assembly);
+            Map<String, Integer> memory = new HashMap<>();
+            compiler.getVariables().forEach((name, address) -> memory.put(name, vm.getMemory(address)));
+            assertEquals(variables, memory, program);
+            assertEquals(expected.getValues(), printed.getValues());
+        }
+    }
+
+}
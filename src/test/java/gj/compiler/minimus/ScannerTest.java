@@ -1,10 +1,19 @@
 package gj.compiler.minimus;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 import static gj.compiler.minimus.Scanner.TokenType;
 import static gj.compiler.minimus.Scanner.TokenType.*;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class ScannerTest {
 
@@ -63,4 +72,78 @@ public class ScannerTest {
         actualTest(new Scanner(program), expected);
     }
 
+    @Test
+    public void testReader() {
+        String program = "a=1;while(a=/=10)a=a+1;";
+        TokenType[] expected = {TOKEN_ID, TOKEN_ASSIGNMENT, TOKEN_INT, TOKEN_SEMICOLON, TOKEN_WHILE, TOKEN_PAREN_OPEN,
+                TOKEN_ID, TOKEN_NOT_EQUALS, TOKEN_INT, TOKEN_PAREN_CLOSE, TOKEN_ID, TOKEN_ASSIGNMENT, TOKEN_ID, TOKEN_PLUS, TOKEN_INT, TOKEN_SEMICOLON};
+        actualTest(new Scanner(new StringReader(program)), expected);
+    }
+
+    @Test
+    public void testTokensAcrossBufferBoundary() {
+        // Pad the program so that "12345" and "=/=" straddle the end of the first buffer.
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < Scanner.BUFFER_SIZE - 3; i++) {
+            b.append(i % 80 == 79 ? '\n' : ' ');
+        }
+        b.append("12345=/=\nwhile");
+        Scanner scanner = new Scanner(new StringReader(b.toString()));
+        assertEquals("12345", scanner.next().lexeme);
+        assertEquals(TOKEN_NOT_EQUALS, scanner.next().type);
+        assertEquals(TOKEN_WHILE, scanner.next().type);
+        assertEquals(TOKEN_EOI, scanner.peek().type);
+        assertEquals(1 + (Scanner.BUFFER_SIZE - 3) / 80 + 1, scanner.getLineNumber());
+    }
+
+    @Test
+    public void testChannelAndMappedFile(@TempDir Path dir) throws IOException {
+        String program = "a=12;b=(a-1)+(9*91+(a/4));";
+        TokenType[] expected = {TOKEN_ID, TOKEN_ASSIGNMENT, TOKEN_INT, TOKEN_SEMICOLON,
+                TOKEN_ID, TOKEN_ASSIGNMENT, TOKEN_PAREN_OPEN, TOKEN_ID, TOKEN_MINUS, TOKEN_INT, TOKEN_PAREN_CLOSE, TOKEN_PLUS,
+                TOKEN_PAREN_OPEN, TOKEN_INT, TOKEN_MULTIPLY, TOKEN_INT, TOKEN_PLUS, TOKEN_PAREN_OPEN, TOKEN_ID, TOKEN_DIVIDE, TOKEN_INT, TOKEN_PAREN_CLOSE, TOKEN_PAREN_CLOSE,
+                TOKEN_SEMICOLON, TOKEN_EOI};
+        Path file = dir.resolve("program.min");
+        Files.writeString(file, program);
+
+        actualTest(new Scanner(file), expected);
+        try (var in = Files.newInputStream(file)) {
+            actualTest(new Scanner(Channels.newChannel(in)), expected);
+        }
+        actualTest(new Scanner(java.nio.ByteBuffer.wrap(program.getBytes(StandardCharsets.US_ASCII))), expected);
+    }
+
+    @Test
+    public void testTokenBuffer() {
+        String program = "a=1;\nb=0;\nif(a==1){b=1;}else{b=a*23/(7-b);}\nwhile(a=/=10)a=a+1; print(a>=b); c=a<=b; d=a<b>c;";
+        TokenBuffer tokens = TokenBuffer.tokenize(program);
+        Scanner scanner = new Scanner(program);
+        for (int t = 0; t < tokens.size(); t++) {
+            Scanner.Token token = scanner.next();
+            assertEquals(token.type, tokens.type(t));
+            if (token.type == TOKEN_INT) {
+                assertEquals(Integer.parseInt(token.lexeme), tokens.value(t));
+            } else if (token.type == TOKEN_ID) {
+                assertEquals(token.lexeme.charAt(0) - 'a', tokens.value(t));
+            }
+        }
+        assertEquals(TOKEN_EOI, tokens.type(tokens.size() - 1));
+        assertEquals(4, tokens.line(tokens.size() - 1));
+        int i = 0;
+        while (tokens.type(i) != TOKEN_WHILE) {
+            i++;
+        }
+        assertEquals(program.indexOf("while"), tokens.offset(i));
+        assertEquals(4, tokens.line(i));
+    }
+
+    @Test
+    public void testTokenBufferErrors() {
+        assertThrows(RuntimeException.class, () -> TokenBuffer.tokenize("a=b#c;"));
+        assertThrows(RuntimeException.class, () -> TokenBuffer.tokenize("a=/b;"));
+        assertThrows(RuntimeException.class, () -> TokenBuffer.tokenize("abc=1;"));
+        RuntimeException e = assertThrows(RuntimeException.class, () -> TokenBuffer.tokenize("a=99999999999;"));
+        assertEquals("Scanner error: integer too large: 99999999999 (line 1)", e.getMessage());
+    }
+
 }
@@ -1,14 +1,30 @@
 package gj.compiler.minimus;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
 public class VirtualMachineTest {
 
     private String readTestFile(String filename) throws IOException, URISyntaxException {
@@ -23,7 +39,254 @@ public class VirtualMachineTest {
         String program = readTestFile("testcase1");
         VirtualMachine vm = new VirtualMachine();
         vm.run(program);
+        assertEquals(1597, vm.getRegister(1));
+        assertEquals(987, vm.getRegister(2));
+    }
+
+    @Test
+    public void testInstructions() {
+        VirtualMachine vm = new VirtualMachine();
+        vm.run(".data\n7\n.code\n"
+                + "LOADI 0x1000, r1\n"
+                + "MOVI -3, r2\n"
+                + "SUB r1, r2        ; r2 = r1 - r2\n"
+                + "SUBI 20, r1       ; r1 = 20 - r1\n"
+                + "PUSH r1\n"
+                + "MOVI 0x1001, r3\n"
+                + "STORE r2, r3\n"
+                + "POP r4\n"
+                + "CMPI r4, 13\n"
+                + "JNE :wrong\n"
+                + "MOVI 1, r5\n"
+                + "HALT\n"
+                + ":wrong\n"
+                + "MOVI 2, r5\n");
+        assertEquals(10, vm.getRegister(2));
+        assertEquals(10, vm.getMemory(0x1001));
+        assertEquals(1, vm.getRegister(5));
+
+        assertThrows(RuntimeException.class, () -> vm.run(".code\nJMP :nowhere\n"));
+        assertThrows(RuntimeException.class, () -> vm.run(".code\nMOV r1\n"));
+        assertThrows(RuntimeException.class, () -> vm.run(".code\nFLY r1, r2\n"));
+    }
+
+    @Test
+    public void testFusion() throws IOException, URISyntaxException {
+        String program = readTestFile("testcase1");
+        VirtualMachine vm = new VirtualMachine();
+        vm.run(program);
+        assertEquals(Map.of("CMPI+JLE", 1, "MOVI+SYSCALL", 1), vm.getFusions());
+        // One saved for every round of the loop (15) and one for the first print.
+        assertEquals(16, vm.getDispatchesSaved());
+
+        vm.setFusion(false);
+        vm.run(program);
+        assertEquals(1597, vm.getRegister(1));
+        assertEquals(Map.of(), vm.getFusions());
+        assertEquals(0, vm.getDispatchesSaved());
+
+        // Jumping to the JG in the middle of a fused CMPI+JG uses the flags
+        // of the earlier CMPI, and the variable is loaded, modified and stored.
+        vm.setFusion(true);
+        vm.run(".data\n7\n.code\n"
+                + "MOVI 5, r1\n"
+                + "CMPI r1, 9\n"
+                + "JMP :middle\n"
+                + "CMPI r1, 3\n"
+                + ":middle\n"
+                + "JG :done\n"
+                + "LOADI 0x1000, r2\n"
+                + "MULI 6, r2\n"
+                + "MOVI 0x1000, r0\n"
+                + "STORE r2, r0\n"
+                + ":done\n"
+                + "HALT\n");
+        assertEquals(42, vm.getMemory(0x1000));
+        assertEquals(Map.of("CMPI+JG", 1, "LOADI+MULI+MOVI+STORE", 1, "MOVI+STORE", 1), vm.getFusions());
+        assertEquals(3, vm.getDispatchesSaved());
+    }
+
+    @Test
+    public void testTranslation() throws IOException, URISyntaxException {
+        VirtualMachine vm = new VirtualMachine();
+        vm.setTranslation(true);
+        vm.run(readTestFile("testcase1"));
+        assertTrue(vm.isTranslated());
+        assertEquals(1597, vm.getRegister(1));
+        assertEquals(987, vm.getRegister(2));
+
+        // Every translated program has a class loader of its own.
+        ObjectCode objectCode = VirtualMachine.assemble(readTestFile("testcase1"));
+        ClassLoader loader = new LoadedProgram(objectCode, false, true).translated.getClass().getClassLoader();
+        assertNotEquals(VirtualMachine.class.getClassLoader(), loader);
+        assertNotEquals(loader, new LoadedProgram(objectCode, false, true).translated.getClass().getClassLoader());
+
+        vm.run(".data\n7\n.code\n"
+                + "MOVI 5, r1\n"
+                + "CMPI r1, 9\n"
+                + "JMP :middle\n"
+                + "CMPI r1, 3\n"
+                + ":middle\n"
+                + "JG :done\n"
+                + "PUSH r1\n"
+                + "LOADI 0x1000, r2\n"
+                + "POP r3\n"
+                + "MUL r3, r2\n"
+                + "MOVI 0x1000, r0\n"
+                + "STORE r2, r0\n"
+                + ":done\n");
+        assertTrue(vm.isTranslated());
+        assertEquals(35, vm.getMemory(0x1000));
+        assertThrows(ArithmeticException.class, () -> vm.run(".code\nMOVI 1, r1\nDIVI 1, r2\n"));
+
+        // Before the first CMP the flags hold nothing, so a conditional jump
+        // there is left to the interpreter.
+        vm.run(".code\nJE :skip\nMOVI 1, r1\n:skip\nCMPI r1, 0\nJE :skip\nHALT\n");
+        assertFalse(vm.isTranslated());
+        assertEquals(1, vm.getRegister(1));
+    }
 
+    @Test
+    public void testOutput() throws IOException, URISyntaxException {
+        String program = readTestFile("testcase1");
+        List<Integer> fibonacci = List.of(1, 2, 3, 5, 8, 13, 21, 34, 55, 89, 144, 233, 377, 610, 987, 1597);
+        for (boolean translation : new boolean[]{false, true}) {
+            CollectingSink out = new CollectingSink();
+            VirtualMachine vm = new VirtualMachine();
+            vm.setTranslation(translation);
+            vm.setOutput(out);
+            vm.run(program);
+            assertEquals(translation, vm.isTranslated());
+            assertEquals(fibonacci, out.getValues());
+        }
+    }
+
+    @Test
+    public void testProfiler() throws IOException, URISyntaxException {
+        String program = readTestFile("testcase1");
+        for (boolean translation : new boolean[]{false, true}) {
+            Profiler profiler = new Profiler();
+            VirtualMachine vm = new VirtualMachine();
+            vm.setTranslation(translation);
+            vm.setOutput(OutputSink.DISCARD);
+            vm.setProfiler(profiler);
+            vm.run(program);
+            assertEquals(1597, vm.getRegister(1));
+
+            // The loop goes round 15 times; every instruction is counted,
+            // even those that were fused or translated.  Entries that tie
+            // stay in the order they were first executed.
+            List<Profiler.Entry> entries = profiler.getEntries();
+            assertEquals("MOV;MOV r1, r3@12", entries.get(0).getStack());
+            assertEquals(15, entries.get(0).getSelf());
+            Map<String, Long> counts = new HashMap<>();
+            for (Profiler.Entry entry : entries) {
+                counts.put(entry.getStack(), entry.getCount());
+            }
+            assertEquals(15, counts.get("CMPI;CMPI r1, 1000@24"));
+            assertEquals(15, counts.get("JLE;JLE 12@27"));
+            assertEquals(15, counts.get("SYSCALL;SYSCALL@21"));
+            assertEquals(1, counts.get("HALT;HALT@30"));
+            assertEquals(30, counts.get("MOV"));
+        }
+    }
+
+    @Test
+    public void testObjectFile(@TempDir Path directory) throws IOException, URISyntaxException {
+        ObjectCode objectCode = VirtualMachine.assemble(readTestFile("testcase1"));
+        assertEquals(Map.of(":loop", 12), objectCode.getSymbols());
+        objectCode.getSymbols().put("fibonacci", 0x1000);
+
+        Path file = directory.resolve("testcase1.mvmo");
+        objectCode.write(file);
+        ObjectCode read = ObjectCode.read(file);
+        assertArrayEquals(objectCode.getData(), read.getData());
+        assertArrayEquals(objectCode.getCode(), read.getCode());
+        assertEquals(Map.of(":loop", 12, "fibonacci", 0x1000), read.getSymbols());
+
+        VirtualMachine vm = new VirtualMachine();
+        vm.run(file);
+        assertEquals(1597, vm.getRegister(1));
+
+        Files.write(file, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        assertThrows(IOException.class, () -> vm.run(file));
+        assertThrows(IOException.class, () -> ObjectCode.read(file));
+
+        // Code that the assembler cannot produce: a superinstruction, a
+        // register out of range, a jump out of the code and a stray operand.
+        int[][] corruptions = {{0, 32}, {2, 10}, {28, 3000}, {10, 7}};
+        for (int[] corruption : corruptions) {
+            int[] code = objectCode.getCode().clone();
+            code[corruption[0]] = corruption[1];
+            String message = assertThrows(RuntimeException.class,
+                    () -> new ObjectCode(objectCode.getData(), code, Map.of())).getMessage();
+            assertTrue(message.endsWith("(address " + corruption[0] / 3 * 3 + ")"), message);
+
+            ObjectCode corrupt = new ObjectCode(objectCode.getData(), objectCode.getCode(), Map.of());
+            corrupt.write(file);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ByteBuffer value = ByteBuffer.allocate(4).putInt(0, corruption[1]);
+                channel.write(value, (5L + objectCode.getData().length + corruption[0]) * 4);
+            }
+            assertThrows(IOException.class, () -> vm.run(file));
+            assertThrows(IOException.class, () -> ObjectCode.read(file));
+        }
+    }
+
+    /* Compiles programs and checks that the machine ends up with the same
+       variables as the Interpreter, or fails the same way. */
+    @Test
+    public void testCompiledPrograms() {
+        String[] programs = {
+                "{ a=12*(5+2); }",
+                "{ b=1; a=2; while (b < 10) { a=a*2; b=b+1; }}",
+                "{ a = 1; while (a <= 10) { print(a*a); a = a + 1; } }",
+                "{ a=2; b=0; if (a=/=2) { b = 1; } else { b = 2; } c=a>=b; d=a==b; e=a/b-7; f=g=h=a<b; i=a=/=b; }",
+                "{ a=1;b=2;c=3;d=4;e=5;f=6;g=7;h=8;i=9;j=10; k=a+b*(c+d*(e+f*(g+h*(i+j)))); "
+                        + "l=k-a-b-c-d-e-f-g-h-i-j; m=(a+(a=5))*(b-(b=k/a)); }",
+                "{ a=0; c=0; while (a < 10) { b=0; while (b < a) { c=c+b; b=b+1; } a=a+1; } if (c > 5) d=c/0-c; else d=1; }",
+                // Variables that may be read before they are assigned.
+                "{ a = 5; print(a); while (b < 3) { b = b + 1; } print(b); }",
+                "{ a = 1; while (a) { a = a - 1; c = c + 2; } print(c); }",
+                "{ a=1; if (a == 2) { print(b); } c = b + 1; b = 7; }",
+                "{ a=0; c=0; while (a < 3) { if (a == 1) b = 10; c = c + b; a = a + 1; } }",
+                "{ a = 7; print(a); if (a == 2) { b = 1; } }",
+                "{ a=2; if (a == 1) b = 5; if (a == 2) b = 6; print(b); c = b; }",
+                "{ a=1; if (a == 2) print(z); }",
+        };
+        for (String program : programs) {
+            Map<String, Integer> expected;
+            RuntimeException failure = null;
+            try {
+                expected = new Interpreter(program).run();
+            } catch (RuntimeException e) {
+                expected = null;
+                failure = e;
+            }
+            Compiler compiler = new Compiler();
+            String assembly = compiler.compile(program);
+            for (boolean translation : new boolean[]{false, true}) {
+                VirtualMachine vm = new VirtualMachine();
+                vm.setTranslation(translation);
+                if (failure != null) {
+                    RuntimeException e = assertThrows(failure.getClass(), () -> vm.run(assembly), program);
+                    assertEquals(failure.getMessage(), e.getMessage(), program);
+                    continue;
+                }
+                vm.run(assembly);
+                assertEquals(translation, vm.isTranslated(), program);
+                // A variable that was never assigned is not in the symbol
+                // table of the Interpreter either.
+                Map<String, Integer> actual = new HashMap<>();
+                compiler.getVariables().forEach((name, address) -> {
+                    Integer defined = compiler.getDefined().get(name);
+                    if (defined == null || vm.getMemory(defined) != 0) {
+                        actual.put(name, vm.getMemory(address));
+                    }
+                });
+                assertEquals(expected, actual, program);
+            }
+        }
     }
 
 }
@@ -0,0 +1,111 @@
+package gj.compiler.minimus;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class VmPoolTest {
+
+    /* Adds 1 to 10 to the first word of data, keeping the sum on the stack. */
+    private static final String PROGRAM = ".data\n100\n0\n.code\n"
+            + "MOVI 10, r1\n"
+            + "LOADI 0x1000, r2\n"
+            + "PUSH r2\n"
+            + ":loop\n"
+            + "POP r2\n"
+            + "ADD r1, r2\n"
+            + "PUSH r2\n"
+            + "MOVI -1, r3\n"
+            + "ADD r3, r1\n"
+            + "CMPI r1, 0\n"
+            + "JG :loop\n"
+            + "POP r2\n"
+            + "MOVI 0x1000, r0\n"
+            + "STORE r2, r0\n";
+
+    @Test
+    public void testReuse() {
+        VmPool pool = new VmPool(new LoadedProgram(VirtualMachine.assemble(PROGRAM)));
+        VirtualMachine vm = pool.acquire();
+        vm.run();
+        assertEquals(155, vm.getMemory(0x1000));
+        // The stack and the data section, nothing else.
+        assertEquals(2, vm.getPagesUsed());
+        pool.release(vm);
+
+        // The machine is used again, and starts from the data of the program.
+        VirtualMachine again = pool.acquire();
+        assertSame(vm, again);
+        assertEquals(100, again.getMemory(0x1000));
+        assertEquals(0, again.getPagesUsed());
+        again.run();
+        assertEquals(155, again.getMemory(0x1000));
+
+        // While it is in use, the pool makes another one.
+        assertNotSame(again, pool.acquire());
+        assertEquals(2, pool.getCreated());
+    }
+
+    @Test
+    public void testResetOnce() {
+        int[] resets = new int[1];
+        VmPool pool = new VmPool(new LoadedProgram(VirtualMachine.assemble(PROGRAM)), image -> {
+            Memory memory = Memory.heap().create(image);
+            return new Memory() {
+                public int read(int address) { return memory.read(address); }
+                public void write(int address, int value) { memory.write(address, value); }
+                public long size() { return memory.size(); }
+                public void reset() { resets[0]++; memory.reset(); }
+                public int pagesUsed() { return memory.pagesUsed(); }
+            };
+        });
+        for (int job = 1; job <= 3; job++) {
+            pool.run(vm -> assertEquals(155, vm.getMemory(0x1000)));
+            // Handing the machine back resets it; running it again does not.
+            assertEquals(job, resets[0]);
+        }
+
+        // A machine run twice without going back to the pool is reset in
+        // between.
+        VirtualMachine vm = pool.acquire();
+        vm.run();
+        vm.run();
+        assertEquals(155, vm.getMemory(0x1000));
+        assertEquals(4, resets[0]);
+    }
+
+    @Test
+    public void testConcurrentJobs() throws Exception {
+        LoadedProgram program = new LoadedProgram(VirtualMachine.assemble(PROGRAM), true, true);
+        assertTrue(program.isTranslated());
+        VmPool pool = new VmPool(program);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                results.add(executor.submit(() -> {
+                    int[] value = new int[1];
+                    pool.run(vm -> value[0] = vm.getMemory(0x1000));
+                    return value[0];
+                }));
+            }
+            for (Future<Integer> result : results) {
+                assertEquals(155, result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertTrue(pool.getCreated() <= 4);
+    }
+
+}